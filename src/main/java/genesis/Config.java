@@ -44,9 +44,34 @@ public class Config {
 	public static final String filePathSep;
 
 	public static final long perCaseTimeout;
+	public static final double perCaseTimeoutFactor;
+	public static final long perCaseTimeoutOffset;
+	public static final long runnerStartTimeout;
+	public static final boolean useRunnerPool;
+	public static final int runnerPoolMaxUses;
+	public static final boolean runnerHotSwap;
+	public static final int testShards;
+	public static final String validationWorkers;
+	public static final String workerCacheDir;
+	public static final String workerSecret;
+	public static final boolean inProcessValidation;
+	public static final long inProcessTimeout;
+	public static final int candidateBatchSize;
+	public static final boolean testCoverage;
+	public static final boolean coverageConfirmFull;
+	public static final boolean useValidationCache;
+	public static final long compileCacheBytes;
+	public static final boolean bytecodeTemplates;
+	public static final boolean useSchemaIndex;
+	public static final double rankingLocationWeight;
 	
 	public static final int cacheSize;
 	public static final int concurrencyLevel;
+	public static final int generationThreads;
+	public static final int pipelineQueueSize;
+	public static final int pipelineRewriteWorkers;
+	public static final int pipelineCompileWorkers;
+	public static final int pipelineTestWorkers;
 	
 	public static final boolean stackTraceLocalization_removeTry;
 	public static final int stackTraceLocalization_nLocs;
@@ -100,8 +125,46 @@ public class Config {
 		filePathSep = p.getProperty("file_path_separator", "/");
 
 		perCaseTimeout = Long.parseLong(p.getProperty("testcase_timeout", "0"));
+		perCaseTimeoutFactor = Double.parseDouble(p.getProperty("testcase_timeout_factor", "0"));
+		perCaseTimeoutOffset = Long.parseLong(p.getProperty("testcase_timeout_offset", "1000"));
+		runnerStartTimeout = Long.parseLong(p.getProperty("runner_start_timeout", "60000"));
+		useRunnerPool = Boolean.parseBoolean(p.getProperty("use_runner_pool", "false"));
+		runnerPoolMaxUses = Integer.parseInt(p.getProperty("runner_pool_max_uses", "200"));
+		// Keeps the static state of the project classes between candidates, see PersistentTestRunner
+		runnerHotSwap = Boolean.parseBoolean(p.getProperty("runner_hot_swap", "false"));
+		testShards = Integer.parseInt(p.getProperty("test_shards", "1"));
+		// Comma separated host:port list, see ValidationWorker
+		validationWorkers = p.getProperty("validation_workers", "");
+		workerCacheDir = p.getProperty("worker_cache_dir", tmpDirectory + filePathSep + "genesis-worker-cache");
+		// Shared by genesis and its validation workers, they refuse to run without it
+		workerSecret = p.getProperty("worker_secret", "");
+		inProcessValidation = Boolean.parseBoolean(p.getProperty("in_process_validation", "false"));
+		// For the cases without a time budget, see testcase_timeout
+		inProcessTimeout = Long.parseLong(p.getProperty("in_process_timeout", "10000"));
+		candidateBatchSize = Integer.parseInt(p.getProperty("candidate_batch_size", "100"));
+		testCoverage = Boolean.parseBoolean(p.getProperty("test_coverage", "false"));
+		coverageConfirmFull = Boolean.parseBoolean(p.getProperty("coverage_confirm_full", "true"));
+		useValidationCache = Boolean.parseBoolean(p.getProperty("validation_cache", "true"));
+		// 0 turns the compile cache off
+		compileCacheBytes = Long.parseLong(p.getProperty("compile_cache_bytes", "268435456"));
+		// Patches the class files for the simple PAR null checks instead of running javac, see BytecodePatcher
+		bytecodeTemplates = Boolean.parseBoolean(p.getProperty("bytecode_templates", "false"));
+		// Only opens the transforms whose pre tree and inside sigs may match a node, see SchemaIndex
+		useSchemaIndex = Boolean.parseBoolean(p.getProperty("schema_index", "true"));
+		// Added to the score of --ranking-model times the suspiciousness of the location
+		rankingLocationWeight = Double.parseDouble(p.getProperty("ranking_location_weight", "1.0"));
 		concurrencyLevel = Integer.parseInt(p.getProperty("concurrency_level", Integer.toString(Runtime.getRuntime().availableProcessors())));
 		cacheSize = Integer.parseInt(p.getProperty("cache_size", "100000"));
+		// The transforms of a candidate node are matched in parallel with more than one thread
+		generationThreads = Integer.parseInt(p.getProperty("generation_threads", "1"));
+		pipelineQueueSize = Integer.parseInt(p.getProperty("pipeline_queue_size", "64"));
+		// The rewriters only read the shared Spoon trees, concurrently with the
+		// generation, as the learning threads do. That is safe as long as
+		// nothing modifies the trees during the search, not because of the
+		// number of rewriters. One is enough to keep the compilers busy.
+		pipelineRewriteWorkers = Integer.parseInt(p.getProperty("pipeline_rewrite_workers", "1"));
+		pipelineCompileWorkers = Integer.parseInt(p.getProperty("pipeline_compile_workers", Integer.toString(concurrencyLevel)));
+		pipelineTestWorkers = Integer.parseInt(p.getProperty("pipeline_test_workers", Integer.toString(concurrencyLevel)));
 		
 		stackTraceLocalization_removeTry = Boolean.parseBoolean(p.getProperty("stack_trace_localization_remove_try", "true"));
 		stackTraceLocalization_nLocs = Integer.parseInt(getPropertyOrThrowError(p, "stack_trace_localization_n_locs"));
@@ -1565,5 +1565,9 @@ public class Main {
 		computeCostMetric(candidates, trainDB, covers, n1, n2, new File("cost.txt"));
 		
 		System.out.println("Compute cost metric complete!");
+		
+		RankingTrainer.train(candidates, trainDB, n1, new File("ranking.txt"));
+		
+		System.out.println("Ranking model written to ranking.txt.");
 	}
 }
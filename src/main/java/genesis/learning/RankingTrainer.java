@@ -0,0 +1,123 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL
+package genesis.learning;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import genesis.node.MyCtNode;
+import genesis.node.MyNodeSig;
+import genesis.repair.ranking.PatchFeatures;
+import genesis.repair.ranking.RankingModel;
+import genesis.space.SearchSpace;
+import genesis.space.SearchSpace.GenerationResult;
+import genesis.transform.CodeTransform;
+import genesis.utils.Pair;
+
+/**
+ * Trains the RankingModel of the repair from the corpus. Every training
+ * pair is an instance: we generate the candidates of the learned transforms
+ * at its candidate nodes, as the repair does, and the correct candidates
+ * are the ones that turn a before tree of the pair into its after tree.
+ */
+public class RankingTrainer {
+
+	// We give up on an instance with more candidates than this
+	static final int MaxCandidates = 5000;
+	static final int Epochs = 30;
+	static final double Rate = 0.05;
+	static final double Lambda = 1e-3;
+
+	static class Instance {
+		ArrayList<HashMap<String, Double>> features;
+		HashSet<Integer> correct;
+
+		Instance() {
+			this.features = new ArrayList<HashMap<String, Double>>();
+			this.correct = new HashSet<Integer>();
+		}
+	}
+
+	static Instance collectInstance(SearchSpace space, ArrayList<DecomposedCodePair> pairs) {
+		Instance ret = new Instance();
+		for (Pair<HashSet<MyNodeSig>, MyCtNode> p : Main.obtainCandidateBefores(pairs)) {
+			ArrayList<MyCtNode> afters = new ArrayList<MyCtNode>();
+			for (DecomposedCodePair d : pairs)
+				if (d.before.treeEquals(p.y))
+					afters.add(d.after);
+			SearchSpace.GenerationStream it = space.iterate(p.x, p.y);
+			try {
+				while (it.hasNext()) {
+					if (ret.features.size() >= MaxCandidates)
+						return null;
+					GenerationResult res = it.next();
+					for (MyCtNode after : afters)
+						if (res.patch.treeEquals(after)) {
+							ret.correct.add(ret.features.size());
+							break;
+						}
+					ret.features.add(PatchFeatures.extract(res.transform, res.getGeneratorIndex(), p.y, res.patch));
+				}
+			}
+			finally {
+				it.close();
+			}
+		}
+		if (ret.correct.isEmpty())
+			return null;
+		return ret;
+	}
+
+	// Trains on the pairs [n1, trainDB.size()), the transforms come from the
+	// pairs before n1
+	public static void train(List<CodeTransform> candidates, final ArrayList<ArrayList<DecomposedCodePair>> trainDB, int n1, File file) {
+		final SearchSpace space = new SearchSpace(candidates);
+		ExecutorService pool = Executors.newFixedThreadPool(Main.ThreadCount);
+		ArrayList<Future<Instance>> futures = new ArrayList<Future<Instance>>();
+		for (int i = n1; i < trainDB.size(); i++) {
+			final ArrayList<DecomposedCodePair> pairs = trainDB.get(i);
+			futures.add(pool.submit(new Callable<Instance>() {
+				@Override
+				public Instance call() {
+					return collectInstance(space, pairs);
+				}
+			}));
+		}
+		pool.shutdown();
+		ArrayList<List<HashMap<String, Double>>> instances = new ArrayList<List<HashMap<String, Double>>>();
+		ArrayList<Set<Integer>> corrects = new ArrayList<Set<Integer>>();
+		for (Future<Instance> f : futures) {
+			try {
+				Instance inst = f.get();
+				if (inst == null)
+					continue;
+				instances.add(inst.features);
+				corrects.add(inst.correct);
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		}
+		System.out.println("Train the ranking model with " + instances.size() + " of " + futures.size() + " pairs");
+		RankingModel model = new RankingModel();
+		model.train(instances, corrects, Epochs, Rate, Lambda);
+		try {
+			model.save(file.getPath());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
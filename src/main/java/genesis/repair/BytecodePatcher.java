@@ -0,0 +1,571 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaFileObject;
+
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import genesis.Config;
+import genesis.GenesisException;
+import genesis.node.MyCtNode;
+import spoon.reflect.code.BinaryOperatorKind;
+import spoon.reflect.code.CtBinaryOperator;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtFieldRead;
+import spoon.reflect.code.CtIf;
+import spoon.reflect.code.CtLiteral;
+import spoon.reflect.code.CtReturn;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtSynchronized;
+import spoon.reflect.code.CtThisAccess;
+import spoon.reflect.code.CtTry;
+import spoon.reflect.code.CtTryWithResource;
+import spoon.reflect.code.CtTypeAccess;
+import spoon.reflect.code.CtVariableRead;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtAnonymousExecutable;
+import spoon.reflect.declaration.CtConstructor;
+import spoon.reflect.reference.CtFieldReference;
+
+/**
+ * Builds the class files of a PARNullChecker1 candidate, i.e.,
+ * "if (v == null) return c; S;", straight from the class files of the
+ * original program, so javac does not run for it. The guard goes in front of
+ * the first instruction of S, which we find by its line number, so we only
+ * patch when S is alone on its line and the line shows up once in the class
+ * files. v must be a local variable, a parameter, or a field of the class of
+ * the method, and c a constant of the return type of the method.
+ *
+ * Everything else is left to javac, patch() then returns null. The original
+ * classes are compiled once with -g for the local variable tables.
+ */
+public class BytecodePatcher {
+
+	// The guard of a candidate, see match()
+	public static class Guard {
+		CtStatement stmt;
+		String varName;
+		// The binary name of the class of the field, null for a local variable
+		String fieldOwner;
+		boolean staticField;
+		// Whether the return has a value, and the value, null for a null literal
+		boolean hasValue;
+		Object value;
+	}
+
+	// Where the guard goes in the original classes
+	static class Site {
+		String className;
+		String methodName;
+		String methodDesc;
+		int methodAccess;
+		int line;
+		int localIndex;
+		String fieldDesc;
+	}
+
+	static class ClassHeader {
+		String superName;
+		boolean isInterface;
+	}
+
+	WorkdirManager manager;
+	// The original code and its classes by source path, the classes are null
+	// if the code does not compile with -g
+	HashMap<String, String> codes;
+	HashMap<String, Map<String, byte[]>> originals;
+	HashMap<String, ClassHeader> headers;
+	int patchedCnt;
+
+	public BytecodePatcher(WorkdirManager manager) {
+		this.manager = manager;
+		this.codes = new HashMap<String, String>();
+		this.originals = new HashMap<String, Map<String, byte[]>>();
+		this.headers = new HashMap<String, ClassHeader>();
+		this.patchedCnt = 0;
+	}
+
+	private static boolean isNullLiteral(CtExpression<?> e) {
+		return e instanceof CtLiteral && ((CtLiteral<?>) e).getValue() == null;
+	}
+
+	// Returns the guard if patch is orig with a PARNullChecker1 guard in
+	// front of it, null otherwise. It only reads the trees, so call it where
+	// the trees are safe to read.
+	public static Guard match(MyCtNode orig, MyCtNode patch) {
+		if (orig == null || patch == null || !orig.isCollection() || !patch.isCollection())
+			return null;
+		if (orig.getNumChildren() != 1 || patch.getNumChildren() != 2 || !patch.getChild(1).treeEquals(orig.getChild(0)))
+			return null;
+		Object o = orig.getChild(0).getRawObject();
+		Object p = patch.getChild(0).getRawObject();
+		if (!(o instanceof CtStatement) || !(p instanceof CtIf))
+			return null;
+		CtIf ifStmt = (CtIf) p;
+		if (ifStmt.getElseStatement() != null)
+			return null;
+		CtStatement then = ifStmt.getThenStatement();
+		if (then instanceof CtBlock) {
+			List<CtStatement> stmts = ((CtBlock<?>) then).getStatements();
+			if (stmts.size() != 1)
+				return null;
+			then = stmts.get(0);
+		}
+		if (!(then instanceof CtReturn) || !(ifStmt.getCondition() instanceof CtBinaryOperator))
+			return null;
+		CtBinaryOperator<?> cond = (CtBinaryOperator<?>) ifStmt.getCondition();
+		if (cond.getKind() != BinaryOperatorKind.EQ)
+			return null;
+		CtExpression<?> v = null;
+		if (isNullLiteral(cond.getRightHandOperand()))
+			v = cond.getLeftHandOperand();
+		else if (isNullLiteral(cond.getLeftHandOperand()))
+			v = cond.getRightHandOperand();
+
+		Guard ret = new Guard();
+		ret.stmt = (CtStatement) o;
+		if (v instanceof CtFieldRead) {
+			CtFieldRead<?> read = (CtFieldRead<?>) v;
+			CtFieldReference<?> ref = read.getVariable();
+			if (ref == null || ref.getDeclaringType() == null)
+				return null;
+			ret.varName = ref.getSimpleName();
+			ret.fieldOwner = ref.getDeclaringType().getQualifiedName();
+			ret.staticField = ref.isStatic();
+			CtExpression<?> target = read.getTarget();
+			if (ret.staticField) {
+				if (target != null && !(target instanceof CtTypeAccess))
+					return null;
+			}
+			// Not Outer.this.f, the outer instance is not in a local
+			else if (!(target instanceof CtThisAccess) || target.getType() == null || !ret.fieldOwner.equals(target.getType().getQualifiedName()))
+				return null;
+		}
+		else if (v instanceof CtVariableRead) {
+			if (((CtVariableRead<?>) v).getVariable() == null)
+				return null;
+			ret.varName = ((CtVariableRead<?>) v).getVariable().getSimpleName();
+			ret.fieldOwner = null;
+		}
+		else
+			return null;
+
+		CtExpression<?> value = ((CtReturn<?>) then).getReturnedExpression();
+		if (value != null && !(value instanceof CtLiteral))
+			return null;
+		ret.hasValue = value != null;
+		ret.value = value == null ? null : ((CtLiteral<?>) value).getValue();
+
+		// A return there would skip a finally block, a monitor exit or the
+		// close of a resource, javac would reject it before super() and in
+		// an initializer block
+		if (ret.stmt.getParent(CtSynchronized.class) != null || ret.stmt.getParent(CtConstructor.class) != null
+				|| ret.stmt.getParent(CtAnonymousExecutable.class) != null)
+			return null;
+		for (CtTry t = ret.stmt.getParent(CtTry.class); t != null; t = t.getParent(CtTry.class))
+			if (t.getFinalizer() != null || (t instanceof CtTryWithResource && !((CtTryWithResource) t).getResources().isEmpty()))
+				return null;
+		return ret;
+	}
+
+	private Map<String, byte[]> getOriginal(String sourcePath) {
+		if (!codes.containsKey(sourcePath)) {
+			String code = null;
+			try {
+				code = new String(Files.readAllBytes(Paths.get(manager.getWorkSrcDir() + Config.filePathSep + sourcePath)));
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Unable to read the original source file: " + sourcePath);
+			}
+			codes.put(sourcePath, code);
+			originals.put(sourcePath, code == null ? null : manager.compileJavaSourceWithDebugInfo(sourcePath, code));
+		}
+		return originals.get(sourcePath);
+	}
+
+	// The line of the statement if nothing else is on it, -1 otherwise
+	private static int getAloneLine(String code, CtStatement stmt) {
+		SourcePosition pos = stmt.getPosition();
+		if (pos == null)
+			return -1;
+		int start = pos.getSourceStart();
+		int end = pos.getSourceEnd();
+		if (start < 0 || end < start || end >= code.length())
+			return -1;
+		int lineStart = code.lastIndexOf('\n', start) + 1;
+		int lineEnd = code.indexOf('\n', end);
+		if (lineEnd < 0)
+			lineEnd = code.length();
+		if (!code.substring(lineStart, lineEnd).trim().equals(code.substring(start, end + 1).trim()))
+			return -1;
+		return pos.getLine();
+	}
+
+	// Returns the classes of the candidate, null if we cannot patch them
+	public synchronized Map<String, byte[]> patch(String sourcePath, Guard g) {
+		if (g == null)
+			return null;
+		Map<String, byte[]> classes = getOriginal(sourcePath);
+		if (classes == null)
+			return null;
+		int line = getAloneLine(codes.get(sourcePath), g.stmt);
+		if (line < 0)
+			return null;
+		try {
+			Site site = findSite(classes, g, line);
+			if (site == null)
+				return null;
+			ClassReader reader = new ClassReader(classes.get(site.className));
+			ClassWriter writer = new HierarchyClassWriter(sourcePath, classes);
+			reader.accept(new GuardClassVisitor(writer, site, g), ClassReader.SKIP_FRAMES);
+			HashMap<String, byte[]> ret = new HashMap<String, byte[]>(classes);
+			ret.put(site.className, writer.toByteArray());
+			patchedCnt ++;
+			System.out.println("[DEBUG] Patched the class files of the candidate directly, " + patchedCnt + " so far");
+			return ret;
+		}
+		catch (RuntimeException e) {
+			// E.g., the class version is too new for our ASM, javac does it then
+			return null;
+		}
+	}
+
+	private Site findSite(Map<String, byte[]> classes, Guard g, int line) {
+		ArrayList<Site> sites = new ArrayList<Site>();
+		// The fields of the classes by class name and field name
+		HashMap<String, HashMap<String, Integer>> fieldAccess = new HashMap<String, HashMap<String, Integer>>();
+		HashMap<String, HashMap<String, String>> fieldDesc = new HashMap<String, HashMap<String, String>>();
+		for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+			HashMap<String, Integer> access = new HashMap<String, Integer>();
+			HashMap<String, String> desc = new HashMap<String, String>();
+			fieldAccess.put(e.getKey(), access);
+			fieldDesc.put(e.getKey(), desc);
+			new ClassReader(e.getValue()).accept(new SiteClassVisitor(e.getKey(), g, line, sites, access, desc), ClassReader.SKIP_FRAMES);
+		}
+		if (sites.size() != 1)
+			return null;
+		Site ret = sites.get(0);
+		// The code of the initializer blocks and of the field initializers
+		// ends up there, where the guard has no source to stand for
+		if (ret.methodName.equals("<init>") || ret.methodName.equals("<clinit>"))
+			return null;
+		boolean isStaticMethod = (ret.methodAccess & Opcodes.ACC_STATIC) != 0;
+		if (g.fieldOwner == null)
+			return ret.localIndex < 0 ? null : ret;
+		if (!g.fieldOwner.equals(ret.className) || !fieldAccess.get(ret.className).containsKey(g.varName))
+			return null;
+		boolean isStaticField = (fieldAccess.get(ret.className).get(g.varName) & Opcodes.ACC_STATIC) != 0;
+		if (isStaticField != g.staticField || (!isStaticField && isStaticMethod))
+			return null;
+		ret.fieldDesc = fieldDesc.get(ret.className).get(g.varName);
+		if (!isReference(Type.getType(ret.fieldDesc)))
+			return null;
+		return ret;
+	}
+
+	private static boolean isReference(Type t) {
+		return t.getSort() == Type.OBJECT || t.getSort() == Type.ARRAY;
+	}
+
+	// Collects the methods with an entry for the line, and the slot of the
+	// local variable of the guard there
+	static class SiteClassVisitor extends ClassVisitor {
+		String className;
+		Guard g;
+		int line;
+		List<Site> sites;
+		Map<String, Integer> fieldAccess;
+		Map<String, String> fieldDesc;
+
+		SiteClassVisitor(String className, Guard g, int line, List<Site> sites, Map<String, Integer> fieldAccess, Map<String, String> fieldDesc) {
+			super(Opcodes.ASM5);
+			this.className = className;
+			this.g = g;
+			this.line = line;
+			this.sites = sites;
+			this.fieldAccess = fieldAccess;
+			this.fieldDesc = fieldDesc;
+		}
+
+		@Override
+		public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+			fieldAccess.put(name, access);
+			fieldDesc.put(name, desc);
+			return null;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+			return new SiteMethodVisitor(this, access, name, desc);
+		}
+	}
+
+	static class SiteMethodVisitor extends MethodVisitor {
+		SiteClassVisitor cv;
+		int access;
+		String name;
+		String desc;
+		ArrayList<Label> starts;
+		// The labels in code order, a reader gives no offsets, and has one
+		// label per offset
+		IdentityHashMap<Label, Integer> order;
+		int localIndex;
+
+		SiteMethodVisitor(SiteClassVisitor cv, int access, String name, String desc) {
+			super(Opcodes.ASM5);
+			this.cv = cv;
+			this.access = access;
+			this.name = name;
+			this.desc = desc;
+			this.starts = new ArrayList<Label>();
+			this.order = new IdentityHashMap<Label, Integer>();
+			this.localIndex = -1;
+		}
+
+		@Override
+		public void visitLabel(Label label) {
+			order.put(label, order.size());
+		}
+
+		@Override
+		public void visitLineNumber(int line, Label start) {
+			if (line == cv.line)
+				starts.add(start);
+		}
+
+		// The local variable table comes after the code
+		@Override
+		public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+			if (starts.size() != 1 || cv.g.fieldOwner != null || !name.equals(cv.g.varName) || !isReference(Type.getType(desc)))
+				return;
+			int pos = order.get(starts.get(0));
+			if (order.containsKey(start) && order.containsKey(end) && order.get(start) <= pos && pos < order.get(end))
+				localIndex = index;
+		}
+
+		@Override
+		public void visitEnd() {
+			for (int i = 0; i < starts.size(); i++) {
+				Site site = new Site();
+				site.className = cv.className;
+				site.methodName = name;
+				site.methodDesc = desc;
+				site.methodAccess = access;
+				site.line = cv.line;
+				site.localIndex = localIndex;
+				cv.sites.add(site);
+			}
+		}
+	}
+
+	static class GuardClassVisitor extends ClassVisitor {
+		Site site;
+		Guard g;
+
+		GuardClassVisitor(ClassVisitor cv, Site site, Guard g) {
+			super(Opcodes.ASM5, cv);
+			this.site = site;
+			this.g = g;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+			MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+			if (mv == null || !name.equals(site.methodName) || !desc.equals(site.methodDesc))
+				return mv;
+			return new GuardMethodVisitor(mv, site, g);
+		}
+	}
+
+	static class GuardMethodVisitor extends MethodVisitor {
+		Site site;
+		Guard g;
+
+		GuardMethodVisitor(MethodVisitor mv, Site site, Guard g) {
+			super(Opcodes.ASM5, mv);
+			this.site = site;
+			this.g = g;
+		}
+
+		@Override
+		public void visitLineNumber(int line, Label start) {
+			super.visitLineNumber(line, start);
+			if (line != site.line)
+				return;
+			String owner = site.className.replace('.', '/');
+			if (g.fieldOwner == null)
+				super.visitVarInsn(Opcodes.ALOAD, site.localIndex);
+			else if (g.staticField)
+				super.visitFieldInsn(Opcodes.GETSTATIC, owner, g.varName, site.fieldDesc);
+			else {
+				super.visitVarInsn(Opcodes.ALOAD, 0);
+				super.visitFieldInsn(Opcodes.GETFIELD, owner, g.varName, site.fieldDesc);
+			}
+			Label skip = new Label();
+			super.visitJumpInsn(Opcodes.IFNONNULL, skip);
+			pushReturn(this, Type.getReturnType(site.methodDesc), g);
+			super.visitLabel(skip);
+		}
+	}
+
+	// Pushes the value of the return as javac would convert it to t and
+	// returns, throws if javac would reject it
+	static void pushReturn(MethodVisitor mv, Type t, Guard g) {
+		Object v = g.value;
+		int sort = t.getSort();
+		if (sort == Type.VOID) {
+			if (g.hasValue)
+				throw new GenesisException("A value for a void method");
+			mv.visitInsn(Opcodes.RETURN);
+			return;
+		}
+		if (!g.hasValue)
+			throw new GenesisException("No value for a non-void method");
+		if (isReference(t)) {
+			if (v != null)
+				throw new GenesisException("A constant for a reference type");
+			mv.visitInsn(Opcodes.ACONST_NULL);
+		}
+		else if (sort == Type.BOOLEAN && v instanceof Boolean)
+			mv.visitInsn(((Boolean) v) ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
+		else if (sort == Type.CHAR && v instanceof Character)
+			pushInt(mv, (Character) v);
+		else if (sort == Type.INT && (v instanceof Integer || v instanceof Character))
+			pushInt(mv, v instanceof Character ? (Character) v : (Integer) v);
+		else if ((sort == Type.BYTE || sort == Type.SHORT || sort == Type.CHAR) && v instanceof Integer && fits(sort, (Integer) v))
+			pushInt(mv, (Integer) v);
+		else if (sort == Type.LONG && (v instanceof Integer || v instanceof Long))
+			mv.visitLdcInsn(((Number) v).longValue());
+		else if (sort == Type.FLOAT && (v instanceof Integer || v instanceof Long || v instanceof Float))
+			mv.visitLdcInsn(((Number) v).floatValue());
+		else if (sort == Type.DOUBLE && v instanceof Number)
+			mv.visitLdcInsn(((Number) v).doubleValue());
+		else
+			throw new GenesisException("Unsupported constant " + v + " for " + t);
+		mv.visitInsn(t.getOpcode(Opcodes.IRETURN));
+	}
+
+	private static boolean fits(int sort, int v) {
+		if (sort == Type.BYTE)
+			return v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE;
+		else if (sort == Type.SHORT)
+			return v >= Short.MIN_VALUE && v <= Short.MAX_VALUE;
+		else
+			return v >= Character.MIN_VALUE && v <= Character.MAX_VALUE;
+	}
+
+	private static void pushInt(MethodVisitor mv, int v) {
+		if (v >= -1 && v <= 5)
+			mv.visitInsn(Opcodes.ICONST_0 + v);
+		else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+			mv.visitIntInsn(Opcodes.BIPUSH, v);
+		else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+			mv.visitIntInsn(Opcodes.SIPUSH, v);
+		else
+			mv.visitLdcInsn(v);
+	}
+
+	// The super class of a class of the candidate, of the class path or of
+	// the JDK, throws if we cannot find it
+	private ClassHeader getHeader(String sourcePath, Map<String, byte[]> classes, String type) {
+		if (headers.containsKey(type))
+			return headers.get(type);
+		String binaryName = type.replace('/', '.');
+		ClassHeader ret = new ClassHeader();
+		try {
+			byte[] bytes = classes.get(binaryName);
+			JavaFileObject file = bytes != null ? null : manager.getClasspathIndex(sourcePath).getClassFile(binaryName);
+			if (bytes == null && file != null) {
+				InputStream in = file.openInputStream();
+				try {
+					bytes = IOUtils.toByteArray(in);
+				}
+				finally {
+					in.close();
+				}
+			}
+			if (bytes != null) {
+				ClassReader reader = new ClassReader(bytes);
+				ret.superName = reader.getSuperName();
+				ret.isInterface = (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+			}
+			else {
+				// Not the loader of genesis, it knows other versions of the libraries
+				Class<?> c = Class.forName(binaryName, false, ClassLoader.getSystemClassLoader().getParent());
+				ret.superName = c.getSuperclass() == null ? null : c.getSuperclass().getName().replace('.', '/');
+				ret.isInterface = c.isInterface();
+			}
+		}
+		catch (IOException e) {
+			throw new GenesisException("Unable to read the class " + type);
+		}
+		catch (ClassNotFoundException e) {
+			throw new GenesisException("Unable to find the class " + type);
+		}
+		headers.put(type, ret);
+		return ret;
+	}
+
+	// COMPUTE_FRAMES needs the class hierarchy, and the default one loads the
+	// classes of the project into genesis
+	class HierarchyClassWriter extends ClassWriter {
+		String sourcePath;
+		Map<String, byte[]> classes;
+
+		HierarchyClassWriter(String sourcePath, Map<String, byte[]> classes) {
+			super(ClassWriter.COMPUTE_FRAMES);
+			this.sourcePath = sourcePath;
+			this.classes = classes;
+		}
+
+		@Override
+		protected String getCommonSuperClass(String type1, String type2) {
+			if (getHeader(sourcePath, classes, type1).isInterface || getHeader(sourcePath, classes, type2).isInterface)
+				return "java/lang/Object";
+			HashSet<String> supers = new HashSet<String>();
+			for (String t = type1; t != null; t = getHeader(sourcePath, classes, t).superName)
+				supers.add(t);
+			for (String t = type2; t != null; t = getHeader(sourcePath, classes, t).superName)
+				if (supers.contains(t))
+					return t;
+			return "java/lang/Object";
+		}
+	}
+}
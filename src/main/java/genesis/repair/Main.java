@@ -29,6 +29,8 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -40,12 +42,17 @@ import genesis.node.MyNodeSig;
 import genesis.repair.localization.StackTraceDefectLocalization;
 import genesis.repair.localization.DefectLocalization;
 import genesis.repair.localization.SuspiciousLocation;
+import genesis.repair.ranking.PatchFeatures;
+import genesis.repair.ranking.RankingModel;
+import genesis.repair.validation.DistributedOracle;
 import genesis.repair.validation.TestingOracle;
 import genesis.repair.validation.ValidationOracle;
 import genesis.repair.validation.ValidationOracle.ValidationResult;
+import genesis.repair.validation.ValidationWorker;
 import genesis.rewrite.CodeRewriter;
 import genesis.space.SearchSpace;
 import genesis.utils.Pair;
+import genesis.Config;
 import genesis.GenesisException;
 
 import org.apache.commons.cli.DefaultParser;
@@ -53,6 +60,49 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 
 public class Main {
+
+	static int patchCnt = 0;
+	static int compileFailCnt = 0;
+	static int duplicateCnt = 0;
+	static HashSet<String> validatedPatches = new HashSet<>();
+	// 0 for no limit, see --max-patches
+	static int maxPatches = 0;
+	static long startTime = 0;
+	// Null if we only count the patches
+	static RepairJournal journal = null;
+
+	// A candidate that waits for its turn with --ranking-model. It does not
+	// hold the patch tree, only the node and the position of the candidate
+	// in the space, see SearchSpace.regenerate().
+	static class RankedCandidate implements Comparable<RankedCandidate> {
+		double score;
+		// The generation order breaks the ties
+		int seq;
+		SuspiciousLocation loc;
+		MyCtNode root;
+		HashSet<MyNodeSig> inside;
+		MyCtNode orig;
+		int transformIdx;
+		int ordinal;
+
+		RankedCandidate(double score, int seq, SuspiciousLocation loc, MyCtNode root, HashSet<MyNodeSig> inside, MyCtNode orig, SearchSpace.GenerationResult res) {
+			this.score = score;
+			this.seq = seq;
+			this.loc = loc;
+			this.root = root;
+			this.inside = inside;
+			this.orig = orig;
+			this.transformIdx = res.transformIdx;
+			this.ordinal = res.ordinal;
+		}
+
+		@Override
+		public int compareTo(RankedCandidate o) {
+			if (score != o.score)
+				return score > o.score ? -1 : 1;
+			return Integer.compare(seq, o.seq);
+		}
+	}
 	
 	private static String getTmpDirectory() {
 		String ret = null;
@@ -64,7 +114,7 @@ public class Main {
 		return ret;
 	}
 	
-	public static void printErr(Exception e) {
+	public static void printErr(Throwable e) {
 		System.out.println("!! Patch generation failed with exception:");
 		e.printStackTrace(System.out);
 		System.out.println("!! Going to skip this patch and continue!");
@@ -72,6 +122,7 @@ public class Main {
 	
 	public static void main(String args[]) {
 		System.out.println("Initial timestamp: " + new Date());
+		startTime = System.currentTimeMillis();
 		Options opts = new Options();
 		opts.addOption(Option.builder("w").longOpt("workdir").hasArg().desc("specify the work directory name to create or use").build());
 		opts.addOption(Option.builder("par").longOpt("par").desc("Use PAR search space, this will override other search space configuration.").build());
@@ -88,6 +139,25 @@ public class Main {
 		opts.addOption(Option.builder("cp").longOpt("count-patches").desc("Do not try to validate patches, only printing the total number generated").build());
         opts.addOption(Option.builder("oob").longOpt("oob-case").desc("Run for OOB cases; at present only changes localization to check for out of "
         		+ "bounds instead of null pointer exceptions.").build());
+        opts.addOption(Option.builder("sch").longOpt("schemata").desc("Compile the candidates for the same node together as a mutant schema, "
+        		+ "a runtime switch selects the candidate to test.").build());
+        opts.addOption(Option.builder("bt").longOpt("batch").desc("Check the candidates for the same node against the negative cases "
+        		+ "in a few runner JVMs, see candidate_batch_size in the global config.").build());
+        opts.addOption(Option.builder("pl").longOpt("pipeline").desc("Rewrite, compile and test candidates in a pipeline of concurrent stages, "
+        		+ "see the pipeline_* options in the global config.").build());
+        opts.addOption(Option.builder("fp").longOpt("first-patch").desc("Stop at the first plausible patch, same as --max-patches 1.").build());
+        opts.addOption(Option.builder("mp").longOpt("max-patches").hasArg().desc("Stop once this many plausible patches are found. The candidates "
+        		+ "are validated speculatively in the pipeline, and the tests in flight are killed at the end.").build());
+        opts.addOption(Option.builder("rs").longOpt("resume").desc("Resume the killed run in the work directory given with -w, the candidates "
+        		+ "in its journal are not validated again. This implies --skip-init.").build());
+        opts.addOption(Option.builder("wk").longOpt("worker").hasArg().desc("Run as a validation worker that listens on the given port, "
+        		+ "see validation_workers in the global config.").build());
+        opts.addOption(Option.builder("wb").longOpt("bind").hasArg().desc("The address that the validation worker listens on, "
+        		+ "default 127.0.0.1.").build());
+        opts.addOption(Option.builder("wc").longOpt("worker-cache").hasArg().desc("The cache directory of the validation worker, "
+        		+ "default worker_cache_dir in the global config.").build());
+        opts.addOption(Option.builder("rk").longOpt("ranking-model").hasArg().desc("Generate the candidates of all the locations first and "
+        		+ "validate them best first by the scores of this model, see RankingTrainer.").build());
         opts.addOption(Option.builder("fo").longOpt("failure-oblivious").desc("Running in failure oblivious mode to catch, print, "
         		+ "and ignore most exceptions during repairs.").build());
 		
@@ -102,17 +172,35 @@ public class Main {
 			System.exit(1);
 		}
 		
+		if (line.hasOption("worker")) {
+			try {
+				ValidationWorker worker = new ValidationWorker(line.getOptionValue("bind", "127.0.0.1"), Integer.parseInt(line.getOptionValue("worker")),
+						line.getOptionValue("worker-cache", Config.workerCacheDir));
+				worker.serve();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The validation worker failed!");
+				System.exit(1);
+			}
+			return;
+		}
+
 		List<String> argList = line.getArgList();
 		if (argList.isEmpty() && !line.hasOption("w") ) {
 			System.out.println("Has to specify a configuration file or an existing work directory!");
 			System.exit(1);
 		}
+		if (line.hasOption("resume") && !argList.isEmpty()) {
+			System.out.println("Resume needs an existing work directory and no configuration file!");
+			System.exit(1);
+		}
 		
 		System.out.println("Initialize workdir...");
 		WorkdirManager manager = null;
 		if (argList.isEmpty()) {
 			String workDir = line.getOptionValue("w");
-			manager = WorkdirManager.createWithExistingWorkdir(workDir, line.hasOption("skip-init"));
+			manager = WorkdirManager.createWithExistingWorkdir(workDir, line.hasOption("skip-init") || line.hasOption("resume"));
 		}
 		else {
 			String workDir = null;
@@ -204,45 +292,98 @@ public class Main {
 			System.out.println("Use the search space from: " + Arrays.toString(spaceFiles) + " and " + Arrays.toString(candidateDirs));
 			space = new SearchSpace(spaceFiles, candidateDirs);
 		}
+		if (Config.generationThreads > 1)
+			space.setGenerationPool(new ForkJoinPool(Config.generationThreads));
+		
+		if (line.hasOption("max-patches"))
+			maxPatches = Integer.parseInt(line.getOptionValue("max-patches"));
+		else if (line.hasOption("first-patch"))
+			maxPatches = 1;
+		// A patch limit validates the candidates in the pipeline, unless another mode is asked for
+		boolean usePipeline = line.hasOption("pipeline") || (maxPatches > 0 && !line.hasOption("schemata") && !line.hasOption("batch"));
+		if (line.hasOption("pipeline") && line.hasOption("schemata")) {
+			System.out.println("The pipeline mode does not support mutant schemata!");
+			System.exit(1);
+		}
+		if (line.hasOption("pipeline") && line.hasOption("batch")) {
+			System.out.println("The pipeline mode does not support candidate batches!");
+			System.exit(1);
+		}
+		if (line.hasOption("ranking-model") && (line.hasOption("schemata") || line.hasOption("batch"))) {
+			System.out.println("The ranking mode does not support mutant schemata or candidate batches!");
+			System.exit(1);
+		}
+		RankingModel ranker = null;
+		PriorityQueue<RankedCandidate> ranked = null;
+		if (line.hasOption("ranking-model") && !line.hasOption("count-patches")) {
+			try {
+				ranker = RankingModel.load(line.getOptionValue("ranking-model"));
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Unable to read the ranking model!");
+				System.exit(1);
+			}
+			System.out.println("Rank the candidates with " + ranker.size() + " feature weights");
+			ranked = new PriorityQueue<RankedCandidate>();
+		}
 		
 		ASTNodeFetcher fetcher = new ASTNodeFetcher(manager);
-		int patchCnt = 0;
 		int candidateCnt = 0;
-		int compileFailCnt = 0;
-		int duplicateCnt = 0;
-		ValidationOracle oracle = new TestingOracle(manager);
+		ValidationOracle oracle = null;
+		if (Config.validationWorkers.trim().isEmpty())
+			oracle = new TestingOracle(manager);
+		else
+			oracle = new DistributedOracle(manager);
 		HashMap<MyCtNode, HashSet<String>> tested = new HashMap<MyCtNode, HashSet<String>>();
-        HashSet<String> validatedPatches = new HashSet<>();
-		for (SuspiciousLocation loc : locs) {
-			HashMap<MyCtNode, HashSet<MyNodeSig>> fetchResult;
-			// All these trys are hacks to not die when various
-			// exceptions get thrown by the rewriter, typechecker, etc,
-			// during failure oblivious mode. This mode is helpful
-			// if we want to force the system to continue to get
-			// some results even with error.
+		if (!line.hasOption("count-patches")) {
 			try {
-				fetchResult = fetcher.fetch(loc);
-				/* Some localization strategies may provide lines that do
-				   not correspond to statements.
-				*/
-				if (fetchResult == null) { continue; }
-			} catch (Exception err) {
-				if (line.hasOption("fo"))
-					printErr(err);
-				else
-					throw err;
-				continue;
+				journal = manager.openJournal(line.hasOption("resume"));
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Unable to open the repair journal!");
+				System.exit(1);
 			}
-			for (Map.Entry<MyCtNode, HashSet<MyNodeSig>> e : fetchResult.entrySet()) {
-				MyCtNode root;
-				ArrayList<Pair<HashSet<MyNodeSig>, MyCtNode>> candidatePairs;
+			if (line.hasOption("resume"))
+				System.out.println("Resume with " + journal.size() + " candidates in the journal");
+		}
+		BytecodePatcher patcher = Config.bytecodeTemplates ? new BytecodePatcher(manager) : null;
+		RepairPipeline pipeline = null;
+		if (usePipeline && !line.hasOption("count-patches")) {
+			pipeline = new RepairPipeline(manager, oracle, new RepairPipeline.ResultHandler() {
+				@Override
+				public void handle(RepairPipeline.Candidate c) {
+					recordResult(c.loc, Integer.toString(c.res.getGeneratorIndex()), c.index, c.newCodeStr, c.vres);
+				}
+			}, line.hasOption("fo"));
+			pipeline.setMaxPatches(maxPatches);
+			if (line.hasOption("resume"))
+				pipeline.setJournal(journal);
+			pipeline.setBytecodePatcher(patcher);
+		}
+		final boolean useSchemata = line.hasOption("schemata");
+		final boolean useBatch = line.hasOption("batch");
+		// Without -fo the first error leaves the loop, the pipeline must not
+		// outlive it
+		boolean searched = false;
+		try {
+			search:
+			for (SuspiciousLocation loc : locs) {
+				if (isDone(pipeline))
+					break search;
+				HashMap<MyCtNode, HashSet<MyNodeSig>> fetchResult;
+				// All these trys are hacks to not die when various
+				// exceptions get thrown by the rewriter, typechecker, etc,
+				// during failure oblivious mode. This mode is helpful
+				// if we want to force the system to continue to get
+				// some results even with error.
 				try {
-					MyCtNode node = e.getKey();
-					HashSet<MyNodeSig> insides = e.getValue();
-					root = fetcher.fetchRoot(loc);
-					//System.out.println("Node:\n" + node);
-					candidatePairs = ASTNodeCollector.getCandidateNodes(insides, node);
-					//System.out.println("Size: " + candidatePairs.size());
+					fetchResult = fetcher.fetch(loc);
+					/* Some localization strategies may provide lines that do
+					   not correspond to statements.
+					*/
+					if (fetchResult == null) { continue; }
 				} catch (Exception err) {
 					if (line.hasOption("fo"))
 						printErr(err);
@@ -250,11 +391,16 @@ public class Main {
 						throw err;
 					continue;
 				}
-				for (Pair<HashSet<MyNodeSig>, MyCtNode> p : candidatePairs) {
-					//System.out.println(p.y);
-					List<SearchSpace.GenerationResult> candidatePatches;
+				for (Map.Entry<MyCtNode, HashSet<MyNodeSig>> e : fetchResult.entrySet()) {
+					MyCtNode root;
+					ArrayList<Pair<HashSet<MyNodeSig>, MyCtNode>> candidatePairs;
 					try {
-						candidatePatches = space.applyTo(p.x, p.y);
+						MyCtNode node = e.getKey();
+						HashSet<MyNodeSig> insides = e.getValue();
+						root = fetcher.fetchRoot(loc);
+						//System.out.println("Node:\n" + node);
+						candidatePairs = ASTNodeCollector.getCandidateNodes(insides, node);
+						//System.out.println("Size: " + candidatePairs.size());
 					} catch (Exception err) {
 						if (line.hasOption("fo"))
 							printErr(err);
@@ -262,86 +408,269 @@ public class Main {
 							throw err;
 						continue;
 					}
-					for (SearchSpace.GenerationResult res : candidatePatches) {
-						MyCtNode candidatePatch = res.patch;
-						try {
-							candidateCnt ++;
-							System.out.println("=====================================");
-							System.out.println("Patch timestamp: " + new Date());
-							System.out.println("Candidte patch: " + candidateCnt);
-							System.out.println("Localization: " + loc);
-							// XXX: Just combine the two index together in case of multiple search space
-							System.out.println("Generator index: " + (res.sidx * 10000 + res.gidx) ); 
-							CodeRewriter rewriter = new CodeRewriter(root);
-							String newCodeStr;
-							rewriter.setCommentString("genesis generated change");
-							rewriter.addMapping(p.y, candidatePatch);
-							newCodeStr = rewriter.rewrite();
-							System.out.println("Validating:");
-							String patchSnippet = candidatePatch.codeString(p.y);
-							System.out.println(patchSnippet);
-							System.out.println("Replacing:");
-							System.out.println(p.y.codeString());					
-							if (tested.containsKey(p.y)) {
-								HashSet<String> tmp = tested.get(p.y);
-								if (tmp.contains(patchSnippet)) {
-									System.out.println("Duplicate tested patch, ignored!");
-									duplicateCnt ++;
-									continue;
+					for (Pair<HashSet<MyNodeSig>, MyCtNode> p : candidatePairs) {
+						if (isDone(pipeline))
+							break search;
+						//System.out.println(p.y);
+						final MutantSchemata schema = new MutantSchemata(root, p.y);
+						final ArrayList<String> batchGenerators = new ArrayList<String>();
+						final ArrayList<String> batchCodes = new ArrayList<String>();
+						final ArrayList<Integer> batchIndexes = new ArrayList<Integer>();
+						final ArrayList<String> schemaGenerators = new ArrayList<String>();
+						final ArrayList<Integer> schemaIndexes = new ArrayList<Integer>();
+						CandidateGroup group = new CandidateGroup() {
+							@Override
+							public boolean add(MyCtNode patch, String generator, int index, String newCodeStr) {
+								if (useSchemata && schema.accepts(patch)) {
+									schema.add(patch, newCodeStr);
+									schemaGenerators.add(generator);
+									schemaIndexes.add(index);
+									return true;
 								}
-								else
-									tmp.add(patchSnippet);
+								if (useBatch) {
+									batchGenerators.add(generator);
+									batchCodes.add(newCodeStr);
+									batchIndexes.add(index);
+									return true;
+								}
+								return false;
 							}
-							else {
-								HashSet<String> tmp = new HashSet<String>();
-								tmp.add(patchSnippet);
-								tested.put(p.y, tmp);
+						};
+						// The candidates are generated one at a time, so a search that
+						// stops early does not pay for the rest
+						SearchSpace.GenerationStream candidatePatches = space.iterate(p.x, p.y);
+						while (true) {
+							SearchSpace.GenerationResult res;
+							try {
+								if (!candidatePatches.hasNext())
+									break;
+								res = candidatePatches.next();
+							} catch (Exception err) {
+								if (line.hasOption("fo"))
+									printErr(err);
+								else
+									throw err;
+								break;
 							}
-                            if (validatedPatches.contains(newCodeStr)) {
-								System.out.println("Duplicate validated patch, ignored!");
-								duplicateCnt++;
-								continue;
-                            }
-							if (line.hasOption("count-patches")) {
+							MyCtNode candidatePatch = res.patch;
+							if (isDone(pipeline))
+								break;
+							if (ranked != null) {
+								try {
+									double score = ranker.score(PatchFeatures.extract(res.transform, res.getGeneratorIndex(), p.y, candidatePatch))
+											+ Config.rankingLocationWeight * loc.getSuspiciousness();
+									ranked.add(new RankedCandidate(score, ranked.size(), loc, root, p.x, p.y, res));
+								} catch (Exception err) {
+									if (line.hasOption("fo"))
+										printErr(err);
+									else
+										throw err;
+								}
 								continue;
 							}
-							ValidationResult vres = oracle.validate(loc.getSourcePath(), newCodeStr, true); 
-							if (vres == ValidationResult.PASS) {
-								validatedPatches.add(newCodeStr);
-								patchCnt ++;
-								System.out.println("We found a patch, total patch cnt: " + patchCnt);
-								dumpPatchToFile(newCodeStr, loc.getSourcePath(), "__patch" + patchCnt + ".java");
+							try {
+								candidateCnt ++;
+								validateCandidate(line, pipeline, oracle, patcher, tested, group, candidateCnt, loc, root, p.y, res, null);
+							} catch (Exception err) {
+								if (line.hasOption("fo"))
+									printErr(err);
+								else
+									throw err;
+								continue;
 							}
-							else if (vres == ValidationResult.COMPILE_FAIL) {
-								compileFailCnt ++;
+						}
+						// Stops the generation in the background if we left early
+						candidatePatches.close();
+						if (!batchCodes.isEmpty()) {
+							try {
+								List<ValidationResult> batchRes = oracle.validateBatch(loc, batchGenerators, batchCodes, true);
+								for (int i = 0; i < batchRes.size(); i++)
+									recordResult(loc, batchGenerators.get(i), batchIndexes.get(i), batchCodes.get(i), batchRes.get(i));
+							} catch (Exception err) {
+								if (line.hasOption("fo"))
+									printErr(err);
+								else
+									throw err;
 							}
+						}
+						if (schema.size() == 0)
+							continue;
+						try {
+							List<ValidationResult> schemaRes = schema.validate(oracle, loc, true);
+							for (int i = 0; i < schemaRes.size(); i++)
+								recordResult(loc, schemaGenerators.get(i), schemaIndexes.get(i), schema.getCode(i), schemaRes.get(i));
 						} catch (Exception err) {
 							if (line.hasOption("fo"))
 								printErr(err);
 							else
 								throw err;
-							continue;
 						}
 					}
 				}
 			}
+			if (ranked != null)
+				candidateCnt = validateRanked(line, space, ranked, pipeline, oracle, patcher, tested, candidateCnt);
+			searched = true;
+		}
+		finally {
+			if (pipeline != null && !searched)
+				pipeline.abort();
 		}
+		if (pipeline != null)
+			pipeline.finish();
 		if (line.hasOption("count-patches")) {
 		  System.out.println("Total number of candidate patches: " + candidateCnt);
 		  System.out.println("Total number of duplicate patches: " + duplicateCnt);
 		  System.out.println("Total number of candidate failing malform checks: " + space.getFailedCheckCnt());
 		} else {
-		  System.out.println("Explored the whole space, we got: " + patchCnt);
+		  if (isDone(pipeline))
+			  System.out.println("Stopped after enough patches, we got: " + patchCnt);
+		  else
+			  System.out.println("Explored the whole space, we got: " + patchCnt);
 		  System.out.println("Total number of candidate patches: " + candidateCnt);
 		  System.out.println("Total number of compilation failures: " + compileFailCnt);
 		  System.out.println("Total number of duplicate patches: " + duplicateCnt);
 		  System.out.println("Total number of candidate failing malform checks: " + space.getFailedCheckCnt());
 		}
+		if (journal != null)
+			journal.close();
 		if (!line.hasOption("w"))
 			manager.destroyWorkdir();
 		System.out.println("Final timestamp: " + new Date());
 	}
 
+	// Validates the candidates of --ranking-model in the order of their
+	// scores, one at a time or in the pipeline
+	private static int validateRanked(CommandLine line, SearchSpace space, PriorityQueue<RankedCandidate> ranked, RepairPipeline pipeline,
+			ValidationOracle oracle, BytecodePatcher patcher, HashMap<MyCtNode, HashSet<String>> tested, int candidateCnt) {
+		System.out.println("Validate " + ranked.size() + " ranked candidates best first");
+		while (!ranked.isEmpty() && !isDone(pipeline)) {
+			RankedCandidate c = ranked.poll();
+			try {
+				SearchSpace.GenerationResult res = space.regenerate(c.inside, c.orig, c.transformIdx, c.ordinal);
+				if (res == null) {
+					System.out.println("[WARN]Unable to generate a ranked candidate again, skipped!");
+					continue;
+				}
+				candidateCnt ++;
+				validateCandidate(line, pipeline, oracle, patcher, tested, null, candidateCnt, c.loc, c.root, c.orig, res, c.score);
+			} catch (Exception err) {
+				if (line.hasOption("fo"))
+					printErr(err);
+				else
+					throw err;
+			}
+		}
+		return candidateCnt;
+	}
+
+	// Groups the candidates that the schemata and batch modes validate
+	// together, see validateCandidate()
+	interface CandidateGroup {
+		// Returns false if the candidate does not go in the group
+		boolean add(MyCtNode patch, String generator, int index, String newCodeStr);
+	}
+
+	// Validates one candidate of the search or of the ranked queue: the
+	// duplicate checks, the pipeline, the --resume journal and the
+	// validation. A candidate that goes in the group (may be null) is
+	// validated later with the group. The score is null without
+	// --ranking-model.
+	private static void validateCandidate(CommandLine line, RepairPipeline pipeline, ValidationOracle oracle, BytecodePatcher patcher,
+			HashMap<MyCtNode, HashSet<String>> tested, CandidateGroup group, int index, SuspiciousLocation loc, MyCtNode root,
+			MyCtNode orig, SearchSpace.GenerationResult res, Double score) {
+		System.out.println("=====================================");
+		System.out.println("Patch timestamp: " + new Date());
+		System.out.println("Candidte patch: " + index);
+		System.out.println("Localization: " + loc);
+		System.out.println("Generator index: " + res.getGeneratorIndex());
+		if (score != null)
+			System.out.println("Ranking score: " + score);
+		String patchSnippet = res.patch.codeString(orig);
+		System.out.println("Validating:");
+		System.out.println(patchSnippet);
+		System.out.println("Replacing:");
+		System.out.println(orig.codeString());
+		if (isTestedSnippet(tested, orig, patchSnippet)) {
+			System.out.println("Duplicate tested patch, ignored!");
+			countDuplicate();
+			return;
+		}
+		if (pipeline != null) {
+			pipeline.submit(index, loc, root, orig, res);
+			return;
+		}
+		CodeRewriter rewriter = new CodeRewriter(root);
+		rewriter.setCommentString("genesis generated change");
+		rewriter.addMapping(orig, res.patch);
+		String newCodeStr = rewriter.rewrite();
+		if (validatedPatches.contains(newCodeStr)) {
+			System.out.println("Duplicate validated patch, ignored!");
+			countDuplicate();
+			return;
+		}
+		if (line.hasOption("count-patches"))
+			return;
+		String generator = Integer.toString(res.getGeneratorIndex());
+		if (line.hasOption("resume") && journal.get(loc.getSourcePath(), newCodeStr) != null) {
+			System.out.println("Validated before the resume, reuse the result!");
+			recordResult(loc, generator, index, newCodeStr, journal.get(loc.getSourcePath(), newCodeStr));
+			return;
+		}
+		if (group != null && group.add(res.patch, generator, index, newCodeStr))
+			return;
+		Map<String, byte[]> patched = patcher == null ? null : patcher.patch(loc.getSourcePath(), BytecodePatcher.match(orig, res.patch));
+		ValidationResult vres;
+		if (patched != null)
+			vres = oracle.validateBytecodes(loc, generator, patched, true);
+		else
+			vres = oracle.validate(loc, generator, newCodeStr, true);
+		recordResult(loc, generator, index, newCodeStr, vres);
+	}
+
+	// Whether we found the patches that we were asked for
+	private static synchronized boolean isDone(RepairPipeline pipeline) {
+		if (pipeline != null && pipeline.isCancelled())
+			return true;
+		return maxPatches > 0 && patchCnt >= maxPatches;
+	}
+
+	private static boolean isTestedSnippet(HashMap<MyCtNode, HashSet<String>> tested, MyCtNode orig, String patchSnippet) {
+		if (!tested.containsKey(orig))
+			tested.put(orig, new HashSet<String>());
+		return !tested.get(orig).add(patchSnippet);
+	}
+
+	// The pipeline commits results from its own thread
+	private static synchronized void countDuplicate() {
+		duplicateCnt ++;
+	}
+
+	private static synchronized void recordResult(SuspiciousLocation loc, String generator, int index, String newCodeStr, ValidationResult vres) {
+		journal.record(loc, generator, index, newCodeStr, vres);
+		if (vres == ValidationResult.PASS) {
+			// The speculative pipeline may pass more candidates than we asked for
+			if (maxPatches > 0 && patchCnt >= maxPatches) {
+				System.out.println("Enough patches, ignored!");
+				return;
+			}
+			// The pipeline may validate the same code twice before the first one is recorded
+			if (!validatedPatches.add(newCodeStr)) {
+				System.out.println("Duplicate validated patch, ignored!");
+				duplicateCnt ++;
+				return;
+			}
+			patchCnt ++;
+			System.out.println("We found a patch, total patch cnt: " + patchCnt);
+			if (patchCnt == 1)
+				System.out.println("Time to first patch: " + (System.currentTimeMillis() - startTime) + "ms");
+			dumpPatchToFile(newCodeStr, loc.getSourcePath(), "__patch" + patchCnt + ".java");
+		}
+		else if (vres == ValidationResult.COMPILE_FAIL) {
+			compileFailCnt ++;
+		}
+	}
+
 	private static void dumpPatchToFile(String newCodeStr, String sourcePath, String fname) {
 		BufferedWriter writer = null;
 		try {
@@ -0,0 +1,99 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import genesis.node.MyCtNode;
+import genesis.repair.localization.SuspiciousLocation;
+import genesis.repair.validation.ValidationOracle;
+import genesis.repair.validation.ValidationOracle.ValidationResult;
+import genesis.rewrite.CodeRewriter;
+
+/**
+ * Collects the candidates for one replaced node and validates them as a
+ * single meta-program, in which a runtime switch selects the active
+ * candidate. If the meta-program does not compile, we bisect the group
+ * until we find the candidates that fail to compile.
+ */
+public class MutantSchemata {
+
+	public static final String SelectorProperty = "genesis.schema";
+	public static final String SelectorExpr = "java.lang.Integer.getInteger(\"" + SelectorProperty + "\", -1).intValue()";
+
+	MyCtNode root;
+	MyCtNode orig;
+	ArrayList<MyCtNode> patches;
+	ArrayList<String> codes;
+
+	public MutantSchemata(MyCtNode root, MyCtNode orig) {
+		this.root = root;
+		this.orig = orig;
+		this.patches = new ArrayList<MyCtNode>();
+		this.codes = new ArrayList<String>();
+	}
+
+	public boolean accepts(MyCtNode patch) {
+		CodeRewriter rewriter = new CodeRewriter(root);
+		rewriter.addMapping(orig, patch);
+		return rewriter.canRewriteSchema();
+	}
+
+	public void add(MyCtNode patch, String newCodeStr) {
+		patches.add(patch);
+		codes.add(newCodeStr);
+	}
+
+	public String getCode(int i) {
+		return codes.get(i);
+	}
+
+	public int size() {
+		return patches.size();
+	}
+
+	public List<ValidationResult> validate(ValidationOracle oracle, SuspiciousLocation loc, boolean verbose) {
+		return validateRange(oracle, loc, 0, patches.size(), verbose);
+	}
+
+	private List<ValidationResult> validateRange(ValidationOracle oracle, SuspiciousLocation loc, int start, int end, boolean verbose) {
+		ArrayList<ValidationResult> ret = new ArrayList<ValidationResult>();
+		if (start >= end)
+			return ret;
+		CodeRewriter rewriter = new CodeRewriter(root);
+		rewriter.setCommentString("genesis generated schema");
+		for (int i = start; i < end; i++)
+			rewriter.addMapping(orig, patches.get(i));
+		String schemaCodeStr = rewriter.rewriteSchema(SelectorExpr);
+		System.out.println("Validating schema with " + (end - start) + " candidates");
+		List<ValidationResult> res = oracle.validateSchema(loc, schemaCodeStr, SelectorProperty, end - start, verbose);
+		if (res != null)
+			return res;
+		// The candidate may still compile on its own, e.g., if the schema 
+		// introduces unreachable code after it
+		if (end - start == 1) {
+			ret.add(oracle.validate(loc, codes.get(start), verbose));
+			return ret;
+		}
+		int mid = (start + end) / 2;
+		ret.addAll(validateRange(oracle, loc, start, mid, verbose));
+		ret.addAll(validateRange(oracle, loc, mid, end, verbose));
+		return ret;
+	}
+}
@@ -0,0 +1,154 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import genesis.GenesisException;
+import genesis.repair.localization.SuspiciousLocation;
+import genesis.repair.validation.ValidationOracle.ValidationResult;
+
+/**
+ * An append-only log of the validated candidates of a repair run, one line
+ * per candidate:
+ *   verdict patch-hash candidate-index generator-index location
+ * The patch hash covers the source path and the rewritten source, so a
+ * rerun with --resume finds the verdict of every candidate that the killed
+ * run got to, and skips its validation. The lines are synced to the disk in
+ * batches, and right away for a plausible patch.
+ *
+ * Every run appends to the journal of the earlier runs, --resume only
+ * decides whether their verdicts are trusted. A later line of the same
+ * patch overrides the earlier ones.
+ */
+public class RepairJournal {
+
+	static final int SyncBatch = 32;
+
+	HashMap<String, ValidationResult> results;
+	// Whether get() answers from the journal
+	boolean trusted;
+	FileOutputStream fout;
+	BufferedWriter writer;
+	int unsynced;
+
+	// The old entries are always kept, get() only trusts them if trusted
+	public RepairJournal(String fname, boolean trusted) throws IOException {
+		results = new HashMap<String, ValidationResult>();
+		this.trusted = trusted;
+		if (Files.exists(Paths.get(fname))) {
+			BufferedReader reader = new BufferedReader(new FileReader(fname));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String[] tokens = line.trim().split(" ");
+				// The last line may be truncated if genesis was killed
+				if (tokens.length < 8)
+					continue;
+				try {
+					results.put(tokens[1], ValidationResult.valueOf(tokens[0]));
+				}
+				catch (IllegalArgumentException ignore) { }
+			}
+			reader.close();
+		}
+		fout = new FileOutputStream(fname, true);
+		writer = new BufferedWriter(new OutputStreamWriter(fout, StandardCharsets.UTF_8));
+		unsynced = 0;
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	public static String hashPatch(String sourcePath, String newCodeStr) {
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new GenesisException("SHA-1 is not available!");
+		}
+		md.update(sourcePath.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		md.update(newCodeStr.getBytes(StandardCharsets.UTF_8));
+		StringBuffer ret = new StringBuffer();
+		for (byte b : md.digest())
+			ret.append(String.format("%02x", b));
+		return ret.toString();
+	}
+
+	// Null if the candidate is not in the journal, or the journal is not trusted
+	public synchronized ValidationResult get(String sourcePath, String newCodeStr) {
+		if (!trusted)
+			return null;
+		return results.get(hashPatch(sourcePath, newCodeStr));
+	}
+
+	public synchronized void record(SuspiciousLocation loc, String generator, int index, String newCodeStr, ValidationResult res) {
+		String hash = hashPatch(loc.getSourcePath(), newCodeStr);
+		// A run without --resume validates the candidate again, and its
+		// verdict may differ
+		if (results.get(hash) == res)
+			return;
+		results.put(hash, res);
+		try {
+			writer.write(res + " " + hash + " " + index + " " + generator + " " + loc);
+			writer.newLine();
+			writer.flush();
+			unsynced ++;
+			if (unsynced >= SyncBatch || res == ValidationResult.PASS)
+				sync();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to write down the repair journal!");
+		}
+	}
+
+	private void sync() throws IOException {
+		fout.getFD().sync();
+		unsynced = 0;
+	}
+
+	public synchronized int size() {
+		return results.size();
+	}
+
+	public synchronized void close() {
+		try {
+			writer.flush();
+			if (unsynced > 0)
+				sync();
+			writer.close();
+		}
+		catch (IOException ignore) { }
+	}
+}
@@ -0,0 +1,438 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import genesis.Config;
+import genesis.GenesisException;
+import genesis.node.MyCtNode;
+import genesis.repair.localization.SuspiciousLocation;
+import genesis.repair.validation.ValidationOracle;
+import genesis.repair.validation.ValidationOracle.ValidationResult;
+import genesis.rewrite.CodeRewriter;
+import genesis.space.SearchSpace;
+
+/**
+ * Validates candidate patches with a pipeline of bounded queues. The caller
+ * is the generation stage and submits candidates in order, then rewriting,
+ * compilation and testing run in their own worker threads. Results are
+ * handed back in submission order, so the patch numbering stays the same
+ * as the sequential loop in Main.
+ *
+ * Every test worker runs the test JVMs in its own copy of the work source
+ * directory and with its own java.io.tmpdir, so that concurrent test runs
+ * do not step on each other's files.
+ *
+ * With a patch limit (see setMaxPatches()), the pipeline validates the
+ * candidates speculatively and cancels itself as soon as enough of them
+ * pass: the queued candidates are dropped, and the test JVMs in flight are
+ * killed. The candidates that pass still commit in submission order.
+ */
+public class RepairPipeline {
+
+	public static class Candidate {
+		public final long seq;
+		// The candidate number of Main
+		public final int index;
+		public final SuspiciousLocation loc;
+		public final MyCtNode root;
+		public final MyCtNode orig;
+		public final SearchSpace.GenerationResult res;
+		public String newCodeStr;
+		// Set by the rewriter if BytecodePatcher may build the classes
+		public BytecodePatcher.Guard guard;
+		public Path classDir;
+		public ValidationResult vres;
+		public Throwable err;
+
+		Candidate(long seq, int index, SuspiciousLocation loc, MyCtNode root, MyCtNode orig, SearchSpace.GenerationResult res) {
+			this.seq = seq;
+			this.index = index;
+			this.loc = loc;
+			this.root = root;
+			this.orig = orig;
+			this.res = res;
+			this.newCodeStr = null;
+			this.guard = null;
+			this.classDir = null;
+			this.vres = null;
+			this.err = null;
+		}
+	}
+
+	public interface ResultHandler {
+		void handle(Candidate c);
+	}
+
+	// Marks the end of the stream in every queue
+	private static final Candidate EndMark = new Candidate(-1, -1, null, null, null, null);
+
+	WorkdirManager manager;
+	ValidationOracle oracle;
+	ResultHandler handler;
+	boolean failureOblivious;
+
+	BlockingQueue<Candidate> rewriteQueue, compileQueue, testQueue, resultQueue;
+	ArrayList<Thread> rewriters, compilers, testers;
+	Thread committer;
+	long nextSeq;
+	volatile Throwable firstErr;
+	ArrayList<Path> workerTmpDirs;
+	// 0 for no limit
+	int maxPatches;
+	AtomicInteger passedCnt;
+	volatile boolean cancelled;
+	// The candidates of a resumed run found in it skip compiling and testing, null if none
+	RepairJournal journal;
+	// Null if javac compiles all the candidates
+	BytecodePatcher patcher;
+
+	public RepairPipeline(WorkdirManager manager, ValidationOracle oracle, ResultHandler handler, boolean failureOblivious) {
+		this.manager = manager;
+		this.oracle = oracle;
+		this.handler = handler;
+		this.failureOblivious = failureOblivious;
+		this.nextSeq = 0;
+		this.firstErr = null;
+		this.workerTmpDirs = new ArrayList<Path>();
+		this.maxPatches = 0;
+		this.passedCnt = new AtomicInteger(0);
+		this.cancelled = false;
+		this.journal = null;
+		this.patcher = null;
+		rewriteQueue = new ArrayBlockingQueue<Candidate>(Config.pipelineQueueSize);
+		compileQueue = new ArrayBlockingQueue<Candidate>(Config.pipelineQueueSize);
+		testQueue = new ArrayBlockingQueue<Candidate>(Config.pipelineQueueSize);
+		// The committer must never block the other stages
+		resultQueue = new ArrayBlockingQueue<Candidate>(Config.pipelineQueueSize * 4 +
+				Config.pipelineRewriteWorkers + Config.pipelineCompileWorkers + Config.pipelineTestWorkers);
+
+		rewriters = new ArrayList<Thread>();
+		for (int i = 0; i < Config.pipelineRewriteWorkers; i++)
+			rewriters.add(new RewriteWorker());
+		compilers = new ArrayList<Thread>();
+		for (int i = 0; i < Config.pipelineCompileWorkers; i++)
+			compilers.add(new CompileWorker());
+		testers = new ArrayList<Thread>();
+		for (int i = 0; i < Config.pipelineTestWorkers; i++)
+			testers.add(new TestWorker(createWorkerOracle(i)));
+		committer = new CommitWorker();
+
+		for (Thread t : rewriters) t.start();
+		for (Thread t : compilers) t.start();
+		for (Thread t : testers) t.start();
+		committer.start();
+	}
+
+	public void setMaxPatches(int maxPatches) {
+		this.maxPatches = maxPatches;
+	}
+
+	public void setJournal(RepairJournal journal) {
+		this.journal = journal;
+	}
+
+	public void setBytecodePatcher(BytecodePatcher patcher) {
+		this.patcher = patcher;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	// Drops the candidates in the queues, kills the tests in flight and
+	// interrupts the javac runs in flight, the results that are already done
+	// still commit
+	public void cancel() {
+		cancelled = true;
+		oracle.cancelAll();
+		for (Thread t : compilers)
+			t.interrupt();
+	}
+
+	private ValidationOracle createWorkerOracle(int idx) {
+		try {
+			String workCopy = manager.createWorkingCopy("src_worker" + idx);
+			Path tmpDir = Files.createTempDirectory(Paths.get(Config.tmpDirectory), Config.tmpDirPrefix + "_worker" + idx);
+			workerTmpDirs.add(tmpDir);
+			return oracle.createWorkerOracle(workCopy, tmpDir.toString());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			throw new GenesisException("Unable to create the isolated directories for test worker " + idx);
+		}
+	}
+
+	// The stage threads are daemons, so a run that dies without finish()
+	// does not hang on them
+	abstract class StageWorker extends Thread {
+		BlockingQueue<Candidate> in;
+
+		StageWorker(BlockingQueue<Candidate> in) {
+			super();
+			this.in = in;
+			setDaemon(true);
+		}
+
+		abstract void process(Candidate c) throws Exception;
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Candidate c;
+					try {
+						c = in.take();
+					}
+					catch (InterruptedException e) {
+						// cancel() interrupts the workers, they still drain the queue
+						if (cancelled)
+							continue;
+						throw e;
+					}
+					if (c == EndMark) {
+						// Let the other workers of the stage see it too
+						Uninterruptibles.putUninterruptibly(in, EndMark);
+						break;
+					}
+					// The workers still drain the queue, so that finish() returns
+					if (cancelled) {
+						dropCandidate(c);
+						continue;
+					}
+					// An Error from Spoon must not leave the stage without workers
+					try {
+						process(c);
+					}
+					catch (Throwable e) {
+						// The candidate that cancel() interrupted has no result
+						if (cancelled) {
+							Thread.interrupted();
+							dropCandidate(c);
+							continue;
+						}
+						c.err = e;
+						resultQueue.put(c);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void dropCandidate(Candidate c) {
+		if (c.classDir != null)
+			FileUtils.deleteQuietly(c.classDir.toFile());
+	}
+
+	class RewriteWorker extends StageWorker {
+		RewriteWorker() {
+			super(rewriteQueue);
+		}
+
+		@Override
+		void process(Candidate c) throws Exception {
+			CodeRewriter rewriter = new CodeRewriter(c.root);
+			rewriter.setCommentString("genesis generated change");
+			rewriter.addMapping(c.orig, c.res.patch);
+			c.newCodeStr = rewriter.rewrite();
+			// Only reads the shared trees, see pipeline_rewrite_workers
+			if (patcher != null)
+				c.guard = BytecodePatcher.match(c.orig, c.res.patch);
+			compileQueue.put(c);
+		}
+	}
+
+	class CompileWorker extends StageWorker {
+		CompileWorker() {
+			super(compileQueue);
+		}
+
+		@Override
+		void process(Candidate c) throws Exception {
+			c.vres = journal == null ? null : journal.get(c.loc.getSourcePath(), c.newCodeStr);
+			if (c.vres != null) {
+				countPass(c);
+				resultQueue.put(c);
+				return;
+			}
+			Map<String, byte[]> bytecodes = c.guard == null ? null : patcher.patch(c.loc.getSourcePath(), c.guard);
+			if (bytecodes == null)
+				bytecodes = manager.compileJavaSource(c.loc.getSourcePath(), c.newCodeStr);
+			if (bytecodes != null && oracle.rejectInProcess(bytecodes, Integer.toString(c.res.getGeneratorIndex()), true)) {
+				c.vres = ValidationResult.FAIL;
+				resultQueue.put(c);
+				return;
+			}
+			c.classDir = bytecodes == null ? null : oracle.writeToTempDir(c.loc.getSourcePath(), bytecodes);
+			if (c.classDir == null) {
+				c.vres = ValidationResult.COMPILE_FAIL;
+				resultQueue.put(c);
+			}
+			else
+				testQueue.put(c);
+		}
+	}
+
+	class TestWorker extends StageWorker {
+		ValidationOracle workerOracle;
+
+		TestWorker(ValidationOracle workerOracle) {
+			super(testQueue);
+			this.workerOracle = workerOracle;
+		}
+
+		@Override
+		void process(Candidate c) throws Exception {
+			try {
+				c.vres = workerOracle.validateCompiled(c.classDir, null, c.loc, Integer.toString(c.res.getGeneratorIndex()), true);
+			}
+			finally {
+				FileUtils.deleteQuietly(c.classDir.toFile());
+			}
+			// A cancelled run says nothing about the candidate
+			if (cancelled && c.vres != ValidationResult.PASS)
+				return;
+			countPass(c);
+			resultQueue.put(c);
+		}
+	}
+
+	private void countPass(Candidate c) {
+		if (c.vres == ValidationResult.PASS && maxPatches > 0 && passedCnt.incrementAndGet() >= maxPatches)
+			cancel();
+	}
+
+	class CommitWorker extends Thread {
+		CommitWorker() {
+			super();
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			TreeMap<Long, Candidate> pending = new TreeMap<Long, Candidate>();
+			long expected = 0;
+			try {
+				while (true) {
+					Candidate c = resultQueue.take();
+					if (c == EndMark) {
+						// The cancelled pipeline dropped some candidates, commit the rest in order
+						for (Candidate rest : pending.values())
+							commit(rest);
+						break;
+					}
+					pending.put(c.seq, c);
+					while (pending.containsKey(expected)) {
+						commit(pending.remove(expected));
+						expected ++;
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void commit(Candidate c) {
+			if (c.err != null) {
+				if (!failureOblivious) {
+					if (firstErr == null)
+						firstErr = c.err;
+					return;
+				}
+				Main.printErr(c.err);
+				return;
+			}
+			handler.handle(c);
+		}
+	}
+
+	// Called by the generation stage, blocks if the pipeline is full
+	public void submit(int index, SuspiciousLocation loc, MyCtNode root, MyCtNode orig, SearchSpace.GenerationResult res) {
+		checkError();
+		try {
+			rewriteQueue.put(new Candidate(nextSeq ++, index, loc, root, orig, res));
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new GenesisException("Genesis is interrupted during the repair pipeline!");
+		}
+	}
+
+	private void checkError() {
+		if (firstErr == null)
+			return;
+		if (firstErr instanceof RuntimeException)
+			throw (RuntimeException) firstErr;
+		if (firstErr instanceof Error)
+			throw (Error) firstErr;
+		throw new GenesisException("Repair pipeline failed: " + firstErr.getMessage());
+	}
+
+	private void drainStage(BlockingQueue<Candidate> q, ArrayList<Thread> workers) throws InterruptedException {
+		q.put(EndMark);
+		for (Thread t : workers)
+			t.join();
+	}
+
+	// Waits until every submitted candidate went through the pipeline
+	public void finish() {
+		drain();
+		checkError();
+	}
+
+	// Cancels and drains the pipeline after the generation stage failed,
+	// the error of the caller is the one to report
+	public void abort() {
+		cancel();
+		drain();
+	}
+
+	private void drain() {
+		try {
+			drainStage(rewriteQueue, rewriters);
+			drainStage(compileQueue, compilers);
+			drainStage(testQueue, testers);
+			resultQueue.put(EndMark);
+			committer.join();
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new GenesisException("Genesis is interrupted during the repair pipeline!");
+		}
+		for (Path p : workerTmpDirs)
+			FileUtils.deleteQuietly(p.toFile());
+	}
+}
@@ -28,12 +28,14 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.UUID;
 
 import org.apache.commons.io.FileUtils;
 
@@ -41,11 +43,17 @@ import genesis.Config;
 import genesis.GenesisException;
 import genesis.infrastructure.AppManager;
 import genesis.node.MyCtNode;
-import genesis.repair.compiler.JavaXToolsCompiler;
+import genesis.repair.compiler.ClasspathIndex;
+import genesis.repair.compiler.CompileCache;
+import genesis.repair.compiler.CompilerService;
 import genesis.repair.localization.SuspiciousLocation;
+import genesis.repair.validation.TestCoverage;
+import genesis.repair.validation.TestFailureModel;
+import genesis.repair.validation.TestResult;
+import genesis.repair.validation.TestTimeBudget;
 import genesis.repair.validation.Testcase;
 import genesis.repair.validation.TestingOracle;
-import genesis.repair.validation.ValidationOracle;
+import genesis.repair.validation.ValidationCache;
 
 public class WorkdirManager {
 
@@ -56,6 +64,15 @@ public class WorkdirManager {
 	public static final String CONFIG_FILE = "genesis.conf";
 	public static final String ARG_LOG_FILE = "arg.log";
 	public static final String TESTINFO_FILE = "testinfo.log";
+	public static final String COVERAGE_FILE = "coverage.log";
+	public static final String VALIDATION_CACHE_FILE = "validation.log";
+	public static final String FAILSTATS_FILE = "failstats.log";
+	public static final String TESTTIME_FILE = "testtime.log";
+	public static final String JOURNAL_FILE = "journal.log";
+	public static final String COMPILE_CACHE_DIR = "compile_cache";
+	// A new id every time src is rebuilt, a working copy is only reused if
+	// it was made from the same build, see createWorkingCopy()
+	public static final String STAMP_SUFFIX = ".stamp";
 	
 	public static final String SRCPATH_PROPERTY = "src";
 	public static final String TESTCASE_PROPERTY = "testcase";
@@ -68,6 +85,11 @@ public class WorkdirManager {
 	ArrayList<Testcase> positiveCases;
 	ArrayList<Testcase> negativeCases;
 	ArrayList<SuspiciousLocation> suspiciousLocs;
+	TestCoverage coverage;
+	ValidationCache validationCache;
+	TestFailureModel testFailureModel;
+	TestTimeBudget testTimeBudget;
+	CompilerService compilers;
 	
 	private WorkdirManager() {
 		config = null;
@@ -76,6 +98,11 @@ public class WorkdirManager {
 		positiveCases = null;
 		negativeCases = null;
 		suspiciousLocs = null;
+		coverage = null;
+		validationCache = null;
+		testFailureModel = null;
+		testTimeBudget = null;
+		compilers = new CompilerService(Config.classPathSep, Config.concurrencyLevel);
 	}
 	
 	public static WorkdirManager createWithExistingWorkdir(String workDir, boolean skipInit) {
@@ -224,8 +251,13 @@ public class WorkdirManager {
 				FileUtils.deleteDirectory(new File(workDirPath + "/" + WORKSRC_DIR));
 		}
 		// We are going to copy it from original source if we do not have it in the directory
-		if (!Files.exists(Paths.get(workDirPath + "/" + WORKSRC_DIR))) 
+		File srcStamp = new File(workDirPath + "/" + WORKSRC_DIR + STAMP_SUFFIX);
+		if (!Files.exists(Paths.get(workDirPath + "/" + WORKSRC_DIR))) {
+			srcStamp.delete();
 			FileUtils.copyDirectory(new File(workDirPath + "/" + ORIGSRC_DIR), new File(workDirPath + "/" + WORKSRC_DIR));
+		}
+		if (!srcStamp.exists())
+			FileUtils.writeStringToFile(srcStamp, UUID.randomUUID().toString(), "UTF-8");
 		
 		app = new AppManager(workDirPath + "/" + WORKSRC_DIR);
 		String argFname = workDirPath + Config.filePathSep + ARG_LOG_FILE;
@@ -239,9 +271,38 @@ public class WorkdirManager {
 		else
 			app.initializeTestSessions(testinfoFname, false);
 		
+		// The failure statistics stay valid across initializations, so we keep them
+		testFailureModel = new TestFailureModel(workDirPath + Config.filePathSep + FAILSTATS_FILE);
+		
+		// Cached results are only valid for the same work directory setup
+		String cacheFname = workDirPath + Config.filePathSep + VALIDATION_CACHE_FILE;
+		if (!skipInit)
+			Files.deleteIfExists(Paths.get(cacheFname));
+		if (Config.useValidationCache)
+			validationCache = new ValidationCache(cacheFname);
+		
+		// The keys cover the class path, so the compile cache survives initializations
+		if (Config.compileCacheBytes > 0)
+			compilers.setCache(new CompileCache(workDirPath + Config.filePathSep + COMPILE_CACHE_DIR, Config.compileCacheBytes));
+		
+		String coverageFname = workDirPath + Config.filePathSep + COVERAGE_FILE;
+		if (skipInit && Config.testCoverage && Files.exists(Paths.get(coverageFname)))
+			coverage = TestCoverage.load(coverageFname);
+		
+		String testtimeFname = workDirPath + Config.filePathSep + TESTTIME_FILE;
+		if (skipInit && Files.exists(Paths.get(testtimeFname)))
+			testTimeBudget = TestTimeBudget.load(testtimeFname);
+		else
+			testTimeBudget = new TestTimeBudget();
+		
 		if (!skipInit) {
-			ValidationOracle oracle = new TestingOracle(this);
-			List<Testcase> res = oracle.runTestcases(negativeCases);
+			TestingOracle oracle = new TestingOracle(this);
+			// We measure the baseline durations for the time budgets of the cases
+			TestTimeBudget newBudget = new TestTimeBudget();
+			Map<Testcase, TestResult> resM = oracle.runTestcasesForResults(negativeCases);
+			for (Testcase c : resM.keySet())
+				newBudget.recordBaseline(c, resM.get(c).duration);
+			List<Testcase> res = TestingOracle.getPassedCases(resM);
 			boolean fail = false;
 			if (!res.isEmpty()) {
 				System.out.println("Unexpected pass of the cases:");
@@ -250,7 +311,16 @@ public class WorkdirManager {
 				}
 				fail = true;
 			}
-			res = oracle.runTestcases(positiveCases);
+			TestCoverage newCoverage = null;
+			if (Config.testCoverage) {
+				newCoverage = new TestCoverage();
+				oracle.setCoverageCollector(newCoverage);
+			}
+			resM = oracle.runTestcasesForResults(positiveCases);
+			oracle.setCoverageCollector(null);
+			for (Testcase c : resM.keySet())
+				newBudget.recordBaseline(c, resM.get(c).duration);
+			res = TestingOracle.getPassedCases(resM);
 			if (res.size() != positiveCases.size()) {
 				System.out.println("Unexpected failure of the cases: ");
 				for (Testcase c : positiveCases) {
@@ -269,6 +339,14 @@ public class WorkdirManager {
 				System.out.println("Fixes testcase log file before you rerun genesis!");
 				throw new GenesisException("Test result does not match the test case log file!");
 			}
+			Files.deleteIfExists(Paths.get(testtimeFname));
+			newBudget.save(testtimeFname);
+			testTimeBudget = newBudget;
+			if (newCoverage != null) {
+				Files.deleteIfExists(Paths.get(coverageFname));
+				newCoverage.save(coverageFname);
+				coverage = newCoverage;
+			}
 		}
 	}
 
@@ -296,24 +374,28 @@ public class WorkdirManager {
 		return app.getCtNode(workDirPath + "/" + WORKSRC_DIR + "/" + srcPath, false);
 	}
 
-	private boolean compileJavaFileTo(String classpath, String sourcePath, String code, Path tempDirPath) throws IOException {
-		String className = getQualifiedClassName(sourcePath, code);
+	private List<String> getCompileOptions() {
 		ArrayList<String> options = new ArrayList<String>();
-		options.add("-cp");
-		options.add(classpath);
 		// XXX: Don't know why, but these are required to compile some applications
 		options.add("-sourcepath");
 		options.add("");
-		JavaXToolsCompiler comp = new JavaXToolsCompiler();
+		return options;
+	}
+
+	private Map<String, byte[]> compileJavaFile(String classpath, String sourcePath, String code) {
+		String className = getQualifiedClassName(sourcePath, code);
+		List<String> options = getCompileOptions();
 		
 		//System.out.println("className: " + className);
 		//System.out.println("options: " + options);
 		//System.out.println("CODE:");
 		//System.out.println(code);
 		
-		Map<String, byte[]> bytecodes = comp.javaBytecodeFor(className, code, options);
-		if (bytecodes == null) return false;
-		
+		// The resident compiler of the class path knows it, so no -cp
+		return compilers.compile(classpath, className, code, options);
+	}
+
+	public void writeBytecodes(Map<String, byte[]> bytecodes, Path tempDirPath) throws IOException {
 		// We may get multiple class files out because the file may have multiple public inner classes!
 		for (String outClassName : bytecodes.keySet()) {
 			String[] tokens = outClassName.split("\\.");
@@ -327,15 +409,49 @@ public class WorkdirManager {
 			fos.write(bytecodes.get(outClassName));
 			fos.close();
 		}
-		return true;
+	}
+
+	// Returns null if the code does not compile
+	public Map<String, byte[]> compileJavaSource(String sourcePath, String code) {
+		return compileJavaFile(app.getClasspath(workDirPath + "/" + WORKSRC_DIR + "/" + sourcePath, false), sourcePath, code);
+	}
+
+	// Compiles the candidate codes of one source file concurrently, the
+	// result of a code that does not compile is null
+	public List<Map<String, byte[]>> compileJavaSources(String sourcePath, List<String> codes) {
+		if (codes.isEmpty())
+			return new ArrayList<Map<String, byte[]>>();
+		// The candidates of a source file are all in the same package
+		String className = getQualifiedClassName(sourcePath, codes.get(0));
+		String classpath = app.getClasspath(workDirPath + "/" + WORKSRC_DIR + "/" + sourcePath, false);
+		return compilers.compileAll(classpath, className, codes, getCompileOptions());
+	}
+
+	// Same as compileJavaSource(), but with all the debug information, e.g.,
+	// the local variable tables that BytecodePatcher needs
+	public Map<String, byte[]> compileJavaSourceWithDebugInfo(String sourcePath, String code) {
+		String className = getQualifiedClassName(sourcePath, code);
+		List<String> options = getCompileOptions();
+		options.add("-g");
+		return compilers.compile(app.getClasspath(workDirPath + "/" + WORKSRC_DIR + "/" + sourcePath, false), className, code, options);
+	}
+
+	public ClasspathIndex getClasspathIndex(String sourcePath) throws IOException {
+		return ClasspathIndex.get(app.getClasspath(workDirPath + "/" + WORKSRC_DIR + "/" + sourcePath, false), Config.classPathSep);
 	}
 
 	public boolean compileJavaSourceTo(String sourcePath, String code, Path tempDirPath) throws IOException {
-		return compileJavaFileTo(app.getClasspath(workDirPath + "/" + WORKSRC_DIR + "/" + sourcePath, false), sourcePath, code, tempDirPath);
+		Map<String, byte[]> bytecodes = compileJavaSource(sourcePath, code);
+		if (bytecodes == null) return false;
+		writeBytecodes(bytecodes, tempDirPath);
+		return true;
 	}
 
 	public boolean compileJavaTestTo(String sourcePath, String code, Path tempDirPath) throws IOException {
-		return compileJavaFileTo(app.getTestClasspath(workDirPath + "/" + WORKSRC_DIR + "/" + sourcePath, false), sourcePath, code, tempDirPath);
+		Map<String, byte[]> bytecodes = compileJavaFile(app.getTestClasspath(workDirPath + "/" + WORKSRC_DIR + "/" + sourcePath, false), sourcePath, code);
+		if (bytecodes == null) return false;
+		writeBytecodes(bytecodes, tempDirPath);
+		return true;
 	}
 
 	private String getQualifiedClassName(String sourcePath, String newCodeStr) {
@@ -380,11 +496,36 @@ public class WorkdirManager {
 		return app.getTestSessionId(testClass);
 	}
 
+	public TestTimeBudget getTestTimeBudget() {
+		return testTimeBudget;
+	}
+
+	public TestFailureModel getTestFailureModel() {
+		return testFailureModel;
+	}
+
+	// Null if validation results are not cached
+	public ValidationCache getValidationCache() {
+		return validationCache;
+	}
+
+	// Appends to the journal of the earlier runs, their verdicts are only
+	// reused if resume, see RepairJournal
+	public RepairJournal openJournal(boolean resume) throws IOException {
+		return new RepairJournal(workDirPath + Config.filePathSep + JOURNAL_FILE, resume);
+	}
+
+	// Null if the coverage of the positive cases is not collected
+	public TestCoverage getTestCoverage() {
+		return coverage;
+	}
+
 	public String getTestSessionClasspath(Integer id) {
 		return app.getTestSessionClasspath(id);
 	}
 
 	public void destroyWorkdir() {
+		compilers.close();
 		try {
 			FileUtils.deleteDirectory(new File(workDirPath));
 		}
@@ -395,6 +536,27 @@ public class WorkdirManager {
 		return workDirPath + Config.filePathSep + WORKSRC_DIR;
 	}
 
+	// Creates (or reuses) a private copy of the work source directory, 
+	// so that concurrent test runs do not share their working directory. A
+	// copy is reused only if it is complete and made from the current build
+	// of src, it is copied under a temporary name and renamed into place.
+	public String createWorkingCopy(String name) throws IOException {
+		String copyPath = workDirPath + Config.filePathSep + name;
+		File copy = new File(copyPath);
+		File copyStamp = new File(copyPath + STAMP_SUFFIX);
+		String stamp = FileUtils.readFileToString(new File(getWorkSrcDir() + STAMP_SUFFIX), "UTF-8");
+		if (copy.exists() && copyStamp.exists() && FileUtils.readFileToString(copyStamp, "UTF-8").equals(stamp))
+			return copyPath;
+		copyStamp.delete();
+		FileUtils.deleteDirectory(copy);
+		File tmp = new File(copyPath + ".tmp");
+		FileUtils.deleteDirectory(tmp);
+		FileUtils.copyDirectory(new File(getWorkSrcDir()), tmp);
+		Files.move(tmp.toPath(), copy.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		FileUtils.writeStringToFile(copyStamp, stamp, "UTF-8");
+		return copyPath;
+	}
+
 	public AppManager getApp() {
 		return app;
 	}
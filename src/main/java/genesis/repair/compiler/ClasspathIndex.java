@@ -0,0 +1,215 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.compiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * The class files of a compile class path by package and by binary name,
+ * built once per class path string and shared by all the compilers of it.
+ * VirtualFileObjectManager answers the class path lookups of javac from
+ * here, so a compilation neither walks the class directories nor scans the
+ * jars again. The jars stay open for the reads of the class files.
+ *
+ * As with javac, the jars on the Class-Path of a jar manifest are on the
+ * class path too, and the first class of a name on the class path wins.
+ */
+public class ClasspathIndex {
+
+	private static final HashMap<String, ClasspathIndex> indexes = new HashMap<String, ClasspathIndex>();
+
+	// A class file in a jar or in a class directory
+	static class IndexedClassFile extends SimpleJavaFileObject {
+		final String binaryName;
+		final JarFile jar;
+		final String entryName;
+		final File file;
+
+		IndexedClassFile(String binaryName, URI uri, JarFile jar, String entryName, File file) {
+			super(uri, Kind.CLASS);
+			this.binaryName = binaryName;
+			this.jar = jar;
+			this.entryName = entryName;
+			this.file = file;
+		}
+
+		@Override
+		public InputStream openInputStream() throws IOException {
+			if (jar == null)
+				return new FileInputStream(file);
+			ZipEntry entry = jar.getEntry(entryName);
+			if (entry == null)
+				throw new IOException("Missing " + entryName + " in " + jar.getName());
+			return jar.getInputStream(entry);
+		}
+
+		// The default one does not know about jar entries
+		@Override
+		public boolean isNameCompatible(String simpleName, Kind kind) {
+			if (kind != Kind.CLASS)
+				return false;
+			int idx = binaryName.lastIndexOf('.');
+			return binaryName.substring(idx + 1).equals(simpleName);
+		}
+
+		@Override
+		public String getName() {
+			return jar == null ? file.getPath() : jar.getName() + "(" + entryName + ")";
+		}
+	}
+
+	HashMap<String, ArrayList<JavaFileObject>> packages;
+	HashMap<String, IndexedClassFile> classes;
+
+	private ClasspathIndex() {
+		this.packages = new HashMap<String, ArrayList<JavaFileObject>>();
+		this.classes = new HashMap<String, IndexedClassFile>();
+	}
+
+	public static synchronized ClasspathIndex get(String classpath, String classPathSep) throws IOException {
+		if (indexes.containsKey(classpath))
+			return indexes.get(classpath);
+		ClasspathIndex ret = new ClasspathIndex();
+		LinkedList<File> entries = new LinkedList<File>();
+		for (String entry : classpath.split(classPathSep))
+			if (!entry.trim().isEmpty())
+				entries.add(new File(entry));
+		HashSet<File> seen = new HashSet<File>();
+		while (!entries.isEmpty()) {
+			File f = entries.removeFirst();
+			if (!seen.add(f.getAbsoluteFile()))
+				continue;
+			if (f.isDirectory())
+				ret.addDirectory(f);
+			else if (f.isFile())
+				// The manifest class path goes right after the jar
+				entries.addAll(0, ret.addJar(f));
+		}
+		indexes.put(classpath, ret);
+		return ret;
+	}
+
+	private void add(String entryName, URI uri, JarFile jar, File file) {
+		if (!entryName.endsWith(".class") || entryName.startsWith("META-INF/") || entryName.endsWith("module-info.class"))
+			return;
+		String binaryName = entryName.substring(0, entryName.length() - 6).replace('/', '.');
+		if (classes.containsKey(binaryName))
+			return;
+		int idx = binaryName.lastIndexOf('.');
+		String packageName = idx < 0 ? "" : binaryName.substring(0, idx);
+		IndexedClassFile fo = new IndexedClassFile(binaryName, uri, jar, entryName, file);
+		classes.put(binaryName, fo);
+		if (!packages.containsKey(packageName))
+			packages.put(packageName, new ArrayList<JavaFileObject>());
+		packages.get(packageName).add(fo);
+	}
+
+	private void addDirectory(File dir) throws IOException {
+		Path root = dir.toPath();
+		Stream<Path> s = Files.walk(root);
+		try {
+			Iterator<Path> it = s.iterator();
+			while (it.hasNext()) {
+				Path p = it.next();
+				if (Files.isRegularFile(p))
+					add(root.relativize(p).toString().replace(File.separatorChar, '/'), p.toUri(), null, p.toFile());
+			}
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	// Returns the class path of the manifest
+	private List<File> addJar(File f) {
+		ArrayList<File> ret = new ArrayList<File>();
+		JarFile jar = null;
+		try {
+			jar = new JarFile(f);
+		}
+		catch (IOException e) {
+			// javac skips what it cannot open as well
+			System.out.println("[WARN]Unable to index the class path entry " + f);
+			return ret;
+		}
+		String jarPath = f.getAbsoluteFile().toURI().getPath();
+		Enumeration<? extends ZipEntry> it = jar.entries();
+		while (it.hasMoreElements()) {
+			ZipEntry e = it.nextElement();
+			if (e.isDirectory())
+				continue;
+			// Not the opaque jar:file: form, a file object needs a URI with a path
+			try {
+				add(e.getName(), new URI("jar", null, jarPath + "!/" + e.getName(), null), jar, null);
+			}
+			catch (URISyntaxException ignore) { }
+		}
+		try {
+			Manifest m = jar.getManifest();
+			String cp = m == null ? null : m.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+			if (cp != null)
+				for (String entry : cp.trim().split("\\s+"))
+					if (!entry.isEmpty())
+						ret.add(new File(f.getParentFile(), entry));
+		}
+		catch (IOException ignore) { }
+		return ret;
+	}
+
+	// The class files of a package, not of its subpackages
+	public List<JavaFileObject> list(String packageName) {
+		List<JavaFileObject> ret = packages.get(packageName);
+		return ret == null ? Collections.<JavaFileObject>emptyList() : ret;
+	}
+
+	// Null if there is no such class on the class path
+	public JavaFileObject getClassFile(String binaryName) {
+		return classes.get(binaryName);
+	}
+
+	public static boolean isIndexed(JavaFileObject file) {
+		return file instanceof IndexedClassFile;
+	}
+
+	public static String getBinaryName(JavaFileObject file) {
+		return ((IndexedClassFile) file).binaryName;
+	}
+}
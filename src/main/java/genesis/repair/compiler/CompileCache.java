@@ -0,0 +1,263 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import genesis.GenesisException;
+
+/**
+ * Compilation results on disk, keyed by the hash of the class name, the
+ * source, the javac options and a fingerprint of the class path. A hit skips
+ * javac, also for a source that does not compile. The class path fingerprint
+ * covers the names, sizes and modification times of the class path files, so
+ * a rebuilt project or a changed jar misses the old entries. The least
+ * recently used entries are evicted when the cache grows over maxBytes, the
+ * recency survives reruns as the modification time of the entry files.
+ */
+public class CompileCache {
+
+	static final String Suffix = ".bin";
+
+	Path dir;
+	long maxBytes;
+	// The sizes of the entries by key, in the order of their last use
+	LinkedHashMap<String, Long> sizes;
+	long totalBytes;
+	// The class path fingerprints of this run, the class path does not change during it
+	HashMap<String, String> fingerprints;
+
+	public CompileCache(String dir, long maxBytes) throws IOException {
+		this.dir = Paths.get(dir);
+		this.maxBytes = maxBytes;
+		this.sizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		this.totalBytes = 0;
+		this.fingerprints = new HashMap<String, String>();
+		Files.createDirectories(this.dir);
+		File[] files = this.dir.toFile().listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File f : files) {
+			String name = f.getName();
+			// Leftovers of an interrupted put
+			if (!name.endsWith(Suffix)) {
+				f.delete();
+				continue;
+			}
+			sizes.put(name.substring(0, name.length() - Suffix.length()), f.length());
+			totalBytes += f.length();
+		}
+		evict();
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new GenesisException("SHA-1 is not available!");
+		}
+	}
+
+	private static String toHex(byte[] digest) {
+		StringBuffer ret = new StringBuffer();
+		for (byte b : digest)
+			ret.append(String.format("%02x", b));
+		return ret.toString();
+	}
+
+	private static void update(MessageDigest md, String s) {
+		md.update(s.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+	}
+
+	private synchronized String getFingerprint(String classpath, String classPathSep) throws IOException {
+		if (fingerprints.containsKey(classpath))
+			return fingerprints.get(classpath);
+		MessageDigest md = createDigest();
+		for (String entry : classpath.split(classPathSep)) {
+			if (entry.trim().isEmpty())
+				continue;
+			update(md, entry);
+			Path p = Paths.get(entry);
+			if (!Files.exists(p))
+				continue;
+			// Sorted, so that the order of the directory walk does not matter
+			TreeMap<String, String> stats = new TreeMap<String, String>();
+			Stream<Path> s = Files.walk(p);
+			try {
+				Iterator<Path> it = s.iterator();
+				while (it.hasNext()) {
+					Path f = it.next();
+					if (Files.isRegularFile(f))
+						stats.put(f.toString(), Files.size(f) + " " + Files.getLastModifiedTime(f).toMillis());
+				}
+			}
+			finally {
+				s.close();
+			}
+			for (Map.Entry<String, String> e : stats.entrySet()) {
+				update(md, e.getKey());
+				update(md, e.getValue());
+			}
+		}
+		String ret = toHex(md.digest());
+		fingerprints.put(classpath, ret);
+		return ret;
+	}
+
+	// Null if the class path cannot be read, the result is then not cached
+	public String getKey(String classpath, String classPathSep, String className, String code, List<String> options) {
+		MessageDigest md = createDigest();
+		try {
+			update(md, getFingerprint(classpath, classPathSep));
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		update(md, className);
+		for (String option : options)
+			update(md, option);
+		update(md, code);
+		return toHex(md.digest());
+	}
+
+	private Path getPath(String key) {
+		return dir.resolve(key + Suffix);
+	}
+
+	// Null if it is not in the cache
+	public synchronized CompilationResult get(String key) {
+		if (!sizes.containsKey(key))
+			return null;
+		Path p = getPath(key);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)));
+			try {
+				HashMap<String, byte[]> bytecodes = new HashMap<String, byte[]>();
+				int n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					String name = in.readUTF();
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					bytecodes.put(name, bytes);
+				}
+				ArrayList<String> errors = new ArrayList<String>();
+				n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					errors.add(new String(bytes, StandardCharsets.UTF_8));
+				}
+				p.toFile().setLastModified(System.currentTimeMillis());
+				return new CompilationResult(bytecodes, errors);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			// Broken or gone, compile it again
+			totalBytes -= sizes.remove(key);
+			p.toFile().delete();
+			return null;
+		}
+	}
+
+	public synchronized void put(String key, CompilationResult res) {
+		if (sizes.containsKey(key))
+			return;
+		Path p = getPath(key);
+		try {
+			// Written aside and moved in place, so that a killed run leaves no partial entry
+			Path tmp = Files.createTempFile(dir, key, ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+			try {
+				Map<String, byte[]> bytecodes = res.getByteCodes();
+				out.writeInt(bytecodes.size());
+				for (Map.Entry<String, byte[]> e : bytecodes.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeInt(e.getValue().length);
+					out.write(e.getValue());
+				}
+				List<String> errors = res.getErrorList() == null ? Collections.<String>emptyList() : res.getErrorList();
+				out.writeInt(errors.size());
+				for (String error : errors) {
+					byte[] bytes = error.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			}
+			finally {
+				out.close();
+			}
+			Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			sizes.put(key, Files.size(p));
+			totalBytes += sizes.get(key);
+			evict();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to write down the compile cache entry " + p);
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Long> e = it.next();
+			getPath(e.getKey()).toFile().delete();
+			totalBytes -= e.getValue();
+			it.remove();
+		}
+	}
+
+	public synchronized int size() {
+		return sizes.size();
+	}
+}
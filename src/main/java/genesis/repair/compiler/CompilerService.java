@@ -0,0 +1,200 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.compiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import genesis.GenesisException;
+
+/**
+ * Keeps resident JavaXToolsCompilers per compile session class path, so that
+ * a candidate compilation does not open and index the jars of the class path
+ * again. A compiler runs one compilation at a time with its own file manager
+ * and diagnostics, concurrent callers of the same class path get compilers of
+ * their own, up to maxCompilers, and all of them are reused afterwards. Only
+ * the patched compilation unit is compiled, the rest of the project comes
+ * from the class path.
+ *
+ * With a CompileCache, a source compiled before, in this run or an earlier
+ * one, does not go to javac at all.
+ *
+ * compileAll() compiles the sources of a batch of candidates concurrently on
+ * maxCompilers threads.
+ *
+ * Interrupting a caller cancels its compilation, javac stops at its next
+ * phase and compile() throws a GenesisException instead of returning a
+ * result.
+ */
+public class CompilerService {
+
+	String classPathSep;
+	int maxCompilers;
+	HashMap<String, LinkedList<JavaXToolsCompiler>> idle;
+	// The number of compilers per class path, idle or not
+	HashMap<String, Integer> counts;
+	ArrayList<JavaXToolsCompiler> all;
+	ExecutorService executor;
+	// Null if the results are not cached
+	CompileCache cache;
+
+	public CompilerService(String classPathSep, int maxCompilers) {
+		this.classPathSep = classPathSep;
+		this.maxCompilers = Math.max(1, maxCompilers);
+		this.idle = new HashMap<String, LinkedList<JavaXToolsCompiler>>();
+		this.counts = new HashMap<String, Integer>();
+		this.all = new ArrayList<JavaXToolsCompiler>();
+		this.executor = null;
+		this.cache = null;
+	}
+
+	public void setCache(CompileCache cache) {
+		this.cache = cache;
+	}
+
+	private synchronized JavaXToolsCompiler acquire(String classpath) {
+		if (!idle.containsKey(classpath)) {
+			idle.put(classpath, new LinkedList<JavaXToolsCompiler>());
+			counts.put(classpath, 0);
+		}
+		LinkedList<JavaXToolsCompiler> q = idle.get(classpath);
+		while (q.isEmpty() && counts.get(classpath) >= maxCompilers) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				e.printStackTrace();
+				throw new GenesisException("Genesis is interrupted while waiting for a compiler!");
+			}
+		}
+		if (!q.isEmpty())
+			return q.removeFirst();
+		try {
+			JavaXToolsCompiler ret = new JavaXToolsCompiler(classpath, classPathSep);
+			all.add(ret);
+			counts.put(classpath, counts.get(classpath) + 1);
+			return ret;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			throw new GenesisException("Unable to set up the compiler for class path: " + classpath);
+		}
+	}
+
+	private synchronized void release(String classpath, JavaXToolsCompiler comp) {
+		idle.get(classpath).addLast(comp);
+		notifyAll();
+	}
+
+	// Returns null if the code does not compile
+	public Map<String, byte[]> compile(String classpath, String className, String code, List<String> options) {
+		if (Thread.currentThread().isInterrupted())
+			throw new GenesisException("Genesis is interrupted during compilation!");
+		String key = cache == null ? null : cache.getKey(classpath, classPathSep, className, code, options);
+		CompilationResult res = key == null ? null : cache.get(key);
+		if (res != null)
+			return JavaXToolsCompiler.getBytecodes(res, code);
+		JavaXToolsCompiler comp = acquire(classpath);
+		try {
+			res = comp.compile(className, code, options);
+		}
+		catch (RuntimeException e) {
+			// javac wraps the exception of our task listener
+			if (Thread.currentThread().isInterrupted())
+				throw new GenesisException("Genesis is interrupted during compilation!");
+			throw e;
+		}
+		finally {
+			release(classpath, comp);
+		}
+		// A cancelled run may not have seen all the errors
+		if (Thread.currentThread().isInterrupted())
+			throw new GenesisException("Genesis is interrupted during compilation!");
+		if (key != null)
+			cache.put(key, res);
+		return JavaXToolsCompiler.getBytecodes(res, code);
+	}
+
+	// Compiles every code as className in its own task, the result of a code
+	// that does not compile is null
+	public List<Map<String, byte[]>> compileAll(final String classpath, final String className, List<String> codes, final List<String> options) {
+		ArrayList<Future<Map<String, byte[]>>> futures = new ArrayList<Future<Map<String, byte[]>>>();
+		ExecutorService executor = getExecutor();
+		for (final String code : codes)
+			futures.add(executor.submit(new Callable<Map<String, byte[]>>() {
+				@Override
+				public Map<String, byte[]> call() {
+					return compile(classpath, className, code, options);
+				}
+			}));
+		ArrayList<Map<String, byte[]>> ret = new ArrayList<Map<String, byte[]>>();
+		try {
+			for (Future<Map<String, byte[]>> future : futures)
+				ret.add(future.get());
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+			// Interrupts the compilations of the batch that are still running
+			for (Future<Map<String, byte[]>> future : futures)
+				future.cancel(true);
+			throw new GenesisException("Genesis is interrupted during compilation!");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new GenesisException("Compilation hits unexpected problems!");
+		}
+		return ret;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null)
+			executor = Executors.newFixedThreadPool(maxCompilers, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "genesis-compiler");
+					// Never keeps genesis from exiting
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return executor;
+	}
+
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		for (JavaXToolsCompiler comp : all)
+			comp.close();
+		all.clear();
+		idle.clear();
+		counts.clear();
+	}
+}
@@ -20,6 +20,8 @@ package genesis.repair.compiler;
 import static java.util.Arrays.asList;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -36,11 +38,20 @@ import javax.tools.StandardJavaFileManager;
 import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+import genesis.GenesisException;
+
+// Every compiler has its own file manager and diagnostics, so different
+// compilers run concurrently. See CompilerService.
 @SuppressWarnings("restriction")
 public class JavaXToolsCompiler {
 
 	private List<String> options;
 	private JavaCompiler compiler;
+	private StandardJavaFileManager standardFileManager;
 	private VirtualFileObjectManager fileManager;
 	private DiagnosticCollector<JavaFileObject> diagnostics;
 
@@ -48,18 +59,45 @@ public class JavaXToolsCompiler {
 		options = asList("-nowarn");
 		compiler = ToolProvider.getSystemJavaCompiler();
 		diagnostics = new DiagnosticCollector<JavaFileObject>();
-		StandardJavaFileManager standardFileManager = compiler().getStandardFileManager(diagnostics(), null, null);
+		standardFileManager = compiler().getStandardFileManager(diagnostics(), null, null);
 		fileManager = new VirtualFileObjectManager(standardFileManager);
 	}
 
+	// A resident compiler for one class path. The file manager answers the
+	// class path lookups from the shared ClasspathIndex of it, so the tasks
+	// should not pass -cp again.
+	public JavaXToolsCompiler(String classpath, String classPathSep) throws IOException {
+		this();
+		ArrayList<File> entries = new ArrayList<File>();
+		for (String entry : classpath.split(classPathSep))
+			if (!entry.trim().isEmpty())
+				entries.add(new File(entry));
+		standardFileManager.setLocation(StandardLocation.CLASS_PATH, entries);
+		fileManager.setClasspathIndex(ClasspathIndex.get(classpath, classPathSep));
+	}
+
 	public synchronized CompilationResult javaBytecodeFor(Map<String, String> qualifiedNameAndContent,
 			Map<String, byte[]> compiledDependencies, List<String> options) {
 		diagnostics = new DiagnosticCollector<JavaFileObject>();
 		fileManager.classFiles().clear();
+		// The units of the last compilation must not show up on the source path
+		fileManager.sourceFiles().clear();
 		//
 		Collection<JavaFileObject> units = addCompilationUnits(qualifiedNameAndContent);
 		fileManager.addCompiledClasses(compiledDependencies);
 		CompilationTask task = compiler().getTask(null, fileManager, diagnostics(), options, null, units);
+		// An interrupted thread stops javac at its next phase, see CompilerService
+		if (task instanceof JavacTask)
+			((JavacTask) task).addTaskListener(new TaskListener() {
+				@Override
+				public void started(TaskEvent e) {
+					if (Thread.currentThread().isInterrupted())
+						throw new GenesisException("Genesis is interrupted during compilation!");
+				}
+
+				@Override
+				public void finished(TaskEvent e) { }
+			});
 		runCompilationTask(task);
 		Map<String, byte[]> bytecodes = collectBytecodes(qualifiedNameAndContent);
 		List<String> errors = new ArrayList<>();
@@ -70,9 +108,17 @@ public class JavaXToolsCompiler {
 	}
 	
 	public Map<String, byte[]> javaBytecodeFor(String className, String sourceCode, List<String> options) {
+		return getBytecodes(compile(className, sourceCode, options), sourceCode);
+	}
+
+	public CompilationResult compile(String className, String sourceCode, List<String> options) {
 		HashMap<String, String> tmpM = new HashMap<String, String>();
 		tmpM.put(className, sourceCode);
-		CompilationResult res = javaBytecodeFor(tmpM, new HashMap<String, byte[]>(), options);
+		return javaBytecodeFor(tmpM, new HashMap<String, byte[]>(), options);
+	}
+
+	// Null if the result has errors, they are printed then
+	public static Map<String, byte[]> getBytecodes(CompilationResult res, String sourceCode) {
 		if (!res.compiles()) {
 			System.out.println("Compilation failed!");
 			System.out.println(res.toString());
@@ -150,6 +196,13 @@ public class JavaXToolsCompiler {
 		return diagnostics;
 	}
 
+	public void close() {
+		try {
+			fileManager.close();
+		}
+		catch (IOException ignore) { }
+	}
+
 	public static String stripEnd(String string, String suffix) {
 		if (string.endsWith(suffix)) {
 			return string.substring(0, string.length() - suffix.length());
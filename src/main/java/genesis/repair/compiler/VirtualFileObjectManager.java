@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,11 +41,25 @@ public class VirtualFileObjectManager extends ForwardingJavaFileManager<JavaFile
 
 	private Map<URI, SourceCodeFileObject> sourceFiles;
 	private Map<String, CompiledObjectFileObject> classFiles;
+	// The class path lookups go here instead of the standard file manager, null if none
+	private ClasspathIndex classpathIndex;
 	
 	public VirtualFileObjectManager(JavaFileManager fileManager) {
 		super(fileManager);
 		classFiles = new HashMap<>();
 		sourceFiles = new HashMap<>();
+		classpathIndex = null;
+	}
+
+	public void setClasspathIndex(ClasspathIndex classpathIndex) {
+		this.classpathIndex = classpathIndex;
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForInput(Location location, String className, Kind kind) throws IOException {
+		if (classpathIndex != null && location == StandardLocation.CLASS_PATH && kind == Kind.CLASS)
+			return classpathIndex.getClassFile(className);
+		return super.getJavaFileForInput(location, className, kind);
 	}
 	
 	@Override
@@ -68,12 +83,27 @@ public class VirtualFileObjectManager extends ForwardingJavaFileManager<JavaFile
 		if (SourceCodeFileObject.class.isInstance(file) || CompiledObjectFileObject.class.isInstance(file)) {
 			return file.getName();
 		}
+		if (ClasspathIndex.isIndexed(file)) {
+			return ClasspathIndex.getBinaryName(file);
+		}
 		return super.inferBinaryName(location, file);
 	}
 	
 	@Override
 	public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse) throws IOException {
-		Iterable<JavaFileObject> result = super.list(location, packageName, kinds, recurse);
+		Iterable<JavaFileObject> result = null;
+		if (classpathIndex != null && location == StandardLocation.CLASS_PATH && kinds.contains(Kind.CLASS) && !recurse) {
+			// The index has the class files, the other kinds still come from the class path
+			Set<Kind> otherKinds = EnumSet.noneOf(Kind.class);
+			otherKinds.addAll(kinds);
+			otherKinds.remove(Kind.CLASS);
+			List<JavaFileObject> indexed = new ArrayList<>(classpathIndex.list(packageName));
+			if (!otherKinds.isEmpty())
+				addAll(indexed, super.list(location, packageName, otherKinds, recurse));
+			result = indexed;
+		}
+		else
+			result = super.list(location, packageName, kinds, recurse);
 		List<JavaFileObject> files = new ArrayList<>();//MetaList.newLinkedList();
 		if (location == StandardLocation.CLASS_PATH && kinds.contains(JavaFileObject.Kind.CLASS)) {
 			for (JavaFileObject file : sourceFiles().values()) {
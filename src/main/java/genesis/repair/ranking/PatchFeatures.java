@@ -0,0 +1,70 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL
+package genesis.repair.ranking;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import genesis.generator.VarGenerator;
+import genesis.node.MyCtNode;
+import genesis.node.MyNodeSig;
+import genesis.transform.CodeTransform;
+import spoon.reflect.reference.CtVariableReference;
+
+/**
+ * The features of a candidate patch that RankingModel scores. They only
+ * look at the transform, the replaced node and the patch, so the same
+ * features come out of the training corpus and out of a repair run. A
+ * feature is a name and a value, most of them are indicators.
+ */
+public class PatchFeatures {
+
+	public static HashMap<String, Double> extract(CodeTransform transform, int generatorIndex, MyCtNode orig, MyCtNode patch) {
+		HashMap<String, Double> ret = new HashMap<String, Double>();
+		ret.put("gen:" + generatorIndex, 1.0);
+		for (VarGenerator g : transform.getVarGenerators())
+			ret.put("vargen:" + g.getClass().getSimpleName(), 1.0);
+		String origSig = orig.nodeSig().toString();
+		String patchSig = patch.nodeSig().toString();
+		ret.put("orig:" + origSig, 1.0);
+		ret.put("patch:" + patchSig, 1.0);
+		ret.put("orig>patch:" + origSig + ">" + patchSig, 1.0);
+		// The kinds of nodes that the patch adds and removes
+		HashSet<MyNodeSig> origSigs = orig.nodeSigSet();
+		HashSet<MyNodeSig> patchSigs = patch.nodeSigSet();
+		for (MyNodeSig sig : patchSigs)
+			if (!origSigs.contains(sig))
+				ret.put("add:" + sig, 1.0);
+		for (MyNodeSig sig : origSigs)
+			if (!patchSigs.contains(sig))
+				ret.put("del:" + sig, 1.0);
+		// How far the patch goes from the variables of the original code
+		HashSet<String> origVars = new HashSet<String>();
+		HashSet<String> patchVars = new HashSet<String>();
+		collectVars(orig, origVars);
+		collectVars(patch, patchVars);
+		int newVars = 0;
+		for (String v : patchVars)
+			if (!origVars.contains(v))
+				newVars ++;
+		if (newVars > 0)
+			ret.put("var:new", (double) newVars);
+		if (!patchVars.isEmpty() && newVars == 0)
+			ret.put("var:reuse", 1.0);
+		return ret;
+	}
+
+	private static void collectVars(MyCtNode n, Set<String> vars) {
+		if (n.isTrait())
+			return;
+		Object o = n.getRawObject();
+		if (n.isReference()) {
+			if (o instanceof CtVariableReference)
+				vars.add(((CtVariableReference<?>) o).getSimpleName());
+			return;
+		}
+		int m = n.getNumChildren();
+		for (int i = 0; i < m; i++)
+			collectVars(n.getChild(i), vars);
+	}
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL
+package genesis.repair.ranking;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A log-linear model over PatchFeatures, as in Prophet. The score of a
+ * candidate is the dot product of its features with the weights, and the
+ * candidates of one defect form a softmax. The weights are written one per
+ * line as "<weight>\t<feature>", a missing feature weighs 0.
+ */
+public class RankingModel {
+
+	HashMap<String, Double> weights;
+
+	public RankingModel() {
+		this.weights = new HashMap<String, Double>();
+	}
+
+	public double score(Map<String, Double> features) {
+		double ret = 0;
+		for (Entry<String, Double> e : features.entrySet()) {
+			Double w = weights.get(e.getKey());
+			if (w != null)
+				ret += w * e.getValue();
+		}
+		return ret;
+	}
+
+	public int size() {
+		return weights.size();
+	}
+
+	public static RankingModel load(String path) throws IOException {
+		RankingModel ret = new RankingModel();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int idx = line.indexOf('\t');
+				if (idx < 0)
+					continue;
+				ret.weights.put(line.substring(idx + 1), Double.parseDouble(line.substring(0, idx)));
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return ret;
+	}
+
+	public void save(String path) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(path));
+		try {
+			for (Entry<String, Double> e : weights.entrySet()) {
+				writer.write(e.getValue() + "\t" + e.getKey());
+				writer.newLine();
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	// The softmax over the candidates of an instance
+	private double[] probabilities(List<HashMap<String, Double>> candidates) {
+		int n = candidates.size();
+		double[] ret = new double[n];
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			ret[i] = score(candidates.get(i));
+			max = Math.max(max, ret[i]);
+		}
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			ret[i] = Math.exp(ret[i] - max);
+			sum += ret[i];
+		}
+		for (int i = 0; i < n; i++)
+			ret[i] /= sum;
+		return ret;
+	}
+
+	// Maximizes the probability that the softmax of every instance puts on
+	// its correct candidates, with an L2 penalty of lambda, by gradient
+	// ascent one instance at a time
+	public void train(List<List<HashMap<String, Double>>> instances, List<Set<Integer>> corrects, int epochs, double rate, double lambda) {
+		for (int epoch = 0; epoch < epochs; epoch++) {
+			double logLikelihood = 0;
+			for (int k = 0; k < instances.size(); k++) {
+				List<HashMap<String, Double>> candidates = instances.get(k);
+				Set<Integer> correct = corrects.get(k);
+				double[] p = probabilities(candidates);
+				double pCorrect = 0;
+				for (Integer i : correct)
+					pCorrect += p[i];
+				logLikelihood += Math.log(Math.max(pCorrect, Double.MIN_VALUE));
+				// The expected features among the correct candidates minus
+				// the expected features among all of them
+				HashMap<String, Double> grad = new HashMap<String, Double>();
+				for (int i = 0; i < candidates.size(); i++) {
+					double c = -p[i];
+					// Even when the correct ones underflow to 0
+					if (correct.contains(i))
+						c += pCorrect > 0 ? p[i] / pCorrect : 1.0 / correct.size();
+					if (c == 0)
+						continue;
+					for (Entry<String, Double> e : candidates.get(i).entrySet()) {
+						Double g = grad.get(e.getKey());
+						grad.put(e.getKey(), (g == null ? 0 : g) + c * e.getValue());
+					}
+				}
+				for (Entry<String, Double> e : grad.entrySet()) {
+					Double w = weights.get(e.getKey());
+					double v = w == null ? 0 : w;
+					weights.put(e.getKey(), v + rate * (e.getValue() - lambda * v));
+				}
+			}
+			System.out.println("[DEBUG] Ranking epoch " + epoch + ", log likelihood " + logLikelihood);
+		}
+		// Drops the weights that the penalty brought to nothing
+		for (String f : new ArrayList<String>(weights.keySet()))
+			if (Math.abs(weights.get(f)) < 1e-9)
+				weights.remove(f);
+	}
+}
@@ -0,0 +1,126 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The main class of a runner JVM that checks a batch of candidates, see
+ * TestcaseExecutor.setCandidates(). As in PersistentTestRunner, the jars of
+ * the test session are loaded once in a shared library class loader, while
+ * every candidate gets its own CandidateClassLoader over the class
+ * directories, with its classes defined from the bytecode.
+ *
+ * The candidates are read from stdin as written by writeCandidate(). For
+ * every candidate, the runner writes a candidate frame and then runs the
+ * cases with the usual JUnit4Runner/JUnit3Runner main, so the results come
+ * in the usual frames.
+ */
+public class BatchCandidateRunner {
+
+	public static void writeCandidate(DataOutputStream out, String id, Map<String, byte[]> bytecodes) throws IOException {
+		out.writeUTF(id);
+		out.writeInt(bytecodes.size());
+		for (Map.Entry<String, byte[]> e : bytecodes.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeInt(e.getValue().length);
+			out.write(e.getValue());
+		}
+	}
+
+	public static void main(String args[]) throws Exception {
+		// args: <runner class> <genesis location> <session classpath> <classpath separator> <class#method>...
+		String runnerClassName = args[0];
+		String sep = args[3];
+		ArrayList<URL> libURLs = new ArrayList<URL>();
+		ArrayList<URL> dirURLs = new ArrayList<URL>();
+		libURLs.add(PersistentTestRunner.toURL(args[1]));
+		for (String entry : args[2].split(sep)) {
+			if (entry.trim().isEmpty()) continue;
+			if (new File(entry).isDirectory())
+				dirURLs.add(PersistentTestRunner.toURL(entry));
+			else
+				libURLs.add(PersistentTestRunner.toURL(entry));
+		}
+		String[] cases = new String[args.length - 4];
+		System.arraycopy(args, 4, cases, 0, cases.length);
+
+		URLClassLoader libLoader = new URLClassLoader(libURLs.toArray(new URL[libURLs.size()]),
+				ClassLoader.getSystemClassLoader().getParent());
+		Method runMethod = libLoader.loadClass(runnerClassName).getMethod("main", String[].class);
+		URL[] dirs = dirURLs.toArray(new URL[dirURLs.size()]);
+
+		RunnerProtocol protocol = RunnerProtocol.createForStdout();
+		// Only frames go to stdout, stray output of the tests goes to stderr
+		PrintStream stray = System.err;
+		System.setOut(stray);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		while (true) {
+			String id;
+			HashMap<String, byte[]> bytecodes = new HashMap<String, byte[]>();
+			try {
+				id = in.readUTF();
+				int n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					String name = in.readUTF();
+					byte[] b = new byte[in.readInt()];
+					in.readFully(b);
+					bytecodes.put(name, b);
+				}
+			}
+			catch (EOFException e) {
+				break;
+			}
+			protocol.candidateStarted(id);
+			CandidateClassLoader loader = new CandidateClassLoader(dirs, libLoader, bytecodes);
+			Thread.currentThread().setContextClassLoader(loader);
+			try {
+				runMethod.invoke(null, (Object) cases);
+			}
+			catch (InvocationTargetException e) {
+				ByteArrayOutputStream trace = new ByteArrayOutputStream();
+				e.getCause().printStackTrace(new PrintStream(trace, true));
+				protocol.text(trace.toString());
+			}
+			finally {
+				Thread.currentThread().setContextClassLoader(null);
+				// The runner may redirect them
+				System.setOut(stray);
+				System.setErr(stray);
+				try {
+					loader.close();
+				}
+				catch (IOException ignore) { }
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+
+/**
+ * Loads the project classes of one candidate. The classes of the candidate
+ * are defined straight from their bytecode, before the class directories
+ * are searched, so the rest of the project links against the candidate.
+ */
+public class CandidateClassLoader extends URLClassLoader {
+
+	Map<String, byte[]> bytecodes;
+
+	public CandidateClassLoader(URL[] urls, ClassLoader parent, Map<String, byte[]> bytecodes) {
+		super(urls, parent);
+		this.bytecodes = bytecodes;
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		byte[] b = bytecodes.get(name);
+		if (b != null)
+			return defineClass(name, b, 0, b.length);
+		return super.findClass(name);
+	}
+}
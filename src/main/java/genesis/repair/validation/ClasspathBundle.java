@@ -0,0 +1,194 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import genesis.Config;
+import genesis.GenesisException;
+
+/**
+ * The working directory and the class path of a test session, as shipped to
+ * the validation workers. A bundle is named by the hash of its content, so a
+ * worker installs it once and reuses it for all the candidates, and a
+ * changed jar gives a new bundle.
+ *
+ * The first root of a bundle is the working directory of the tests, the
+ * others are the class path entries outside of it. The class path entries
+ * are kept relative to the bundle, e.g., 0/target/classes or 2/junit-4.12.jar.
+ */
+public class ClasspathBundle {
+
+	// The relative class path of an installed bundle, one entry per line
+	static final String ClasspathFile = "classpath.txt";
+
+	String hash;
+	ArrayList<Path> roots;
+	ArrayList<String> entries;
+
+	private ClasspathBundle() {
+		this.hash = null;
+		this.roots = new ArrayList<Path>();
+		this.entries = new ArrayList<String>();
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public static ClasspathBundle create(String workDir, String classPath) throws IOException {
+		ClasspathBundle ret = new ClasspathBundle();
+		Path work = Paths.get(workDir).toAbsolutePath().normalize();
+		ret.roots.add(work);
+		for (String entry : classPath.split(Config.classPathSep)) {
+			if (entry.trim().isEmpty())
+				continue;
+			// The tests run in the working directory, so relative entries are relative to it
+			Path p = work.resolve(entry.trim()).normalize();
+			if (!Files.exists(p))
+				continue;
+			if (p.startsWith(work)) {
+				String rel = work.relativize(p).toString().replace('\\', '/');
+				ret.entries.add(rel.isEmpty() ? "0" : "0/" + rel);
+				continue;
+			}
+			int idx = ret.roots.indexOf(p);
+			if (idx < 0) {
+				idx = ret.roots.size();
+				ret.roots.add(p);
+			}
+			if (Files.isDirectory(p))
+				ret.entries.add(Integer.toString(idx));
+			else
+				ret.entries.add(idx + "/" + p.getFileName());
+		}
+		ret.hash = ret.computeHash();
+		return ret;
+	}
+
+	private String computeHash() throws IOException {
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new GenesisException("SHA-1 is not available!");
+		}
+		for (String entry : entries) {
+			md.update(entry.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) '\n');
+		}
+		byte[] buf = new byte[65536];
+		for (int i = 0; i < roots.size(); i++)
+			for (Path f : WorkerProtocol.listFiles(roots.get(i))) {
+				md.update((i + "/" + WorkerProtocol.getRelativeName(roots.get(i), f) + "\n").getBytes(StandardCharsets.UTF_8));
+				InputStream in = Files.newInputStream(f);
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0)
+						md.update(buf, 0, n);
+				}
+				finally {
+					in.close();
+				}
+			}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest())
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(entries.size());
+		for (String entry : entries)
+			WorkerProtocol.writeString(out, entry);
+		out.writeInt(roots.size());
+		for (Path root : roots)
+			WorkerProtocol.writeTree(out, root);
+	}
+
+	public static boolean isValidHash(String hash) {
+		return hash.matches("[0-9a-f]{40}");
+	}
+
+	public static boolean isInstalled(Path cacheDir, String hash) {
+		return Files.isRegularFile(cacheDir.resolve(hash).resolve(ClasspathFile));
+	}
+
+	// Reads a bundle written by write() into cacheDir/hash. The bundle goes
+	// to a temp directory first and is then moved in place, so the workers
+	// that share cacheDir never see a partial bundle.
+	public static void install(DataInputStream in, Path cacheDir, String hash) throws IOException {
+		Path tmp = Files.createTempDirectory(cacheDir, hash + ".");
+		try {
+			int n = in.readInt();
+			ArrayList<String> entries = new ArrayList<String>();
+			for (int i = 0; i < n; i++)
+				entries.add(WorkerProtocol.readString(in));
+			int nRoots = in.readInt();
+			for (int i = 0; i < nRoots; i++) {
+				Path root = tmp.resolve(Integer.toString(i));
+				Files.createDirectories(root);
+				WorkerProtocol.readTree(in, root);
+			}
+			Files.write(tmp.resolve(ClasspathFile), entries, StandardCharsets.UTF_8);
+			try {
+				Files.move(tmp, cacheDir.resolve(hash), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e) {
+				// Fine if another worker installed it in the meantime
+				if (!isInstalled(cacheDir, hash))
+					throw e;
+			}
+		}
+		finally {
+			FileUtils.deleteQuietly(tmp.toFile());
+		}
+	}
+
+	public static String getWorkDir(Path bundleDir) {
+		return bundleDir.resolve("0").toString();
+	}
+
+	public static String getClasspath(Path bundleDir) throws IOException {
+		List<String> entries = Files.readAllLines(bundleDir.resolve(ClasspathFile), StandardCharsets.UTF_8);
+		StringBuilder ret = new StringBuilder();
+		for (String entry : entries) {
+			if (entry.isEmpty())
+				continue;
+			if (ret.length() > 0)
+				ret.append(Config.classPathSep);
+			ret.append(bundleDir.resolve(entry).toString());
+		}
+		return ret.toString();
+	}
+}
@@ -0,0 +1,105 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * A java agent that records which methods of the project every test runs.
+ * CoverageTransformer inserts a call to hit() at the entry of every method of
+ * the classes loaded from class directories, and the test runners call
+ * report() after each test. See TestCoverage for the genesis side.
+ */
+public class CoverageAgent {
+
+	public static final String CoverageSEP = "__GENESISCOVERAGE:";
+	public static final String MethodSEP = "__GENESISCOVMETHOD:";
+
+	private static boolean active = false;
+	private static volatile boolean[] hits = new boolean[1 << 12];
+	private static ArrayList<String> methods = new ArrayList<String>();
+	private static int reportedMethods = 0;
+
+	public static void premain(String args, Instrumentation inst) {
+		active = true;
+		inst.addTransformer(new CoverageTransformer());
+	}
+
+	public static boolean isActive() {
+		return active;
+	}
+
+	public static void hit(int id) {
+		boolean[] h = hits;
+		if (id < h.length)
+			h[id] = true;
+	}
+
+	// Returns the id of a new method, srcFile is the source path relative to the source root
+	static synchronized int register(String srcFile, String className, String methodName, String desc) {
+		int id = methods.size();
+		methods.add(srcFile + " " + className + " " + methodName + " " + desc);
+		if (id >= hits.length) {
+			boolean[] h = new boolean[hits.length * 2];
+			System.arraycopy(hits, 0, h, 0, hits.length);
+			hits = h;
+		}
+		return id;
+	}
+
+	static synchronized void setLines(int id, int firstLine, int lastLine) {
+		methods.set(id, methods.get(id) + " " + firstLine + " " + lastLine);
+	}
+
+	// Prints the methods registered since the last report and the methods
+	// the last test covered, then resets the hits for the next test
+	public static synchronized void report(PrintStream out) {
+		for (; reportedMethods < methods.size(); reportedMethods ++)
+			out.println(MethodSEP + " " + reportedMethods + " " + methods.get(reportedMethods));
+		StringBuffer line = new StringBuffer(CoverageSEP);
+		boolean[] h = hits;
+		for (int i = 0; i < h.length; i++)
+			if (h[i]) {
+				line.append(" " + i);
+				h[i] = false;
+			}
+		out.println(line.toString());
+	}
+
+	// The agent jar only has a manifest, the classes come from the genesis
+	// and asm locations on its Class-Path
+	public static void createAgentJar(Path jarPath) throws IOException {
+		Manifest m = new Manifest();
+		Attributes attrs = m.getMainAttributes();
+		attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attrs.put(new Attributes.Name("Premain-Class"), CoverageAgent.class.getName());
+		String genesisLoc = CoverageAgent.class.getProtectionDomain().getCodeSource().getLocation().toString();
+		String asmLoc = org.objectweb.asm.ClassReader.class.getProtectionDomain().getCodeSource().getLocation().toString();
+		attrs.put(Attributes.Name.CLASS_PATH, genesisLoc.equals(asmLoc) ? genesisLoc : genesisLoc + " " + asmLoc);
+		JarOutputStream jos = new JarOutputStream(new FileOutputStream(jarPath.toFile()), m);
+		jos.close();
+	}
+}
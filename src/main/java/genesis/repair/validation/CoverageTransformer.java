@@ -0,0 +1,143 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Inserts a CoverageAgent.hit() call at the entry of every method of the
+ * classes that come from a class directory, i.e., the classes of the
+ * project and its tests, but not the ones in the library jars.
+ */
+public class CoverageTransformer implements ClassFileTransformer {
+
+	private static final String[] skipPrefixes = { "java/", "javax/", "sun/", "com/sun/", "jdk/",
+			"genesis/", "org/junit/", "junit/", "org/hamcrest/", "org/objectweb/asm/" };
+
+	private static final String agentName = CoverageAgent.class.getName().replace('.', '/');
+
+	private boolean shouldInstrument(String className, ProtectionDomain pd) {
+		if (className == null || pd == null || pd.getCodeSource() == null || pd.getCodeSource().getLocation() == null)
+			return false;
+		if (!pd.getCodeSource().getLocation().getPath().endsWith("/"))
+			return false;
+		for (String prefix : skipPrefixes)
+			if (className.startsWith(prefix))
+				return false;
+		return true;
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+		if (!shouldInstrument(className, protectionDomain))
+			return null;
+		try {
+			ClassReader reader = new ClassReader(classfileBuffer);
+			ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+			reader.accept(new CoverageClassVisitor(writer), 0);
+			return writer.toByteArray();
+		}
+		catch (Throwable e) {
+			// Leave the class alone, the test will just report less coverage
+			return null;
+		}
+	}
+
+	static class CoverageClassVisitor extends ClassVisitor {
+		String className;
+		String srcFile;
+
+		CoverageClassVisitor(ClassVisitor cv) {
+			super(Opcodes.ASM5, cv);
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+			super.visit(version, access, name, signature, superName, interfaces);
+			className = name;
+			String simpleName = name.substring(name.lastIndexOf('/') + 1);
+			if (simpleName.indexOf('$') != -1)
+				simpleName = simpleName.substring(0, simpleName.indexOf('$'));
+			srcFile = getPackagePrefix() + simpleName + ".java";
+		}
+
+		private String getPackagePrefix() {
+			int idx = className.lastIndexOf('/');
+			return idx == -1 ? "" : className.substring(0, idx + 1);
+		}
+
+		@Override
+		public void visitSource(String source, String debug) {
+			super.visitSource(source, debug);
+			if (source != null)
+				srcFile = getPackagePrefix() + source;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+			MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+			if (mv == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+				return mv;
+			int id = CoverageAgent.register(srcFile, className.replace('/', '.'), name, desc);
+			return new CoverageMethodVisitor(mv, id);
+		}
+	}
+
+	static class CoverageMethodVisitor extends MethodVisitor {
+		int id;
+		int firstLine, lastLine;
+
+		CoverageMethodVisitor(MethodVisitor mv, int id) {
+			super(Opcodes.ASM5, mv);
+			this.id = id;
+			this.firstLine = -1;
+			this.lastLine = -1;
+		}
+
+		@Override
+		public void visitCode() {
+			super.visitCode();
+			super.visitLdcInsn(id);
+			super.visitMethodInsn(Opcodes.INVOKESTATIC, agentName, "hit", "(I)V", false);
+		}
+
+		@Override
+		public void visitLineNumber(int line, Label start) {
+			super.visitLineNumber(line, start);
+			if (firstLine == -1 || line < firstLine)
+				firstLine = line;
+			if (line > lastLine)
+				lastLine = line;
+		}
+
+		@Override
+		public void visitEnd() {
+			super.visitEnd();
+			CoverageAgent.setLines(id, firstLine, lastLine);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import genesis.Config;
+import genesis.GenesisException;
+import genesis.repair.WorkdirManager;
+
+/**
+ * A TestingOracle that runs the tests on the ValidationWorkers listed in
+ * Config.validationWorkers. The candidates are still compiled here, and every
+ * job ships the class files of one candidate with a shard of its cases. The
+ * shards are scheduled on the idle workers and, with stop on failure, the
+ * first failed shard cancels the others. A shard whose worker fails runs
+ * locally instead.
+ */
+public class DistributedOracle extends TestingOracle {
+
+	static final int ConnectTimeout = 10000;
+
+	// A connection to one worker, it runs one job at a time
+	static class WorkerClient {
+		String host;
+		int port;
+		Socket socket;
+		DataInputStream in;
+		DataOutputStream out;
+		// The bundles that we know the worker has
+		HashSet<String> bundles;
+
+		WorkerClient(String host, int port) {
+			this.host = host;
+			this.port = port;
+			this.socket = null;
+			this.in = null;
+			this.out = null;
+			this.bundles = new HashSet<String>();
+		}
+
+		private Socket connect() throws IOException {
+			Socket s = new Socket();
+			try {
+				s.connect(new InetSocketAddress(host, port), ConnectTimeout);
+				WorkerProtocol.authenticate(new DataInputStream(s.getInputStream()), new DataOutputStream(s.getOutputStream()), Config.workerSecret);
+			}
+			catch (IOException e) {
+				s.close();
+				throw e;
+			}
+			return s;
+		}
+
+		synchronized HashMap<Testcase, TestResult> run(ClasspathBundle bundle, String jobId, Path classDir,
+				List<Testcase> cases, Map<String, String> sysProps, TestTimeBudget budget) throws IOException {
+			try {
+				if (socket == null) {
+					socket = connect();
+					in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+					out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				}
+				if (!bundles.contains(bundle.getHash())) {
+					out.writeByte(WorkerProtocol.HasBundleMsg);
+					WorkerProtocol.writeString(out, bundle.getHash());
+					out.flush();
+					if (!in.readBoolean()) {
+						System.out.println("[DEBUG] Shipping bundle " + bundle.getHash() + " to " + this);
+						out.writeByte(WorkerProtocol.PutBundleMsg);
+						WorkerProtocol.writeString(out, bundle.getHash());
+						bundle.write(out);
+						out.flush();
+						in.readBoolean();
+					}
+					bundles.add(bundle.getHash());
+				}
+				out.writeByte(WorkerProtocol.RunMsg);
+				WorkerProtocol.writeString(out, bundle.getHash());
+				WorkerProtocol.writeString(out, jobId);
+				WorkerProtocol.writeTree(out, classDir);
+				WorkerProtocol.writeCases(out, cases);
+				WorkerProtocol.writeProperties(out, sysProps);
+				for (Testcase c : cases)
+					out.writeLong(budget == null ? -1 : budget.getBaseline(c));
+				out.flush();
+				return WorkerProtocol.readResults(in);
+			}
+			catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		// Uses its own connection, the one of the job is waiting for the results
+		void cancel(String jobId) {
+			try {
+				Socket s = connect();
+				try {
+					DataOutputStream cout = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+					cout.writeByte(WorkerProtocol.CancelMsg);
+					WorkerProtocol.writeString(cout, jobId);
+					cout.flush();
+					new DataInputStream(s.getInputStream()).readBoolean();
+				}
+				finally {
+					s.close();
+				}
+			}
+			catch (IOException e) {
+				System.out.println("[WARN]Unable to cancel job " + jobId + " on " + this);
+			}
+		}
+
+		private void close() {
+			try {
+				if (socket != null)
+					socket.close();
+			}
+			catch (IOException ignore) { }
+			socket = null;
+			bundles.clear();
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port;
+		}
+	}
+
+	ArrayList<WorkerClient> workers;
+	LinkedBlockingQueue<WorkerClient> idleWorkers;
+	// The bundles of the test sessions, by session id
+	Map<Integer, ClasspathBundle> bundles;
+	// The shards that fall back to running locally share the working
+	// directory of this oracle, so they run one at a time
+	final Object localLock;
+
+	public DistributedOracle(WorkdirManager manager) {
+		super(manager);
+		this.workers = new ArrayList<WorkerClient>();
+		for (String addr : Config.validationWorkers.split(",")) {
+			addr = addr.trim();
+			if (addr.isEmpty())
+				continue;
+			int idx = addr.lastIndexOf(':');
+			if (idx < 0)
+				throw new GenesisException("Invalid validation worker address " + addr + ", expect host:port!");
+			workers.add(new WorkerClient(addr.substring(0, idx), Integer.parseInt(addr.substring(idx + 1))));
+		}
+		this.idleWorkers = new LinkedBlockingQueue<WorkerClient>(workers);
+		this.bundles = new HashMap<Integer, ClasspathBundle>();
+		this.localLock = new Object();
+	}
+
+	// The worker oracles of the pipeline share the workers, and keep their
+	// own working copy and tmpdir for the shards that run locally
+	@Override
+	public TestingOracle createWorkerOracle(String testWorkDir, String testTmpDir) {
+		DistributedOracle ret = new DistributedOracle(manager);
+		ret.compiledHashes = compiledHashes;
+		ret.hashedSources = hashedSources;
+		ret.inProcess = inProcess;
+		ret.runningShards = runningShards;
+		ret.cancelled = cancelled;
+		ret.workers = workers;
+		ret.idleWorkers = idleWorkers;
+		ret.bundles = bundles;
+		ret.testWorkDir = testWorkDir;
+		ret.testTmpDir = testTmpDir;
+		return ret;
+	}
+
+	private ClasspathBundle getBundle(Integer id) throws IOException {
+		synchronized (bundles) {
+			if (!bundles.containsKey(id)) {
+				System.out.println("[DEBUG] Hashing the class path of test session " + id);
+				bundles.put(id, ClasspathBundle.create(manager.getWorkSrcDir(), manager.getTestSessionClasspath(id)));
+			}
+			return bundles.get(id);
+		}
+	}
+
+	@Override
+	public Map<Testcase, TestResult> runTestcasesForResults(final Path extraTestClassPath, final Map<String, String> sysProps, List<Testcase> cases) {
+		// The jobs already on the workers run to their end, see cancelAll()
+		if (isCancelled())
+			return new HashMap<Testcase, TestResult>();
+		// The coverage agent only runs here
+		if (workers.isEmpty() || coverageCollector != null || extraTestClassPath == null || !Files.isDirectory(extraTestClassPath))
+			return super.runTestcasesForResults(extraTestClassPath, sysProps, cases);
+		LinkedHashMap<Integer, ArrayList<Testcase>> sessionM = groupBySession(cases);
+		final TestTimeBudget budget = manager.getTestTimeBudget();
+		final List<TestShard> shards = TestShard.split(sessionM, Math.max(workers.size(), Config.testShards), budget);
+		if (shards.isEmpty())
+			return new HashMap<Testcase, TestResult>();
+		boolean stopOnFailure = RunnerProtocol.isStopOnFailure(sysProps);
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		// The jobs that run on the workers by id
+		final ConcurrentHashMap<String, WorkerClient> running = new ConcurrentHashMap<String, WorkerClient>();
+		ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+		ExecutorCompletionService<HashMap<Testcase, TestResult>> completion = new ExecutorCompletionService<HashMap<Testcase, TestResult>>(executor);
+		HashMap<Future<HashMap<Testcase, TestResult>>, TestShard> futures = new HashMap<Future<HashMap<Testcase, TestResult>>, TestShard>();
+		HashMap<Testcase, TestResult> ret = new HashMap<Testcase, TestResult>();
+		try {
+			for (final TestShard shard : shards) {
+				Future<HashMap<Testcase, TestResult>> future = completion.submit(new Callable<HashMap<Testcase, TestResult>>() {
+					@Override
+					public HashMap<Testcase, TestResult> call() throws InterruptedException {
+						return runShard(shard, extraTestClassPath, sysProps, budget, cancelled, running);
+					}
+				});
+				futures.put(future, shard);
+			}
+			for (int i = 0; i < shards.size(); i++) {
+				Future<HashMap<Testcase, TestResult>> future = completion.take();
+				HashMap<Testcase, TestResult> res = future.get();
+				ret.putAll(res);
+				// A case without a result counts as failed
+				if (stopOnFailure && !cancelled.get() && getPassedCases(res).size() != futures.get(future).cases.size()) {
+					cancelled.set(true);
+					for (Map.Entry<String, WorkerClient> e : running.entrySet())
+						e.getValue().cancel(e.getKey());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new GenesisException("Genesis is interrupted during testing!");
+		}
+		catch (ExecutionException e) {
+			e.printStackTrace();
+			throw new GenesisException("A test shard hits unexpected problems!");
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return ret;
+	}
+
+	private HashMap<Testcase, TestResult> runShard(TestShard shard, Path extraTestClassPath, Map<String, String> sysProps,
+			TestTimeBudget budget, AtomicBoolean cancelled, ConcurrentHashMap<String, WorkerClient> running) throws InterruptedException {
+		WorkerClient worker = idleWorkers.take();
+		try {
+			String jobId = UUID.randomUUID().toString();
+			running.put(jobId, worker);
+			try {
+				// Checked after we register, so that the canceller either sees us or we see it
+				if (cancelled.get())
+					return new HashMap<Testcase, TestResult>();
+				return worker.run(getBundle(shard.sessionId), jobId, extraTestClassPath, shard.cases, sysProps, budget);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("[WARN]Validation worker " + worker + " failed, run the shard locally!");
+			}
+			finally {
+				running.remove(jobId);
+			}
+		}
+		finally {
+			idleWorkers.put(worker);
+		}
+		synchronized (localLock) {
+			return new HashMap<Testcase, TestResult>(super.runTestcasesForResults(extraTestClassPath, sysProps, shard.cases));
+		}
+	}
+}
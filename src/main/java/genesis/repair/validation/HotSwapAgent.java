@@ -0,0 +1,301 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * A java agent for the hot swap mode of PersistentTestRunner. The project and
+ * test classes stay loaded in one resident class loader, and the classes of a
+ * candidate are redefined in place for its request and then restored. The
+ * JVM only redefines method bodies, so a candidate that adds or removes
+ * fields, methods or classes, or changes a signature, is refused by
+ * swapIn() and runs in a fresh class loader as usual. Redefinition does not
+ * run <clinit> again either, so a candidate that changes the static
+ * initialization of a class is refused too.
+ */
+public class HotSwapAgent {
+
+	private static Instrumentation inst = null;
+
+	public static void premain(String args, Instrumentation inst) {
+		HotSwapAgent.inst = inst;
+	}
+
+	public static boolean isActive() {
+		return inst != null && inst.isRedefineClassesSupported();
+	}
+
+	ClassLoader resident;
+	// The bytecode that the resident classes were loaded from, by class name
+	HashMap<String, byte[]> originals;
+
+	public HotSwapAgent(ClassLoader resident) {
+		this.resident = resident;
+		this.originals = new HashMap<String, byte[]>();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			out.write(buf, 0, n);
+		return out.toByteArray();
+	}
+
+	// The class files under the class directories of a candidate
+	static HashMap<String, byte[]> readClassFiles(List<File> dirs) throws IOException {
+		HashMap<String, byte[]> ret = new HashMap<String, byte[]>();
+		for (File dir : dirs) {
+			List<Path> files = WorkerProtocol.listFiles(dir.toPath());
+			for (Path f : files) {
+				String name = WorkerProtocol.getRelativeName(dir.toPath(), f);
+				if (!name.endsWith(".class"))
+					continue;
+				ret.put(name.substring(0, name.length() - 6).replace('/', '.'), Files.readAllBytes(f));
+			}
+		}
+		return ret;
+	}
+
+	private ArrayList<ClassDefinition> getDefinitions(HashMap<String, byte[]> bytecodes, boolean original) throws Exception {
+		ArrayList<ClassDefinition> ret = new ArrayList<ClassDefinition>();
+		for (String name : bytecodes.keySet()) {
+			Class<?> c = Class.forName(name, false, resident);
+			// A class of the test libraries is never swapped
+			if (c.getClassLoader() != resident)
+				throw new ClassNotFoundException(name);
+			if (!originals.containsKey(name)) {
+				InputStream in = resident.getResourceAsStream(name.replace('.', '/') + ".class");
+				if (in == null)
+					throw new ClassNotFoundException(name);
+				try {
+					originals.put(name, readAll(in));
+				}
+				finally {
+					in.close();
+				}
+			}
+			ret.add(new ClassDefinition(c, original ? originals.get(name) : bytecodes.get(name)));
+		}
+		return ret;
+	}
+
+	// Prints the instructions of <clinit>, without the debug information
+	static class StaticInitPrinter extends MethodVisitor {
+		StringBuilder sb;
+		// Labels are named by the order we first see them
+		IdentityHashMap<Label, Integer> labels;
+
+		StaticInitPrinter(StringBuilder sb) {
+			super(Opcodes.ASM5);
+			this.sb = sb;
+			this.labels = new IdentityHashMap<Label, Integer>();
+		}
+
+		private String name(Label l) {
+			if (!labels.containsKey(l))
+				labels.put(l, labels.size());
+			return "L" + labels.get(l);
+		}
+
+		private void print(Object... parts) {
+			for (Object o : parts)
+				sb.append(o instanceof Label ? name((Label) o) : String.valueOf(o)).append(' ');
+			sb.append('\n');
+		}
+
+		@Override
+		public void visitInsn(int opcode) {
+			print(opcode);
+		}
+
+		@Override
+		public void visitIntInsn(int opcode, int operand) {
+			print(opcode, operand);
+		}
+
+		@Override
+		public void visitVarInsn(int opcode, int var) {
+			print(opcode, var);
+		}
+
+		@Override
+		public void visitTypeInsn(int opcode, String type) {
+			print(opcode, type);
+		}
+
+		@Override
+		public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+			print(opcode, owner, name, desc);
+		}
+
+		@Override
+		public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+			print(opcode, owner, name, desc, itf);
+		}
+
+		@Override
+		public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+			print("indy", name, desc, bsm, Arrays.asList(bsmArgs));
+		}
+
+		@Override
+		public void visitJumpInsn(int opcode, Label label) {
+			print(opcode, label);
+		}
+
+		@Override
+		public void visitLabel(Label label) {
+			print("label", label);
+		}
+
+		@Override
+		public void visitLdcInsn(Object cst) {
+			print("ldc", cst.getClass().getName(), cst);
+		}
+
+		@Override
+		public void visitIincInsn(int var, int increment) {
+			print("iinc", var, increment);
+		}
+
+		@Override
+		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+			print("tableswitch", min, max, dflt);
+			for (Label l : labels)
+				print("case", l);
+		}
+
+		@Override
+		public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+			print("lookupswitch", dflt);
+			for (int i = 0; i < keys.length; i++)
+				print("case", keys[i], labels[i]);
+		}
+
+		@Override
+		public void visitMultiANewArrayInsn(String desc, int dims) {
+			print("multianewarray", desc, dims);
+		}
+
+		@Override
+		public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+			print("try", start, end, handler, type);
+		}
+	}
+
+	// The static initialization of a class, the code of <clinit> and the
+	// constant values of the static fields
+	static String getStaticInit(byte[] bytecode) {
+		final StringBuilder sb = new StringBuilder();
+		new ClassReader(bytecode).accept(new ClassVisitor(Opcodes.ASM5) {
+			@Override
+			public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+				if ((access & Opcodes.ACC_STATIC) != 0 && value != null)
+					sb.append("field ").append(name).append(' ').append(value).append('\n');
+				return null;
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				if (name.equals("<clinit>")) {
+					sb.append("<clinit>\n");
+					return new StaticInitPrinter(sb);
+				}
+				return null;
+			}
+		}, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		return sb.toString();
+	}
+
+	// Returns false and changes nothing if the candidate cannot be swapped in,
+	// e.g., it has a new class, changes the fields or the signatures, or
+	// changes the static initialization
+	public boolean swapIn(HashMap<String, byte[]> bytecodes) {
+		try {
+			ArrayList<ClassDefinition> defs = getDefinitions(bytecodes, false);
+			for (String name : bytecodes.keySet())
+				if (!getStaticInit(originals.get(name)).equals(getStaticInit(bytecodes.get(name))))
+					return false;
+			inst.redefineClasses(defs.toArray(new ClassDefinition[defs.size()]));
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+		catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	// Returns false if the original classes cannot be restored, the resident
+	// classes are then unusable
+	public boolean swapOut(HashMap<String, byte[]> bytecodes) {
+		try {
+			ArrayList<ClassDefinition> defs = getDefinitions(bytecodes, true);
+			inst.redefineClasses(defs.toArray(new ClassDefinition[defs.size()]));
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+		catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	// The agent jar only has a manifest, the classes come from the genesis
+	// and the ASM locations on its Class-Path
+	public static void createAgentJar(Path jarPath) throws IOException {
+		Manifest m = new Manifest();
+		Attributes attrs = m.getMainAttributes();
+		attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attrs.put(new Attributes.Name("Premain-Class"), HotSwapAgent.class.getName());
+		attrs.put(new Attributes.Name("Can-Redefine-Classes"), "true");
+		attrs.put(Attributes.Name.CLASS_PATH, HotSwapAgent.class.getProtectionDomain().getCodeSource().getLocation().toString()
+				+ " " + ClassReader.class.getProtectionDomain().getCodeSource().getLocation().toString());
+		JarOutputStream jos = new JarOutputStream(new FileOutputStream(jarPath.toFile()), m);
+		jos.close();
+	}
+}
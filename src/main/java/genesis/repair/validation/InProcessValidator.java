@@ -0,0 +1,339 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import genesis.Config;
+import genesis.repair.WorkdirManager;
+
+/**
+ * The first tier of the validation. It runs the negative cases inside the
+ * genesis JVM, with the candidate classes defined straight from the compiled
+ * bytecode in memory, so most candidates get rejected without any disk I/O
+ * or JVM fork. The class loaders are split as in PersistentTestRunner: the
+ * jars of a test session are loaded once, and the class directories are
+ * loaded again for every candidate, in a loader that defines the candidate
+ * classes first.
+ *
+ * This tier can only reject. A candidate is rejected if it fails a negative
+ * case with the same exception as the original program, and only for the
+ * cases whose failure on the original program is the same here and in a
+ * forked runner. A test that depends on the working directory or on system
+ * properties is thus never trusted here. Everything else goes on to the
+ * forked runners.
+ */
+public class InProcessValidator {
+
+	// How long we wait for the threads that a case starts
+	static final long ThreadGraceTime = 200;
+
+	static final Pattern ExceptionPattern = Pattern.compile("^((?:[\\w$]+\\.)+[\\w$]*(?:Exception|Error|Throwable|Failure)[\\w$]*)(?::.*)?$");
+
+	static class Session {
+		URLClassLoader libLoader;
+		URL[] dirURLs;
+		Method runMethod;
+	}
+
+	// The threads of the in-process cases and of whatever they start
+	static final ThreadGroup sandbox = new ThreadGroup("genesis-inprocess");
+	static boolean guardsInstalled = false;
+	// Whether System.exit() from a case is refused, see installGuards()
+	static boolean exitGuarded = false;
+
+	static boolean inSandbox() {
+		for (ThreadGroup g = Thread.currentThread().getThreadGroup(); g != null; g = g.getParent())
+			if (g == sandbox)
+				return true;
+		return false;
+	}
+
+	// Drops what the in-process cases print, and keeps the output of genesis
+	static class SandboxFilterStream extends FilterOutputStream {
+		SandboxFilterStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!inSandbox())
+				out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!inSandbox())
+				out.write(b, off, len);
+		}
+	}
+
+	// Only stops the in-process cases from calling System.exit()
+	static class ExitGuard extends SecurityManager {
+		@Override
+		public void checkPermission(Permission perm) { }
+
+		@Override
+		public void checkPermission(Permission perm, Object context) { }
+
+		@Override
+		public void checkExit(int status) {
+			if (inSandbox())
+				throw new SecurityException("System.exit() from an in-process test case");
+		}
+	}
+
+	// Returns false if a case could still call System.exit() on genesis
+	private static synchronized boolean installGuards() {
+		if (guardsInstalled)
+			return exitGuarded;
+		guardsInstalled = true;
+		System.setOut(new PrintStream(new SandboxFilterStream(System.out), true));
+		System.setErr(new PrintStream(new SandboxFilterStream(System.err), true));
+		try {
+			if (System.getSecurityManager() == null)
+				System.setSecurityManager(new ExitGuard());
+			exitGuarded = System.getSecurityManager() instanceof ExitGuard;
+		}
+		catch (UnsupportedOperationException e) {
+			// The JDK does not allow a security manager at all
+			exitGuarded = false;
+		}
+		if (!exitGuarded)
+			System.out.println("[WARN]Unable to guard System.exit() in the in-process test cases!");
+		return exitGuarded;
+	}
+
+	WorkdirManager manager;
+	TestingOracle oracle;
+	HashMap<Integer, Session> sessions;
+	// The exception of the original program for the trusted cases, null if
+	// the case is not trusted
+	HashMap<Testcase, String> signatures;
+	volatile boolean disabled;
+
+	public InProcessValidator(WorkdirManager manager, TestingOracle oracle) {
+		this.manager = manager;
+		this.oracle = oracle;
+		this.sessions = new HashMap<Integer, Session>();
+		this.signatures = null;
+		this.disabled = false;
+	}
+
+	static URL toURL(String path) throws IOException {
+		return new File(path).toURI().toURL();
+	}
+
+	private synchronized Session getSession(int id) throws Exception {
+		if (sessions.containsKey(id))
+			return sessions.get(id);
+		String classPath = manager.getTestSessionClasspath(id);
+		ArrayList<URL> libURLs = new ArrayList<URL>();
+		ArrayList<URL> dirURLs = new ArrayList<URL>();
+		Class<?> runnerClass = TestcaseExecutor.detectRunnerClass(classPath);
+		libURLs.add(toURL(TestcaseExecutor.getRunnerLocation(runnerClass)));
+		for (String entry : classPath.split(Config.classPathSep)) {
+			if (entry.trim().isEmpty()) continue;
+			// Relative entries are relative to the work source directory, not to us
+			File f = new File(entry);
+			if (!f.isAbsolute())
+				f = new File(manager.getWorkSrcDir(), entry);
+			if (f.isDirectory())
+				dirURLs.add(toURL(f.getPath()));
+			else
+				libURLs.add(toURL(f.getPath()));
+		}
+		Session s = new Session();
+		s.libLoader = new URLClassLoader(libURLs.toArray(new URL[libURLs.size()]),
+				ClassLoader.getSystemClassLoader().getParent());
+		s.dirURLs = dirURLs.toArray(new URL[dirURLs.size()]);
+		s.runMethod = s.libLoader.loadClass(runnerClass.getName()).getMethod("runCase", String.class, String.class);
+		sessions.put(id, s);
+		return s;
+	}
+
+	// The exception class of the first exception in a failure message, null
+	// if there is none
+	static String getSignature(String msg) {
+		if (msg == null)
+			return null;
+		for (String line : msg.split("\n")) {
+			Matcher m = ExceptionPattern.matcher(line.trim());
+			if (m.matches())
+				return m.group(1);
+		}
+		return null;
+	}
+
+	// Runs the negative cases on the original program here and in a forked
+	// runner, and trusts the cases that fail with the same exception
+	private synchronized HashMap<Testcase, String> getSignatures() {
+		if (signatures != null)
+			return signatures;
+		signatures = new HashMap<Testcase, String>();
+		List<Testcase> cases = manager.getNegativeCases();
+		Map<Testcase, TestResult> forked = oracle.runTestcasesForResults(cases);
+		int trusted = 0;
+		for (Testcase c : cases) {
+			TestResult r = runCase(c, new HashMap<String, byte[]>());
+			String sig = r.getPass() ? null : getSignature(r.msg);
+			TestResult fr = forked.get(c);
+			if (sig != null && fr != null && !fr.getPass() && sig.equals(getSignature(fr.msg))) {
+				signatures.put(c, sig);
+				trusted ++;
+			}
+			else
+				signatures.put(c, null);
+		}
+		System.out.println("[DEBUG] In-process validation trusts " + trusted + " of " + cases.size() + " negative cases");
+		return signatures;
+	}
+
+	private TestResult runCase(final Testcase c, Map<String, byte[]> bytecodes) {
+		int id = manager.getTestSessionId(c.testClass);
+		if (id < 0)
+			return new TestResult(-1, "");
+		final Session s;
+		try {
+			s = getSession(id);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.out.println("[WARN]Unable to set up the in-process validation, disable it!");
+			disabled = true;
+			return new TestResult(-1, "");
+		}
+		if (!installGuards()) {
+			System.out.println("[WARN]Disable in-process validation, the cases could exit genesis!");
+			disabled = true;
+			return new TestResult(-1, "");
+		}
+		final CandidateClassLoader loader = new CandidateClassLoader(s.dirURLs, s.libLoader, bytecodes);
+		ThreadGroup group = new ThreadGroup(sandbox, "genesis-inprocess-" + c);
+		// Destroyed once its last thread ends, so sandbox does not collect them
+		group.setDaemon(true);
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				Thread.currentThread().setContextClassLoader(loader);
+				try {
+					return (String) s.runMethod.invoke(null, c.testClass, c.testName);
+				}
+				catch (InvocationTargetException e) {
+					ByteArrayOutputStream trace = new ByteArrayOutputStream();
+					e.getCause().printStackTrace(new PrintStream(trace, true));
+					return trace.toString();
+				}
+			}
+		});
+		Thread t = new Thread(group, task, "genesis-inprocess");
+		t.setDaemon(true);
+		t.start();
+		long budget = manager.getTestTimeBudget().getBudget(c);
+		TestResult ret = null;
+		try {
+			String trace = task.get(budget > 0 ? budget : Config.inProcessTimeout, TimeUnit.MILLISECONDS);
+			ret = trace == null ? new TestResult(0, "") : new TestResult(1, trace);
+		}
+		catch (TimeoutException e) {
+			ret = new TestResult(TestResult.TIMEOUT, "");
+		}
+		catch (ExecutionException e) {
+			ret = new TestResult(-1, "");
+		}
+		catch (InterruptedException e) {
+			ret = new TestResult(-1, "");
+		}
+		finally {
+			stopThreads(group);
+			try {
+				loader.close();
+			}
+			catch (IOException ignore) { }
+		}
+		return ret;
+	}
+
+	// We interrupt the threads first. A thread that ignores it, e.g., a
+	// candidate stuck in a loop, would keep a core busy for the rest of the
+	// run, so we stop it and give up on the tier, as the stopped thread may
+	// leave broken state behind
+	@SuppressWarnings("deprecation")
+	private void stopThreads(ThreadGroup group) {
+		if (group.activeCount() == 0)
+			return;
+		group.interrupt();
+		try {
+			Thread.sleep(ThreadGraceTime);
+		}
+		catch (InterruptedException ignore) { }
+		if (group.activeCount() == 0)
+			return;
+		try {
+			group.stop();
+		}
+		catch (UnsupportedOperationException | NoSuchMethodError e) {
+			// Newer JDKs cannot stop a thread, we can only leave it be
+			System.out.println("[WARN]Unable to stop the threads of the in-process test cases!");
+		}
+		synchronized (this) {
+			if (!disabled) {
+				System.out.println("[WARN]A thread of the in-process test cases did not stop, disable in-process validation!");
+				disabled = true;
+			}
+		}
+	}
+
+	// Returns the first of the cases that kills the candidate in this JVM,
+	// null if none of them does for sure
+	public Testcase findKiller(Map<String, byte[]> bytecodes, List<Testcase> cases) {
+		if (disabled)
+			return null;
+		HashMap<Testcase, String> sigs = getSignatures();
+		for (Testcase c : cases) {
+			String sig = sigs.get(c);
+			if (sig == null || disabled)
+				continue;
+			TestResult r = runCase(c, bytecodes);
+			if (r.status != 0 && r.status != TestResult.TIMEOUT && sig.equals(getSignature(r.msg)))
+				return c;
+		}
+		return null;
+	}
+}
@@ -17,6 +17,7 @@
 // along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
 package genesis.repair.validation;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
@@ -34,23 +35,78 @@ public class JUnit3Runner {
 		public void write(int arg0) throws IOException { }
 	}
 	
+	// Same as JUnit4Runner.loadTestClass(), see PersistentTestRunner
+	static Class<?> loadTestClass(String name) throws ClassNotFoundException {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null)
+			return Class.forName(name);
+		return Class.forName(name, true, loader);
+	}
+
+	// Same as JUnit4Runner.runCase()
+	public static String runCase(String testClass, String testName) {
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		PrintStream capture = new PrintStream(trace, true);
+		TestRunner r = new TestRunner(new PrintStream(new NullOutputStream()));
+		try {
+			TestResult res = r.doRun(TestSuite.createTest(loadTestClass(testClass), testName));
+			if (res.wasSuccessful())
+				return null;
+			Enumeration<TestFailure> fs = res.failures();
+			if (fs.hasMoreElements())
+				fs.nextElement().thrownException().printStackTrace(capture);
+			Enumeration<TestFailure> es = res.errors();
+			if (es.hasMoreElements())
+				es.nextElement().thrownException().printStackTrace(capture);
+		}
+		catch (ClassNotFoundException e) {
+			e.printStackTrace(capture);
+		}
+		capture.flush();
+		return trace.toString();
+	}
+
 	public static void main(String args[]) {
-		
-		for (String arg : args) {
-	        String[] classAndMethod = arg.split("#");
-	        TestRunner r = new TestRunner(new PrintStream(new NullOutputStream()));
-	        try {
-	        	TestResult res = r.doRun(TestSuite.createTest(Class.forName(classAndMethod[0]), classAndMethod[1]));
-	        	Enumeration<TestFailure> fs = res.failures();
-	        	if (fs.hasMoreElements()) {
-	        		TestFailure f = fs.nextElement();
-                    f.thrownException().printStackTrace(System.out);
-	        	}
-	        	System.out.println(TestcaseExecutor.RunnerSEP + " " + classAndMethod[0] + " " + classAndMethod[1] + " " + (res.wasSuccessful() ? 0 : 1));
-	        }
-	        catch (ClassNotFoundException e) {
-	        	System.out.println(TestcaseExecutor.RunnerSEP + " " + classAndMethod[0] + " " + classAndMethod[1] + " -1");
-	        }
+		RunnerProtocol protocol = RunnerProtocol.createForStdout();
+		PrintStream origErr = System.err;
+		ByteArrayOutputStream caseOut = new ByteArrayOutputStream();
+		PrintStream capture = new PrintStream(caseOut, true);
+		System.setOut(capture);
+		System.setErr(capture);
+		try {
+			for (String arg : args) {
+		        String[] classAndMethod = arg.split("#");
+		        protocol.caseStarted(classAndMethod[0], classAndMethod[1]);
+		        TestRunner r = new TestRunner(new PrintStream(new NullOutputStream()));
+		        int status;
+		        try {
+		        	TestResult res = r.doRun(TestSuite.createTest(loadTestClass(classAndMethod[0]), classAndMethod[1]));
+		        	Enumeration<TestFailure> fs = res.failures();
+		        	if (fs.hasMoreElements()) {
+		        		TestFailure f = fs.nextElement();
+	                    f.thrownException().printStackTrace(capture);
+		        	}
+		        	status = res.wasSuccessful() ? 0 : 1;
+		        }
+		        catch (ClassNotFoundException e) {
+		        	status = -1;
+		        }
+		        if (CoverageAgent.isActive()) {
+		        	ByteArrayOutputStream cov = new ByteArrayOutputStream();
+		        	CoverageAgent.report(new PrintStream(cov, true));
+		        	protocol.coverage(cov.toString());
+		        }
+		        capture.flush();
+		        protocol.caseFinished(classAndMethod[0], classAndMethod[1], status, caseOut.toString());
+		        caseOut.reset();
+		        if (status != 0 && RunnerProtocol.stopOnFailure())
+		        	break;
+			}
+		}
+		finally {
+			// Whatever leftover threads print must not get into the frames
+			System.setOut(origErr);
+			System.setErr(origErr);
 		}
 	}
 }
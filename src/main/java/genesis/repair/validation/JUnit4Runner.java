@@ -17,51 +17,298 @@
 // along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
 package genesis.repair.validation;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Random;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.junit.runner.Description;
 import org.junit.runner.JUnitCore;
 import org.junit.runner.Request;
 import org.junit.runner.Result;
+import org.junit.runner.manipulation.Filter;
 import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
 
 public class JUnit4Runner {
 	
+	// Collects the output of the current case and reports the case as soon
+	// as JUnit finishes it. A failure outside of the requested cases, e.g.,
+	// in @BeforeClass or @AfterClass, fails every case of the class, so
+	// finishClass() reports the passed cases again as failed, a later finish
+	// frame of a case overrides the earlier one.
+	static class CaseListener extends RunListener {
+		RunnerProtocol protocol;
+		RunNotifier notifier;
+		ByteArrayOutputStream caseOut;
+		PrintStream capture;
+		String testClass;
+		// The requested cases of the class to their status, null until reported
+		LinkedHashMap<String, Integer> statuses;
+		ByteArrayOutputStream classTrace;
+		boolean failed, classFailed, classSkipped, stopped;
+
+		CaseListener(RunnerProtocol protocol, RunNotifier notifier) {
+			this.protocol = protocol;
+			this.notifier = notifier;
+			this.caseOut = new ByteArrayOutputStream();
+			this.capture = new PrintStream(caseOut, true);
+			this.classTrace = new ByteArrayOutputStream();
+			this.stopped = false;
+		}
+
+		void startClass(String testClass, List<String> testNames) {
+			this.testClass = testClass;
+			this.statuses = new LinkedHashMap<String, Integer>();
+			for (String testName : testNames)
+				statuses.put(testName, null);
+			this.classTrace.reset();
+			this.failed = false;
+			this.classFailed = false;
+			this.classSkipped = false;
+		}
+
+		// The name of the requested case of d, null if d is not one
+		private String getRequested(Description d) {
+			if (d.getMethodName() == null || !d.getClassName().equals(testClass) || !statuses.containsKey(d.getMethodName()))
+				return null;
+			return d.getMethodName();
+		}
+
+		@Override
+		public void testStarted(Description d) {
+			String testName = getRequested(d);
+			if (testName == null)
+				return;
+			failed = false;
+			protocol.caseStarted(testClass, testName);
+		}
+
+		@Override
+		public void testFailure(Failure f) {
+			if (getRequested(f.getDescription()) != null) {
+				failed = true;
+				f.getException().printStackTrace(capture);
+			}
+			else {
+				classFailed = true;
+				f.getException().printStackTrace(new PrintStream(classTrace, true));
+			}
+		}
+
+		// A failed assumption outside of the cases skips the class, like an
+		// ignored case it passes
+		@Override
+		public void testAssumptionFailure(Failure f) {
+			if (getRequested(f.getDescription()) == null)
+				classSkipped = true;
+		}
+
+		@Override
+		public void testIgnored(Description d) {
+			String testName = getRequested(d);
+			if (testName == null)
+				return;
+			protocol.caseStarted(testClass, testName);
+			report(testName, 0, "");
+		}
+
+		@Override
+		public void testFinished(Description d) {
+			String testName = getRequested(d);
+			if (testName != null)
+				report(testName, failed ? 1 : 0, "");
+		}
+
+		void report(String testName, int status, String msg) {
+			statuses.put(testName, status);
+			if (CoverageAgent.isActive()) {
+				ByteArrayOutputStream cov = new ByteArrayOutputStream();
+				CoverageAgent.report(new PrintStream(cov, true));
+				protocol.coverage(cov.toString());
+			}
+			capture.flush();
+			protocol.caseFinished(testClass, testName, status, caseOut.toString() + msg);
+			caseOut.reset();
+			if (status != 0 && RunnerProtocol.stopOnFailure()) {
+				stopped = true;
+				notifier.pleaseStop();
+			}
+		}
+
+		// Called after JUnit is done with the class, reports the cases that
+		// it did not get to and the cases that the class failed
+		void finishClass() {
+			String trace = classTrace.toString();
+			for (Map.Entry<String, Integer> e : new ArrayList<Map.Entry<String, Integer>>(statuses.entrySet())) {
+				if (stopped)
+					break;
+				Integer status = e.getValue();
+				if (status == null)
+					protocol.caseStarted(testClass, e.getKey());
+				if (classFailed && (status == null || status == 0))
+					report(e.getKey(), 1, trace);
+				else if (status == null)
+					report(e.getKey(), classSkipped ? 0 : 1, classSkipped ? "" : "The case did not run\n");
+			}
+		}
+
+		// The class is not there, no case of it runs
+		void failClass() {
+			for (String testName : new ArrayList<String>(statuses.keySet())) {
+				if (stopped)
+					break;
+				protocol.caseStarted(testClass, testName);
+				report(testName, -1, "");
+			}
+		}
+	}
+
+	// Keeps the requested methods of a class, as Request.method() does for
+	// one method
+	static class MethodFilter extends Filter {
+		String testClass;
+		Set<String> testNames;
+
+		MethodFilter(String testClass, List<String> testNames) {
+			this.testClass = testClass;
+			this.testNames = new HashSet<String>(testNames);
+		}
+
+		@Override
+		public boolean shouldRun(Description d) {
+			if (d.isTest())
+				return testClass.equals(d.getClassName()) && testNames.contains(d.getMethodName());
+			for (Description child : d.getChildren())
+				if (shouldRun(child))
+					return true;
+			return false;
+		}
+
+		@Override
+		public String describe() {
+			return "Methods " + testNames + " of " + testClass;
+		}
+	}
+
+	// Runs the requested methods in the order of the request, e.g., the
+	// fail-first order of TestFailureModel, instead of the order of the class
+	static class MethodOrder implements Comparator<Description> {
+		List<String> testNames;
+
+		MethodOrder(List<String> testNames) {
+			this.testNames = testNames;
+		}
+
+		// A suite, e.g., of a parameterized class, goes with its first requested case
+		private int rank(Description d) {
+			if (d.isTest()) {
+				int idx = testNames.indexOf(d.getMethodName());
+				return idx < 0 ? testNames.size() : idx;
+			}
+			int ret = testNames.size();
+			for (Description child : d.getChildren())
+				ret = Math.min(ret, rank(child));
+			return ret;
+		}
+
+		@Override
+		public int compare(Description a, Description b) {
+			return Integer.compare(rank(a), rank(b));
+		}
+	}
+
+	// The persistent runner loads the project classes in a child class loader
+	// and installs it as the context class loader before calling main()
+	static Class<?> loadTestClass(String name) throws ClassNotFoundException {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null)
+			return Class.forName(name);
+		return Class.forName(name, true, loader);
+	}
+
+	// Runs one case in the calling thread and returns its failure trace, or
+	// null if it passes. InProcessValidator calls it in the class loader of 
+	// the test libraries, the output of the case is not captured.
+	public static String runCase(String testClass, String testName) {
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		final PrintStream capture = new PrintStream(trace, true);
+		JUnitCore core = new JUnitCore();
+		core.addListener(new RunListener() {
+			@Override
+			public void testFailure(Failure f) {
+				f.getException().printStackTrace(capture);
+			}
+		});
+		try {
+			Result result = core.run(Request.method(loadTestClass(testClass), testName));
+			if (result.wasSuccessful())
+				return null;
+		}
+		catch (ClassNotFoundException e) {
+			e.printStackTrace(capture);
+		}
+		capture.flush();
+		return trace.toString();
+	}
+
+	// Runs every run of consecutive requested methods of the same class in
+	// one filtered class request, all of them with the same notifier and
+	// CaseListener. A class that comes back later in the arguments gets
+	// another request, so the cases run in the order of the arguments.
 	public static void main(String args[]) throws IOException {
-		// Put stdout together with stderr, this will help server-client case
-		System.setErr(System.out);
-		//Random r = new Random();
-		//BufferedWriter w = new BufferedWriter(new FileWriter("/tmp/junit4run" + r.nextInt(1000) + ".log"));
-		//w.write("Args: " + args);
-		//w.newLine();
+		RunnerProtocol protocol = RunnerProtocol.createForStdout();
+		PrintStream origErr = System.err;
+		RunNotifier notifier = new RunNotifier();
+		CaseListener listener = new CaseListener(protocol, notifier);
+		notifier.addListener(listener);
+		// The runs of the arguments, split where the class changes
+		ArrayList<String> runClasses = new ArrayList<String>();
+		ArrayList<ArrayList<String>> runMethods = new ArrayList<ArrayList<String>>();
 		for (String arg : args) {
-			//w.write("Processing: " + arg);
-			//w.newLine();
-	        String[] classAndMethod = arg.split("#");
-	        try {
-	        	Request request = Request.method(Class.forName(classAndMethod[0]),
-	        			classAndMethod[1]); 
-		        Result result = new JUnitCore().run(request);
-		        if (result.getFailureCount() == 1) {
-		        	Failure f = result.getFailures().get(0);
-                    f.getException().printStackTrace(System.out);
-		        	//w.write(f.getTrace());
-		        	//w.newLine();
-		        	//w.write("FAILED!\n");
-		        }
-		        else {
-		        	//w.write("SUCC!\n");
-		        }
-		        System.out.println(TestcaseExecutor.RunnerSEP + " " + classAndMethod[0] + " " + classAndMethod[1] + " " + (result.wasSuccessful() ? 0 : 1));
-	        }
-	        catch (ClassNotFoundException e) {
-	        	//w.write("ERROR!\n" + e.getMessage() + "\n");
-	        	System.out.println(TestcaseExecutor.RunnerSEP + " " + classAndMethod[0] + " " + classAndMethod[1] + " -1");
-	        }
-	        //w.flush();
-		}
-		//w.close();
+			String[] classAndMethod = arg.split("#");
+			int last = runClasses.size() - 1;
+			if (last < 0 || !runClasses.get(last).equals(classAndMethod[0])) {
+				runClasses.add(classAndMethod[0]);
+				runMethods.add(new ArrayList<String>());
+				last ++;
+			}
+			runMethods.get(last).add(classAndMethod[1]);
+		}
+		// Put stdout together with stderr, they become the message of the case
+		System.setOut(listener.capture);
+		System.setErr(listener.capture);
+		try {
+			for (int i = 0; i < runClasses.size(); i++) {
+				String testClass = runClasses.get(i);
+				ArrayList<String> testNames = runMethods.get(i);
+				listener.startClass(testClass, testNames);
+				try {
+					Request request = Request.aClass(loadTestClass(testClass)).filterWith(new MethodFilter(testClass, testNames))
+							.sortWith(new MethodOrder(testNames));
+					request.getRunner().run(notifier);
+					listener.finishClass();
+				}
+				catch (ClassNotFoundException ex) {
+					listener.failClass();
+				}
+				catch (StoppedByUserException ignore) { }
+				if (listener.stopped)
+					break;
+			}
+		}
+		finally {
+			// Whatever leftover threads print must not get into the frames
+			System.setOut(origErr);
+			System.setErr(origErr);
+		}
 	}
 }
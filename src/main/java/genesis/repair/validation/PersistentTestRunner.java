@@ -0,0 +1,212 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The main class of a long-lived runner JVM (see PooledTestRunner). The jars
+ * of the test session classpath are loaded once in a shared library class
+ * loader, while the class directories of the project and the extra classpath
+ * of the candidate are loaded in a fresh child class loader for every request.
+ * This resets the static state of the project classes between candidates.
+ *
+ * In the hot swap mode (the runner JVM has the HotSwapAgent), the project
+ * and test classes are instead loaded once in a resident class loader, and
+ * the classes of a candidate that only changes method bodies are redefined
+ * in place for its request. The static setup of the tests is then not paid
+ * again for every candidate, but the static state is not reset either. The
+ * other candidates run in a fresh class loader as above.
+ *
+ * Requests are read from stdin:
+ *   RUN
+ *   extra classpath (may be empty)
+ *   space separated class#method list
+ *   space separated key=value system properties for this request, with the
+ *   keys and the values URL encoded (see encodeProperty())
+ * The runner answers with the usual JUnit4Runner/JUnit3Runner frames followed
+ * by a batch end frame (see RunnerProtocol). Its status is non-zero if the 
+ * runner got poisoned (leaked threads or out of memory) and has to be recycled.
+ */
+public class PersistentTestRunner {
+
+	public static final String RunCmd = "RUN";
+	public static final String ExitCmd = "EXIT";
+
+	// How long we wait for threads started by the tests to die
+	static final long ThreadGraceTime = 200;
+
+	// A property of a request, the values may have spaces, e.g., a tmp path
+	static String encodeProperty(String key, String value) {
+		try {
+			return URLEncoder.encode(key, "UTF-8") + "=" + URLEncoder.encode(value, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static URL toURL(String path) throws MalformedURLException {
+		return new File(path).toURI().toURL();
+	}
+
+	public static void main(String args[]) throws Exception {
+		// args: <runner class> <genesis location> <session classpath> <classpath separator> [hotswap]
+		String runnerClassName = args[0];
+		String runnerLocation = args[1];
+		String sep = args.length > 3 ? args[3] : File.pathSeparator;
+		ArrayList<URL> libURLs = new ArrayList<URL>();
+		ArrayList<URL> dirURLs = new ArrayList<URL>();
+		libURLs.add(toURL(runnerLocation));
+		for (String entry : args[2].split(sep)) {
+			if (entry.trim().isEmpty()) continue;
+			if (new File(entry).isDirectory())
+				dirURLs.add(toURL(entry));
+			else
+				libURLs.add(toURL(entry));
+		}
+
+		URLClassLoader libLoader = new URLClassLoader(libURLs.toArray(new URL[libURLs.size()]),
+				ClassLoader.getSystemClassLoader().getParent());
+		Method runMethod = libLoader.loadClass(runnerClassName).getMethod("main", String[].class);
+		HotSwapAgent hotSwap = null;
+		if (args.length > 4 && args[4].equals("hotswap") && HotSwapAgent.isActive())
+			hotSwap = new HotSwapAgent(new URLClassLoader(dirURLs.toArray(new URL[dirURLs.size()]), libLoader));
+
+		RunnerProtocol protocol = RunnerProtocol.createForStdout();
+		// Only frames go to stdout, stray output of the tests goes to stderr
+		PrintStream stray = System.err;
+		System.setOut(stray);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+		String cmd;
+		while ((cmd = reader.readLine()) != null) {
+			if (cmd.equals(ExitCmd))
+				break;
+			if (!cmd.equals(RunCmd))
+				continue;
+			String extraClassPath = reader.readLine();
+			String caseLine = reader.readLine();
+			String propLine = reader.readLine();
+			if (extraClassPath == null || caseLine == null || propLine == null)
+				break;
+
+			ArrayList<URL> urls = new ArrayList<URL>();
+			ArrayList<File> extraDirs = new ArrayList<File>();
+			for (String entry : extraClassPath.split(sep))
+				if (!entry.trim().isEmpty()) {
+					urls.add(toURL(entry));
+					extraDirs.add(new File(entry));
+				}
+			urls.addAll(dirURLs);
+			String[] cases = caseLine.trim().isEmpty() ? new String[0] : caseLine.trim().split(" ");
+
+			// The values that the properties of the request hide, null if unset
+			HashMap<String, String> propsBefore = new HashMap<String, String>();
+			for (String prop : propLine.trim().split(" ")) {
+				int idx = prop.indexOf('=');
+				if (idx <= 0) continue;
+				String key = URLDecoder.decode(prop.substring(0, idx), "UTF-8");
+				if (!propsBefore.containsKey(key))
+					propsBefore.put(key, System.getProperty(key));
+				System.setProperty(key, URLDecoder.decode(prop.substring(idx + 1), "UTF-8"));
+			}
+
+			boolean poisoned = false;
+			Set<Thread> threadsBefore = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+			URLClassLoader candidateLoader = null;
+			HashMap<String, byte[]> swapped = null;
+			if (hotSwap != null) {
+				HashMap<String, byte[]> bytecodes = HotSwapAgent.readClassFiles(extraDirs);
+				if (hotSwap.swapIn(bytecodes))
+					swapped = bytecodes;
+			}
+			if (swapped == null)
+				candidateLoader = new URLClassLoader(urls.toArray(new URL[urls.size()]), libLoader);
+			Thread.currentThread().setContextClassLoader(swapped == null ? candidateLoader : hotSwap.resident);
+			try {
+				runMethod.invoke(null, (Object) cases);
+			}
+			catch (InvocationTargetException e) {
+				ByteArrayOutputStream trace = new ByteArrayOutputStream();
+				e.getCause().printStackTrace(new PrintStream(trace, true));
+				protocol.text(trace.toString());
+				poisoned = true;
+			}
+			catch (OutOfMemoryError e) {
+				poisoned = true;
+			}
+			finally {
+				Thread.currentThread().setContextClassLoader(null);
+				for (Map.Entry<String, String> e : propsBefore.entrySet())
+					if (e.getValue() == null)
+						System.clearProperty(e.getKey());
+					else
+						System.setProperty(e.getKey(), e.getValue());
+				// The runner may redirect them
+				System.setOut(stray);
+				System.setErr(stray);
+			}
+			if (!poisoned)
+				poisoned = hasLeakedThreads(threadsBefore);
+			if (swapped != null && !hotSwap.swapOut(swapped))
+				poisoned = true;
+			if (candidateLoader != null) {
+				try {
+					candidateLoader.close();
+				}
+				catch (IOException ignore) { }
+			}
+
+			protocol.batchEnd(poisoned ? 1 : 0);
+			if (poisoned)
+				break;
+		}
+	}
+
+	private static boolean hasLeakedThreads(Set<Thread> threadsBefore) {
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (threadsBefore.contains(t) || t.isDaemon())
+				continue;
+			try {
+				t.join(ThreadGraceTime);
+			}
+			catch (InterruptedException ignore) { }
+			if (t.isAlive())
+				return true;
+		}
+		return false;
+	}
+}
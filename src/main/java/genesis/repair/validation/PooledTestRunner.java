@@ -0,0 +1,156 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import genesis.Config;
+import genesis.GenesisException;
+
+/**
+ * A handle to a long-lived PersistentTestRunner JVM for one test session
+ * classpath, owned by TestRunnerPool.
+ */
+public class PooledTestRunner {
+
+	String classPath;
+	String workDir;
+	Process p;
+	LinkedBlockingQueue<RunnerProtocol.Frame> frames;
+	PrintWriter writer;
+	int uses;
+	volatile boolean healthy;
+
+	public PooledTestRunner(String classPath, String workDir) {
+		this.classPath = classPath;
+		this.workDir = workDir;
+		this.frames = new LinkedBlockingQueue<RunnerProtocol.Frame>();
+		this.uses = 0;
+		this.healthy = true;
+		Class<?> runnerClass = TestcaseExecutor.detectRunnerClass(classPath);
+		ArrayList<String> cmds = new ArrayList<String>();
+		cmds.add(Config.jvmCmd);
+		if (Config.runnerHotSwap)
+			cmds.add("-javaagent:" + getHotSwapAgentJar());
+		cmds.add("-cp");
+		cmds.add(TestcaseExecutor.getRunnerLocation(PersistentTestRunner.class));
+		cmds.add(PersistentTestRunner.class.getName());
+		cmds.add(runnerClass.getName());
+		cmds.add(TestcaseExecutor.getRunnerLocation(runnerClass));
+		cmds.add(classPath);
+		cmds.add(Config.classPathSep);
+		if (Config.runnerHotSwap)
+			cmds.add("hotswap");
+		ProcessBuilder pb = new ProcessBuilder(cmds);
+		pb.directory(new File(workDir));
+		try {
+			p = pb.start();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			throw new GenesisException("Unable to start the persistent test runner!");
+		}
+		writer = new PrintWriter(new OutputStreamWriter(p.getOutputStream()));
+		new RunnerProtocol.FrameDecoderThread(p.getInputStream(), frames).start();
+		new RunnerWatchdog.OutputPumpThread(new BufferedReader(new InputStreamReader(p.getErrorStream()))).start();
+	}
+
+	private static String hotSwapAgentJar = null;
+
+	private static synchronized String getHotSwapAgentJar() {
+		if (hotSwapAgentJar == null) {
+			try {
+				Path jarPath = Files.createTempFile(Paths.get(Config.tmpDirectory), Config.tmpDirPrefix, ".jar");
+				jarPath.toFile().deleteOnExit();
+				HotSwapAgent.createAgentJar(jarPath);
+				hotSwapAgentJar = jarPath.toString();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				throw new GenesisException("Unable to create the hot swap agent jar!");
+			}
+		}
+		return hotSwapAgentJar;
+	}
+
+	// If a case runs out of its budget, the runner becomes unusable and the
+	// result does not have the cases after it
+	public HashMap<Testcase, TestResult> runTestcases(Path extraTestClassPath, Map<String, String> sysProps, List<Testcase> cases, TestTimeBudget budget) throws InterruptedException {
+		uses ++;
+		StringBuffer caseLine = new StringBuffer();
+		for (Testcase c : cases) {
+			if (caseLine.length() != 0)
+				caseLine.append(" ");
+			caseLine.append(c.testClass + "#" + c.testName);
+		}
+		writer.println(PersistentTestRunner.RunCmd);
+		writer.println(extraTestClassPath == null ? "" : extraTestClassPath.toString());
+		writer.println(caseLine.toString());
+		StringBuffer propLine = new StringBuffer();
+		if (sysProps != null)
+			for (Map.Entry<String, String> e : sysProps.entrySet())
+				propLine.append(PersistentTestRunner.encodeProperty(e.getKey(), e.getValue()) + " ");
+		writer.println(propLine.toString());
+		writer.flush();
+
+		RunnerWatchdog watchdog = new RunnerWatchdog(frames, budget);
+		watchdog.watch(RunnerProtocol.BatchEndFrame);
+		RunnerProtocol.Frame endFrame = watchdog.getEndFrame();
+		healthy = endFrame != null && endFrame.status == 0;
+		return watchdog.getResults();
+	}
+
+	// Called from another thread to kill the runner in the middle of a batch
+	public void cancel() {
+		healthy = false;
+		p.destroy();
+	}
+
+	public boolean isReusable() {
+		return healthy && p.isAlive() && uses < Config.runnerPoolMaxUses;
+	}
+
+	public String getKey() {
+		return getKey(classPath, workDir);
+	}
+
+	public static String getKey(String classPath, String workDir) {
+		return workDir + Config.classPathSep + classPath;
+	}
+
+	public void destroy() {
+		if (p.isAlive()) {
+			writer.println(PersistentTestRunner.ExitCmd);
+			writer.flush();
+			p.destroy();
+		}
+	}
+}
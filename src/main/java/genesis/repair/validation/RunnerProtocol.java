@@ -0,0 +1,200 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The framed protocol between the test runners and genesis. The runners
+ * write frames to the real stdout and capture whatever the tests print, so
+ * the test output can never break the results. A frame is a type byte, the
+ * payload length as an int, and the UTF-8 payload.
+ *
+ * On the genesis side, FrameDecoderThread decodes every frame into a Frame
+ * as soon as it arrives, and RunnerWatchdog takes the results from them.
+ * Nothing is parsed out of free text, so no test output can pass for a
+ * result.
+ */
+public class RunnerProtocol {
+
+	public static final byte StartFrame = 'S';
+	public static final byte FinishFrame = 'F';
+	public static final byte TextFrame = 'T';
+	public static final byte BatchEndFrame = 'E';
+	public static final byte CandidateFrame = 'C';
+	public static final byte CoverageFrame = 'V';
+	// Never written by a runner, FrameDecoderThread adds it at the end
+	public static final byte EOFFrame = 0;
+
+	// Set to true to make the runner stop at the first case that fails
+	public static final String StopOnFailureProperty = "genesis.runner.stopOnFailure";
+
+	static final int MaxFrameSize = 1 << 26;
+
+	DataOutputStream out;
+
+	public RunnerProtocol(OutputStream out) {
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+	}
+
+	// We do not use System.out, the runners redirect it to capture the test output
+	public static RunnerProtocol createForStdout() {
+		return new RunnerProtocol(new FileOutputStream(FileDescriptor.out));
+	}
+
+	public static boolean stopOnFailure() {
+		return Boolean.parseBoolean(System.getProperty(StopOnFailureProperty, "false"));
+	}
+
+	public static boolean isStopOnFailure(Map<String, String> sysProps) {
+		return sysProps != null && Boolean.parseBoolean(sysProps.get(StopOnFailureProperty));
+	}
+
+	public synchronized void writeFrame(byte type, String payload) {
+		try {
+			byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+			out.writeByte(type);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.flush();
+		}
+		catch (IOException e) {
+			// Genesis is gone, nobody is listening anymore
+			System.exit(1);
+		}
+	}
+
+	public void caseStarted(String testClass, String testName) {
+		writeFrame(StartFrame, testClass + " " + testName);
+	}
+
+	public void caseFinished(String testClass, String testName, int status, String msg) {
+		writeFrame(FinishFrame, testClass + " " + testName + " " + status + "\n" + msg);
+	}
+
+	public void text(String text) {
+		if (!text.isEmpty())
+			writeFrame(TextFrame, text);
+	}
+
+	// The frames after it belong to the candidate, see BatchCandidateRunner
+	public void candidateStarted(String id) {
+		writeFrame(CandidateFrame, id);
+	}
+
+	public void batchEnd(int status) {
+		writeFrame(BatchEndFrame, Integer.toString(status));
+	}
+
+	// The printed lines of CoverageAgent.report() after a case, before its
+	// finish frame
+	public void coverage(String text) {
+		writeFrame(CoverageFrame, text);
+	}
+
+	// A decoded frame. The case is set for start and finish frames, the
+	// status for finish and batch end frames. The text is the output of a
+	// finished case, the id of a candidate, or the text of a text or
+	// coverage frame.
+	public static class Frame {
+		public final byte type;
+		public final Testcase testcase;
+		public final int status;
+		public final String text;
+
+		Frame(byte type, Testcase testcase, int status, String text) {
+			this.type = type;
+			this.testcase = testcase;
+			this.status = status;
+			this.text = text;
+		}
+
+		static Frame decode(byte type, String payload) {
+			if (type == StartFrame) {
+				int idx = payload.indexOf(' ');
+				return new Frame(type, new Testcase(payload.substring(0, idx), payload.substring(idx + 1)), 0, null);
+			}
+			if (type == FinishFrame) {
+				int idx = payload.indexOf('\n');
+				String head = payload.substring(0, idx);
+				int idx1 = head.indexOf(' ');
+				int idx2 = head.lastIndexOf(' ');
+				Testcase c = new Testcase(head.substring(0, idx1), head.substring(idx1 + 1, idx2));
+				return new Frame(type, c, Integer.parseInt(head.substring(idx2 + 1)), payload.substring(idx + 1));
+			}
+			if (type == BatchEndFrame)
+				return new Frame(type, null, Integer.parseInt(payload), null);
+			if (type == TextFrame || type == CandidateFrame || type == CoverageFrame)
+				return new Frame(type, null, 0, payload);
+			return null;
+		}
+	}
+
+	static final Frame EOF = new Frame(EOFFrame, null, 0, null);
+
+	public static class FrameDecoderThread extends Thread {
+		DataInputStream in;
+		BlockingQueue<Frame> frames;
+
+		public FrameDecoderThread(InputStream in, BlockingQueue<Frame> frames) {
+			super();
+			this.in = new DataInputStream(in);
+			this.frames = frames;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					byte type = in.readByte();
+					int len = in.readInt();
+					// Garbage on stdout, e.g., the output of a leftover thread
+					if (len < 0 || len > MaxFrameSize)
+						break;
+					byte[] bytes = new byte[len];
+					in.readFully(bytes);
+					Frame frame = null;
+					try {
+						frame = Frame.decode(type, new String(bytes, StandardCharsets.UTF_8));
+					}
+					catch (RuntimeException ignore) { }
+					if (frame == null) {
+						System.out.println("[WARN]Malformed output from the test runner!");
+						break;
+					}
+					frames.add(frame);
+				}
+			}
+			catch (EOFException ignore) { }
+			catch (IOException ignore) { }
+			frames.add(EOF);
+		}
+	}
+}
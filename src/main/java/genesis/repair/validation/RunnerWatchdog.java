@@ -0,0 +1,141 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import genesis.Config;
+
+/**
+ * Reads the frames of a test runner and enforces the time budget of every
+ * test case. The runner sends a start frame before each case, so we know
+ * which case is running and for how long. If a case runs out of its budget,
+ * the caller destroys the runner and keeps the results of the cases that
+ * finished before it.
+ */
+public class RunnerWatchdog {
+
+	// Drops the lines of a runner output stream, so that the runner never
+	// blocks on a full pipe
+	public static class OutputPumpThread extends Thread {
+		BufferedReader reader;
+
+		public OutputPumpThread(BufferedReader reader) {
+			super();
+			this.reader = reader;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (reader.readLine() != null);
+			}
+			catch (IOException ignore) { }
+		}
+	}
+
+	BlockingQueue<RunnerProtocol.Frame> frames;
+	TestTimeBudget budget;
+	ArrayList<RunnerProtocol.Frame> received;
+	HashMap<Testcase, Long> durations;
+	Testcase timedOut;
+	RunnerProtocol.Frame endFrame;
+
+	public RunnerWatchdog(BlockingQueue<RunnerProtocol.Frame> frames, TestTimeBudget budget) {
+		this.frames = frames;
+		this.budget = budget;
+		this.received = new ArrayList<RunnerProtocol.Frame>();
+		this.durations = new HashMap<Testcase, Long>();
+		this.timedOut = null;
+		this.endFrame = null;
+	}
+
+	// Reads until EOF or a frame of endType (EOFFrame to read until EOF).
+	// Returns false if the runner startup or a test case runs out of time.
+	public boolean watch(byte endType) throws InterruptedException {
+		boolean limited = budget != null && budget.hasLimit();
+		Testcase cur = null;
+		long curStart = System.currentTimeMillis();
+		long deadline = limited ? curStart + Config.runnerStartTimeout : Long.MAX_VALUE;
+		while (true) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				timedOut = cur;
+				System.out.println("[DEBUG] Timeout! " + (cur == null ? "runner startup" : cur.toString()));
+				return false;
+			}
+			RunnerProtocol.Frame frame = frames.poll(remaining, TimeUnit.MILLISECONDS);
+			if (frame == null)
+				continue;
+			if (frame.type == RunnerProtocol.EOFFrame)
+				return true;
+			if (frame.type == endType) {
+				endFrame = frame;
+				return true;
+			}
+			long now = System.currentTimeMillis();
+			if (frame.type == RunnerProtocol.StartFrame) {
+				cur = frame.testcase;
+				curStart = now;
+				long caseBudget = limited ? budget.getBudget(cur) : 0;
+				deadline = caseBudget > 0 ? now + caseBudget : Long.MAX_VALUE;
+				continue;
+			}
+			if (frame.type == RunnerProtocol.FinishFrame && cur != null) {
+				durations.put(cur, now - curStart);
+				cur = null;
+				deadline = limited ? now + Config.runnerStartTimeout : Long.MAX_VALUE;
+			}
+			received.add(frame);
+		}
+	}
+
+	// The frames that we got, without the start frames
+	public List<RunnerProtocol.Frame> getFrames() {
+		return received;
+	}
+
+	// Null if the runner finished or timed out before it started a case
+	public Testcase getTimedOut() {
+		return timedOut;
+	}
+
+	public RunnerProtocol.Frame getEndFrame() {
+		return endFrame;
+	}
+
+	public HashMap<Testcase, TestResult> getResults() {
+		HashMap<Testcase, TestResult> ret = new HashMap<Testcase, TestResult>();
+		TestcaseExecutor.collectResults(received, ret);
+		for (Testcase c : ret.keySet()) {
+			TestResult r = ret.get(c);
+			if (durations.containsKey(c))
+				ret.put(c, new TestResult(r.status, r.msg, durations.get(c)));
+		}
+		if (timedOut != null)
+			ret.put(timedOut, new TestResult(TestResult.TIMEOUT, "Timeout after " + budget.getBudget(timedOut) + "ms"));
+		return ret;
+	}
+}
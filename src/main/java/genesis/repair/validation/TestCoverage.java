@@ -0,0 +1,157 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The method level coverage of the positive test cases. It is collected with
+ * CoverageAgent when the work directory is initialized, and validation uses
+ * it to run only the positive cases that reach the method of a suspicious
+ * location.
+ */
+public class TestCoverage {
+
+	static class MethodInfo {
+		String srcFile;
+		String methodName;
+		int firstLine, lastLine;
+		HashSet<Testcase> cases;
+
+		MethodInfo(String srcFile, String methodName, int firstLine, int lastLine) {
+			this.srcFile = srcFile;
+			this.methodName = methodName;
+			this.firstLine = firstLine;
+			this.lastLine = lastLine;
+			this.cases = new HashSet<Testcase>();
+		}
+	}
+
+	// Method key (class name, method name and descriptor) to its info
+	HashMap<String, MethodInfo> methods;
+
+	public TestCoverage() {
+		methods = new HashMap<String, MethodInfo>();
+	}
+
+	// Merges the frames of a test runner JVM that runs with CoverageAgent, the
+	// coverage frame of a case comes right before its finish frame
+	public void addRunnerFrames(List<RunnerProtocol.Frame> frames) {
+		HashMap<Integer, String> idM = new HashMap<Integer, String>();
+		ArrayList<String> covered = new ArrayList<String>();
+		for (RunnerProtocol.Frame frame : frames) {
+			if (frame.type == RunnerProtocol.FinishFrame) {
+				for (String key : covered)
+					methods.get(key).cases.add(frame.testcase);
+				covered.clear();
+			}
+			if (frame.type == RunnerProtocol.CoverageFrame)
+				addCoverage(frame.text, idM, covered);
+		}
+	}
+
+	private void addCoverage(String text, HashMap<Integer, String> idM, ArrayList<String> covered) {
+		for (String line : text.split("\n")) {
+			if (line.startsWith(CoverageAgent.MethodSEP)) {
+				// id srcFile className methodName desc firstLine lastLine
+				String[] tokens = line.substring(CoverageAgent.MethodSEP.length()).trim().split(" ");
+				if (tokens.length != 7)
+					continue;
+				String key = tokens[2] + " " + tokens[3] + " " + tokens[4];
+				idM.put(Integer.parseInt(tokens[0]), key);
+				if (!methods.containsKey(key))
+					methods.put(key, new MethodInfo(tokens[1], tokens[3], Integer.parseInt(tokens[5]), Integer.parseInt(tokens[6])));
+			}
+			else if (line.startsWith(CoverageAgent.CoverageSEP)) {
+				covered.clear();
+				String remainingLine = line.substring(CoverageAgent.CoverageSEP.length()).trim();
+				if (remainingLine.isEmpty())
+					continue;
+				for (String id : remainingLine.split(" ")) {
+					String key = idM.get(Integer.parseInt(id));
+					if (key != null)
+						covered.add(key);
+				}
+			}
+		}
+	}
+
+	// Returns the cases in the given ones that reach a method around the
+	// line, or null if we know nothing about the line and have to run all
+	public List<Testcase> selectCases(String srcPath, int line, Collection<Testcase> cases) {
+		HashSet<Testcase> reached = new HashSet<Testcase>();
+		boolean found = false;
+		for (MethodInfo m : methods.values()) {
+			if (m.firstLine > line || m.lastLine < line || !srcPath.endsWith(m.srcFile))
+				continue;
+			// Static initializers run once per JVM, so they are only recorded for the first test
+			if (m.methodName.equals("<clinit>"))
+				return null;
+			found = true;
+			reached.addAll(m.cases);
+		}
+		if (!found)
+			return null;
+		ArrayList<Testcase> ret = new ArrayList<Testcase>();
+		for (Testcase c : cases)
+			if (reached.contains(c))
+				ret.add(c);
+		return ret;
+	}
+
+	public void save(String fname) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(fname));
+		for (String key : methods.keySet()) {
+			MethodInfo m = methods.get(key);
+			writer.write("M " + m.srcFile + " " + key + " " + m.firstLine + " " + m.lastLine);
+			writer.newLine();
+			for (Testcase c : m.cases) {
+				writer.write("T " + c.testClass + " " + c.testName);
+				writer.newLine();
+			}
+		}
+		writer.close();
+	}
+
+	public static TestCoverage load(String fname) throws IOException {
+		TestCoverage ret = new TestCoverage();
+		BufferedReader reader = new BufferedReader(new FileReader(fname));
+		MethodInfo cur = null;
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			String[] tokens = line.trim().split(" ");
+			if (tokens[0].equals("M") && tokens.length == 7) {
+				cur = new MethodInfo(tokens[1], tokens[3], Integer.parseInt(tokens[5]), Integer.parseInt(tokens[6]));
+				ret.methods.put(tokens[2] + " " + tokens[3] + " " + tokens[4], cur);
+			}
+			else if (tokens[0].equals("T") && tokens.length == 3 && cur != null)
+				cur.cases.add(new Testcase(tokens[1], tokens[2]));
+		}
+		reader.close();
+		return ret;
+	}
+}
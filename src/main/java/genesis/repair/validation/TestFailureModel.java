@@ -0,0 +1,175 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records how often every test case kills a candidate patch, in total and
+ * per generator, and orders the cases so that the likely killers run first.
+ * The statistics are kept in a file of the work directory, so they survive
+ * reruns.
+ */
+public class TestFailureModel {
+
+	static class Stats {
+		int runs;
+		int kills;
+
+		double getScore() {
+			return (kills + 1.0) / (runs + 2.0);
+		}
+	}
+
+	private static final String TotalKey = "*";
+	private static final long SaveInterval = 10000;
+
+	String fname;
+	// Generator to the stats of the cases, TotalKey for all generators
+	HashMap<String, HashMap<Testcase, Stats>> stats;
+	boolean dirty;
+	long lastSave;
+
+	public TestFailureModel(String fname) throws IOException {
+		this.fname = fname;
+		this.stats = new HashMap<String, HashMap<Testcase, Stats>>();
+		this.dirty = false;
+		this.lastSave = System.currentTimeMillis();
+		if (Files.exists(Paths.get(fname)))
+			load();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				save();
+			}
+		});
+	}
+
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(fname));
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			// generator testClass testName runs kills
+			String[] tokens = line.trim().split(" ");
+			if (tokens.length != 5)
+				continue;
+			Stats s = getStats(tokens[0], new Testcase(tokens[1], tokens[2]));
+			s.runs = Integer.parseInt(tokens[3]);
+			s.kills = Integer.parseInt(tokens[4]);
+		}
+		reader.close();
+	}
+
+	public synchronized void save() {
+		if (!dirty)
+			return;
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(fname + ".tmp"));
+			for (Map.Entry<String, HashMap<Testcase, Stats>> e : stats.entrySet())
+				for (Map.Entry<Testcase, Stats> e1 : e.getValue().entrySet()) {
+					Testcase c = e1.getKey();
+					writer.write(e.getKey() + " " + c.testClass + " " + c.testName + " " + e1.getValue().runs + " " + e1.getValue().kills);
+					writer.newLine();
+				}
+			writer.close();
+			Files.move(Paths.get(fname + ".tmp"), Paths.get(fname), StandardCopyOption.REPLACE_EXISTING);
+			dirty = false;
+			lastSave = System.currentTimeMillis();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to write down the test failure statistics to " + fname);
+		}
+	}
+
+	private Stats getStats(String generator, Testcase c) {
+		if (!stats.containsKey(generator))
+			stats.put(generator, new HashMap<Testcase, Stats>());
+		HashMap<Testcase, Stats> m = stats.get(generator);
+		if (!m.containsKey(c))
+			m.put(c, new Stats());
+		return m.get(c);
+	}
+
+	private Stats lookupStats(String generator, Testcase c) {
+		HashMap<Testcase, Stats> m = stats.get(generator);
+		return m == null ? null : m.get(c);
+	}
+
+	// generator may be null if the candidate does not come from a single one
+	public synchronized void record(Testcase c, String generator, boolean killed) {
+		Stats s = getStats(TotalKey, c);
+		s.runs ++;
+		if (killed) s.kills ++;
+		if (generator != null) {
+			s = getStats(generator, c);
+			s.runs ++;
+			if (killed) s.kills ++;
+		}
+		dirty = true;
+		if (System.currentTimeMillis() - lastSave > SaveInterval)
+			save();
+	}
+
+	public synchronized boolean hasKilled(Testcase c) {
+		Stats s = lookupStats(TotalKey, c);
+		return s != null && s.kills > 0;
+	}
+
+	private double getScore(Testcase c, String generator) {
+		Stats s = null;
+		if (generator != null)
+			s = lookupStats(generator, c);
+		if (s == null)
+			s = lookupStats(TotalKey, c);
+		// Cases that never ran are neither likely nor unlikely killers
+		if (s == null)
+			return 0.5;
+		return s.getScore();
+	}
+
+	// Returns the cases ordered by their chance to kill a candidate of the
+	// generator, the sort is stable so ties keep the given order
+	public synchronized List<Testcase> order(Collection<Testcase> cases, final String generator) {
+		final HashMap<Testcase, Double> scores = new HashMap<Testcase, Double>();
+		for (Testcase c : cases)
+			scores.put(c, getScore(c, generator));
+		ArrayList<Testcase> ret = new ArrayList<Testcase>(cases);
+		Collections.sort(ret, new Comparator<Testcase>() {
+			@Override
+			public int compare(Testcase a, Testcase b) {
+				return Double.compare(scores.get(b), scores.get(a));
+			}
+		});
+		return ret;
+	}
+}
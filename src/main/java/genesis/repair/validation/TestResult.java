@@ -19,12 +19,22 @@ package genesis.repair.validation;
 
 public class TestResult {
 
+	// The status of a test that the watchdog killed
+	public static final int TIMEOUT = -2;
+
 	public final int status;
 	public final String msg;
+	// In milliseconds, -1 if unknown
+	public final long duration;
 	
 	public TestResult(int status, String msg) {
+		this(status, msg, -1);
+	}
+
+	public TestResult(int status, String msg, long duration) {
 		this.status = status;
 		this.msg = msg;
+		this.duration = duration;
 	}
 
 	public boolean getPass() {
@@ -0,0 +1,88 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Keeps idle PooledTestRunner JVMs per test session classpath and working
+ * directory, so that validating a candidate does not pay for JVM startup
+ * and the class loading of the test libraries again. Runners that die, time out, get poisoned or
+ * reach Config.runnerPoolMaxUses are destroyed instead of being put back.
+ */
+public class TestRunnerPool {
+
+	private static TestRunnerPool instance = null;
+
+	HashMap<String, LinkedList<PooledTestRunner>> idle;
+	ArrayList<PooledTestRunner> all;
+
+	public TestRunnerPool() {
+		idle = new HashMap<String, LinkedList<PooledTestRunner>>();
+		all = new ArrayList<PooledTestRunner>();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+	}
+
+	public static synchronized TestRunnerPool getInstance() {
+		if (instance == null)
+			instance = new TestRunnerPool();
+		return instance;
+	}
+
+	public synchronized PooledTestRunner acquire(String classPath, String workDir) {
+		LinkedList<PooledTestRunner> q = idle.get(PooledTestRunner.getKey(classPath, workDir));
+		while (q != null && !q.isEmpty()) {
+			PooledTestRunner r = q.removeFirst();
+			if (r.isReusable())
+				return r;
+			destroy(r);
+		}
+		PooledTestRunner r = new PooledTestRunner(classPath, workDir);
+		all.add(r);
+		return r;
+	}
+
+	public synchronized void release(PooledTestRunner r) {
+		if (!r.isReusable()) {
+			destroy(r);
+			return;
+		}
+		if (!idle.containsKey(r.getKey()))
+			idle.put(r.getKey(), new LinkedList<PooledTestRunner>());
+		idle.get(r.getKey()).addLast(r);
+	}
+
+	private void destroy(PooledTestRunner r) {
+		r.destroy();
+		all.remove(r);
+	}
+
+	public synchronized void shutdown() {
+		for (PooledTestRunner r : all)
+			r.destroy();
+		all.clear();
+		idle.clear();
+	}
+}
@@ -0,0 +1,137 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A part of the cases of one test session that runs in its own runner JVM
+ * and working copy, concurrently with the other shards of the same candidate. A shard can be
+ * cancelled from another thread, which kills its runner.
+ */
+public class TestShard {
+
+	// In milliseconds, for the cases without a baseline duration
+	private static final long DefaultDuration = 100;
+
+	public final int sessionId;
+	public final List<Testcase> cases;
+
+	private boolean cancelled;
+	private TestcaseExecutor exec;
+	private PooledTestRunner runner;
+
+	TestShard(int sessionId, List<Testcase> cases) {
+		this.sessionId = sessionId;
+		this.cases = cases;
+		this.cancelled = false;
+		this.exec = null;
+		this.runner = null;
+	}
+
+	// Returns false if the shard is already cancelled, the caller then should not run it
+	synchronized boolean setExecutor(TestcaseExecutor exec) {
+		this.exec = exec;
+		return !cancelled;
+	}
+
+	synchronized boolean setRunner(PooledTestRunner runner) {
+		this.runner = runner;
+		return !cancelled;
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public synchronized void cancel() {
+		cancelled = true;
+		if (exec != null)
+			exec.cancel();
+		if (runner != null)
+			runner.cancel();
+	}
+
+	// Splits the cases of every session into about n shards in total. The
+	// sessions get shards in proportion to their total duration, and the
+	// cases of a session are spread over its shards so that the shards take
+	// about the same time. Every shard keeps the order of the given cases.
+	public static List<TestShard> split(Map<Integer, ? extends List<Testcase>> sessionM, int n, TestTimeBudget budget) {
+		HashMap<Testcase, Long> durations = new HashMap<Testcase, Long>();
+		HashMap<Testcase, Integer> order = new HashMap<Testcase, Integer>();
+		long total = 0;
+		for (List<Testcase> cases : sessionM.values())
+			for (Testcase c : cases) {
+				long d = budget == null ? -1 : budget.getBaseline(c);
+				// We know nothing about it, count it as a typical short case
+				durations.put(c, d < 0 ? DefaultDuration : d + 1);
+				order.put(c, order.size());
+				total += durations.get(c);
+			}
+
+		ArrayList<TestShard> ret = new ArrayList<TestShard>();
+		for (Map.Entry<Integer, ? extends List<Testcase>> e : sessionM.entrySet()) {
+			List<Testcase> cases = e.getValue();
+			long sessionTotal = 0;
+			for (Testcase c : cases)
+				sessionTotal += durations.get(c);
+			int k = (int) Math.round((double) n * sessionTotal / Math.max(total, 1));
+			k = Math.max(1, Math.min(k, cases.size()));
+
+			ArrayList<Testcase> sorted = new ArrayList<Testcase>(cases);
+			final HashMap<Testcase, Long> d = durations;
+			Collections.sort(sorted, new Comparator<Testcase>() {
+				@Override
+				public int compare(Testcase a, Testcase b) {
+					return Long.compare(d.get(b), d.get(a));
+				}
+			});
+			ArrayList<ArrayList<Testcase>> shards = new ArrayList<ArrayList<Testcase>>();
+			long[] loads = new long[k];
+			for (int i = 0; i < k; i++)
+				shards.add(new ArrayList<Testcase>());
+			// The longest case goes to the least loaded shard
+			for (Testcase c : sorted) {
+				int min = 0;
+				for (int i = 1; i < k; i++)
+					if (loads[i] < loads[min])
+						min = i;
+				shards.get(min).add(c);
+				loads[min] += durations.get(c);
+			}
+			final HashMap<Testcase, Integer> o = order;
+			for (ArrayList<Testcase> shard : shards) {
+				if (shard.isEmpty())
+					continue;
+				Collections.sort(shard, new Comparator<Testcase>() {
+					@Override
+					public int compare(Testcase a, Testcase b) {
+						return Integer.compare(o.get(a), o.get(b));
+					}
+				});
+				ret.add(new TestShard(e.getKey(), shard));
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,95 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import genesis.Config;
+
+/**
+ * The time budget of every test case for the runner watchdog. With
+ * Config.perCaseTimeoutFactor set, the budget is calibrated from the
+ * duration of the case on the original program, which is measured when the
+ * work directory is initialized. Otherwise every case gets
+ * Config.perCaseTimeout.
+ */
+public class TestTimeBudget {
+
+	HashMap<Testcase, Long> baselines;
+
+	public TestTimeBudget() {
+		baselines = new HashMap<Testcase, Long>();
+	}
+
+	public synchronized void recordBaseline(Testcase c, long duration) {
+		if (duration >= 0)
+			baselines.put(c, duration);
+	}
+
+	// Returns the duration on the original program, -1 if unknown
+	public synchronized long getBaseline(Testcase c) {
+		Long baseline = baselines.get(c);
+		return baseline == null ? -1 : baseline;
+	}
+
+	// Returns the budget in milliseconds, 0 means no limit
+	public synchronized long getBudget(Testcase c) {
+		Long baseline = baselines.get(c);
+		if (Config.perCaseTimeoutFactor > 0 && baseline != null) {
+			long ret = (long) (Config.perCaseTimeoutFactor * baseline) + Config.perCaseTimeoutOffset;
+			// Never goes beyond the fixed timeout if there is one
+			if (Config.perCaseTimeout > 0 && ret > Config.perCaseTimeout)
+				ret = Config.perCaseTimeout;
+			return ret;
+		}
+		return Config.perCaseTimeout;
+	}
+
+	public synchronized boolean hasLimit() {
+		return Config.perCaseTimeout > 0 || (Config.perCaseTimeoutFactor > 0 && !baselines.isEmpty());
+	}
+
+	public synchronized void save(String fname) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(fname));
+		for (Map.Entry<Testcase, Long> e : baselines.entrySet()) {
+			writer.write(e.getKey().testClass + " " + e.getKey().testName + " " + e.getValue());
+			writer.newLine();
+		}
+		writer.close();
+	}
+
+	public static TestTimeBudget load(String fname) throws IOException {
+		TestTimeBudget ret = new TestTimeBudget();
+		BufferedReader reader = new BufferedReader(new FileReader(fname));
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			String[] tokens = line.trim().split(" ");
+			if (tokens.length != 3)
+				continue;
+			ret.baselines.put(new Testcase(tokens[0], tokens[1]), Long.parseLong(tokens[2]));
+		}
+		reader.close();
+		return ret;
+	}
+}
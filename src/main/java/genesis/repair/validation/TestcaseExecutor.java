@@ -17,56 +17,41 @@
 // along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
 package genesis.repair.validation;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import genesis.Config;
 import genesis.GenesisException;
-import genesis.infrastructure.ExecShellCmd;
 
 public class TestcaseExecutor {
 
-	public static String RunnerSEP = "__GENESISRUNFINISH:";
-	public static String ThrowableSEP = "__GENESIS_THROWABLE:";
-	
 	Class<?> testRunnerClass;
 	String workDir;
-	ExecShellCmd ecmd;
-	Process p;
+	volatile Process p;
+	LinkedBlockingQueue<RunnerProtocol.Frame> frames;
 	long startTime;
 	long endTime;
 	List<Testcase> cases;
 	String classPath;
-	int exitCode;
-	String out;
-	
-	class TestWorkerThread extends Thread {
-
-		Process p;
-		int exitCode;
-		
-		public TestWorkerThread(Process p) {
-			super();
-			this.p = p;
-		}
-		
-		@Override
-		public void run() {
-			try {
-				exitCode = p.waitFor();
-			}
-			catch (InterruptedException ignore) {
-			}
-		}
-		
-	}
+	ArrayList<RunnerProtocol.Frame> out;
+	Map<String, String> sysProps;
+	String javaAgent;
+	volatile boolean cancelled;
+	// Candidate id to its bytecode in batch mode, null otherwise
+	LinkedHashMap<String, Map<String, byte[]>> candidates;
 
-	public TestcaseExecutor(String testClassPath, List<Testcase> cases, String workDir) {
+	public static Class<?> detectRunnerClass(String testClassPath) {
 		if (testClassPath.contains("scalatest")) {
 			System.out.println("Genesis does not work with scalatest right now!");
 			System.out.println("Cannot determine whether it uses JUnit 3 or 4!");
@@ -74,131 +59,250 @@ public class TestcaseExecutor {
 		}
 		if (testClassPath.contains("junit/4") || testClassPath.contains("junit-4") ||
 			testClassPath.contains("junit-dep/4") || testClassPath.contains("junit-dep-4"))
-			testRunnerClass = JUnit4Runner.class;
+			return JUnit4Runner.class;
 		else if (testClassPath.contains("junit/3") || testClassPath.contains("junit-3"))
-			testRunnerClass = JUnit3Runner.class;
+			return JUnit3Runner.class;
 		else {
 			System.out.println("Cannot determine whether it uses JUnit 3 or 4!");
 			System.out.println("The class path:");
 			System.out.println(testClassPath);
 			throw new GenesisException("Unable to detect the test engine from the class path! Support JUnit3/4 only!");
 		}
+	}
+
+	public static String getRunnerLocation(Class<?> runnerClass) {
+		return runnerClass.getProtectionDomain().getCodeSource().getLocation().getPath().toString();
+	}
+
+	public TestcaseExecutor(String testClassPath, List<Testcase> cases, String workDir) {
+		testRunnerClass = detectRunnerClass(testClassPath);
 		this.workDir = workDir;
 		this.p = null;
+		this.frames = null;
 		this.startTime = 0;
 		this.endTime = 0;
 		this.cases = cases;
 		this.classPath = testClassPath;
-		this.exitCode = 0;
 		this.out = null;
+		this.sysProps = null;
+		this.javaAgent = null;
+		this.cancelled = false;
+		this.candidates = null;
+	}
+
+	public void setSystemProperties(Map<String, String> sysProps) {
+		this.sysProps = sysProps;
+	}
+
+	// Used to collect the coverage of the tests with CoverageAgent
+	public void setJavaAgent(String agentJar) {
+		this.javaAgent = agentJar;
+	}
+
+	// The frames of the last run, see TestCoverage.addRunnerFrames()
+	public List<RunnerProtocol.Frame> getFrames() {
+		return out;
+	}
+
+	// Runs the cases on every candidate in one BatchCandidateRunner JVM, 
+	// use getCandidateResults() to get the results
+	public void setCandidates(LinkedHashMap<String, Map<String, byte[]>> candidates) {
+		this.candidates = candidates;
 	}
 
 	public void run() {
+		if (candidates != null)
+			startBatch(candidates);
+		else
+			start(cases);
+		startTime = System.currentTimeMillis();
+	}
+
+	private void startBatch(final LinkedHashMap<String, Map<String, byte[]>> runCandidates) {
+		ArrayList<String> cmds = new ArrayList<String>();
+		cmds.add(Config.jvmCmd);
+		if (sysProps != null)
+			for (Map.Entry<String, String> e : sysProps.entrySet())
+				cmds.add("-D" + e.getKey() + "=" + e.getValue());
+		cmds.add("-cp");
+		cmds.add(getRunnerLocation(BatchCandidateRunner.class));
+		cmds.add(BatchCandidateRunner.class.getName());
+		cmds.add(testRunnerClass.getName());
+		cmds.add(getRunnerLocation(testRunnerClass));
+		cmds.add(classPath);
+		cmds.add(Config.classPathSep);
+		for (Testcase c : cases)
+			cmds.add(c.testClass + "#" +  c.testName);
+		startProcess(cmds);
+		// The runner reads the candidates as it goes, so we must not block on the pipe
+		final OutputStream stdin = p.getOutputStream();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(stdin));
+					for (Map.Entry<String, Map<String, byte[]>> e : runCandidates.entrySet())
+						BatchCandidateRunner.writeCandidate(dout, e.getKey(), e.getValue());
+					dout.close();
+				}
+				catch (IOException ignore) {
+					// The runner died, the watchdog will see it
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void start(List<Testcase> runCases) {
+		ArrayList<String> cmds = new ArrayList<String>();
+		cmds.add(Config.jvmCmd);
+		if (javaAgent != null)
+			cmds.add("-javaagent:" + javaAgent);
+		if (sysProps != null)
+			for (Map.Entry<String, String> e : sysProps.entrySet())
+				cmds.add("-D" + e.getKey() + "=" + e.getValue());
+		cmds.add("-cp");
+		String cp = getRunnerLocation(testRunnerClass);
+		cp += Config.classPathSep + classPath;
+		cmds.add(cp);
+		cmds.add(testRunnerClass.getName());
+		for (Testcase c : runCases)
+			cmds.add(c.testClass + "#" +  c.testName);
+		//String cmdStr = cmds.toString().replace("[", "").replace("]", "").replace(",", " ");
+		//System.out.println("cmd str: " + cmdStr);
+		startProcess(cmds);
+	}
+
+	private void startProcess(List<String> cmds) {
+		ProcessBuilder pb = new ProcessBuilder(cmds);
+		pb.directory(new File(workDir));
 		try {
-			ArrayList<String> cmds = new ArrayList<String>();
-			cmds.add(Config.jvmCmd);
-			cmds.add("-cp");
-			String cp = testRunnerClass.getProtectionDomain().getCodeSource().getLocation().getPath().toString();
-			cp += Config.classPathSep + classPath;
-			cmds.add(cp);
-			cmds.add(testRunnerClass.getName());
-			for (Testcase c : cases)
-				cmds.add(c.testClass + "#" +  c.testName);
-			//String cmdStr = cmds.toString().replace("[", "").replace("]", "").replace(",", " ");
-			//System.out.println("cmd str: " + cmdStr);
-			ecmd = new ExecShellCmd(cmds.toArray(new String[cmds.size()]), workDir, true, false);
-			p = ecmd.getProcess();
-			startTime = System.currentTimeMillis();
+			p = pb.start();
 		}
-		catch (IllegalThreadStateException  e) {
+		catch (IOException e) {
 			e.printStackTrace();
 			throw new GenesisException("Testcase executor hits unexpected problems!");
 		}
+		// Cancelled while we were starting it
+		if (cancelled)
+			p.destroy();
+		frames = new LinkedBlockingQueue<RunnerProtocol.Frame>();
+		new RunnerProtocol.FrameDecoderThread(p.getInputStream(), frames).start();
+		// The runners capture the test output, drop stray stderr output like before
+		new RunnerWatchdog.OutputPumpThread(new BufferedReader(new InputStreamReader(p.getErrorStream()))).start();
 	}
 
 	public HashMap<Testcase, TestResult> getResult() throws InterruptedException {
-		TestWorkerThread w = new TestWorkerThread(p);
-		w.start();
+		return getResult(null);
+	}
+
+	// Every case runs within its budget. If one runs out of it, we destroy
+	// the runner, count the case as failed and run the remaining cases in a 
+	// new runner.
+	public HashMap<Testcase, TestResult> getResult(TestTimeBudget budget) throws InterruptedException {
+		HashMap<Testcase, TestResult> ret = new HashMap<Testcase, TestResult>();
+		ArrayList<RunnerProtocol.Frame> allOut = new ArrayList<RunnerProtocol.Frame>();
 		try {
-			w.join();
-			endTime = System.currentTimeMillis();
-			if (p.isAlive()) {
-				p.destroy();
-				exitCode = -1;
+			while (true) {
+				RunnerWatchdog watchdog = new RunnerWatchdog(frames, budget);
+				boolean finished = watchdog.watch(RunnerProtocol.EOFFrame);
+				if (finished)
+					p.waitFor();
+				else
+					p.destroy();
+				ret.putAll(watchdog.getResults());
+				allOut.addAll(watchdog.getFrames());
+				// A timeout is a failure, we are done if the runner should stop at one
+				if (finished || cancelled || watchdog.getTimedOut() == null || RunnerProtocol.isStopOnFailure(sysProps))
+					break;
+				ArrayList<Testcase> remaining = new ArrayList<Testcase>();
+				for (Testcase c : cases)
+					if (!ret.containsKey(c))
+						remaining.add(c);
+				if (remaining.isEmpty())
+					break;
+				System.out.println("[DEBUG] Restart the runner for the remaining " + remaining.size() + " cases");
+				start(remaining);
 			}
-			else
-				exitCode = p.exitValue();
-			//System.out.println("Exitcode: " + exitCode);			
-			return processOutput();
 		}
 		finally {
 			p.destroy();
 		}
+		endTime = System.currentTimeMillis();
+		out = allOut;
+		return ret;
 	}
-	
-	public HashMap<Testcase, TestResult> getResult(long waitTime) throws InterruptedException {
-		TestWorkerThread w = new TestWorkerThread(p);
-		w.start();
+
+	// Returns the results of every candidate that the runner got to, by id.
+	// A case that runs out of its budget fails its candidate, and the
+	// candidates after it go to a new runner.
+	public LinkedHashMap<String, HashMap<Testcase, TestResult>> getCandidateResults(TestTimeBudget budget) throws InterruptedException {
+		LinkedHashMap<String, HashMap<Testcase, TestResult>> ret = new LinkedHashMap<String, HashMap<Testcase, TestResult>>();
+		ArrayList<RunnerProtocol.Frame> allOut = new ArrayList<RunnerProtocol.Frame>();
 		try {
-			System.out.println("[DEBUG] Run for: " + waitTime);
-			w.join(waitTime);
-			endTime = System.currentTimeMillis();
-			if (p.isAlive()) {
-				System.out.println("[DEBUG] Timeout! destroy!");
-				p.destroy();
-				exitCode = -1;
+			while (true) {
+				RunnerWatchdog watchdog = new RunnerWatchdog(frames, budget);
+				boolean finished = watchdog.watch(RunnerProtocol.EOFFrame);
+				if (finished)
+					p.waitFor();
+				else
+					p.destroy();
+				String last = collectCandidateResults(watchdog.getFrames(), ret);
+				allOut.addAll(watchdog.getFrames());
+				Testcase timedOut = watchdog.getTimedOut();
+				if (last != null && timedOut != null)
+					ret.get(last).put(timedOut, new TestResult(TestResult.TIMEOUT, "Timeout after " + budget.getBudget(timedOut) + "ms"));
+				// Nothing to gain from a restart if the runner did not get to any candidate
+				if (finished || cancelled || last == null)
+					break;
+				LinkedHashMap<String, Map<String, byte[]>> remaining = new LinkedHashMap<String, Map<String, byte[]>>();
+				for (Map.Entry<String, Map<String, byte[]>> e : candidates.entrySet())
+					if (!ret.containsKey(e.getKey()))
+						remaining.put(e.getKey(), e.getValue());
+				if (remaining.isEmpty())
+					break;
+				System.out.println("[DEBUG] Restart the runner for the remaining " + remaining.size() + " candidates");
+				startBatch(remaining);
 			}
-			else
-				exitCode = p.exitValue();
-			return processOutput();
 		}
 		finally {
 			p.destroy();
 		}
+		endTime = System.currentTimeMillis();
+		out = allOut;
+		return ret;
 	}
 
-	private HashMap<Testcase, TestResult> processOutput() {
-		HashMap<Testcase, TestResult> ret = new HashMap<Testcase, TestResult>();
-		try {
-			out = ecmd.getOutput();
-			String[] lines = out.split("\n");
-			StringBuffer caseOut = new StringBuffer();
-			for (String line : lines) {
-				if (line.startsWith(RunnerSEP)) {
-					String remainingLine = line.substring(RunnerSEP.length()).trim();
-					int idx1 = remainingLine.indexOf(' ');
-					int idx2 = remainingLine.lastIndexOf(' ');
-					String testClass = remainingLine.substring(0, idx1).trim();
-					String testMethod = remainingLine.substring(idx1 + 1, idx2).trim();
-					int status = Integer.parseInt(remainingLine.substring(idx2 + 1).trim());
-					/*Scanner s = new Scanner(remainingLine);
-					String testClass = s.next();
-					String testMethod = s.next();
-					int status = s.nextInt();
-					s.close();*/
-					Testcase curCase = new Testcase(testClass, testMethod);
-					ret.put(curCase, new TestResult(status, caseOut.toString()));
-					caseOut = new StringBuffer();
-				}
-				else {
-					caseOut.append(line);
-					caseOut.append("\n");
-				}
+	// Splits the frames at the candidate frames and collects the results of
+	// every candidate into ret. Returns the id of the last candidate.
+	static String collectCandidateResults(List<RunnerProtocol.Frame> frames, LinkedHashMap<String, HashMap<Testcase, TestResult>> ret) {
+		String cur = null;
+		for (RunnerProtocol.Frame frame : frames) {
+			if (frame.type == RunnerProtocol.CandidateFrame) {
+				cur = frame.text;
+				ret.put(cur, new HashMap<Testcase, TestResult>());
 			}
+			else if (frame.type == RunnerProtocol.FinishFrame && cur != null)
+				ret.get(cur).put(frame.testcase, new TestResult(frame.status, frame.text));
 		}
-		catch (InterruptedException e) {
-			e.printStackTrace();
-			throw new GenesisException("This should never happen!");
-		}
-		catch (NumberFormatException e) {
-			e.printStackTrace();
-			System.out.println("This may happen if the test case timeout, just going to ignore!");
-		}
-		/*catch (IOException e) {
-			e.printStackTrace();
-			System.out.println(out);
-			throw new GenesisException("Unable to parse the TestRunner's output!");
-		}*/
-		return ret;
+		return cur;
+	}
+
+	// Called from another thread to kill the runner, getResult() then
+	// returns the results that we got so far
+	public void cancel() {
+		cancelled = true;
+		Process tmp = p;
+		if (tmp != null)
+			tmp.destroy();
+	}
+
+	// A later finish frame of a case overrides an earlier one, see
+	// JUnit4Runner.CaseListener
+	static void collectResults(List<RunnerProtocol.Frame> frames, HashMap<Testcase, TestResult> ret) {
+		for (RunnerProtocol.Frame frame : frames)
+			if (frame.type == RunnerProtocol.FinishFrame)
+				ret.put(frame.testcase, new TestResult(frame.status, frame.text));
 	}
 }
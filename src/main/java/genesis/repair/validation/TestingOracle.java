@@ -17,6 +17,7 @@
 // along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
 package genesis.repair.validation;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -26,128 +27,461 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.FileUtils;
 
 import genesis.Config;
 import genesis.GenesisException;
 import genesis.repair.WorkdirManager;
+import genesis.repair.localization.SuspiciousLocation;
 
 public class TestingOracle implements ValidationOracle {
 
-	public final static int FailedPosCaseBatch = 3;
+	public final static int FailFirstBatch = 1;
 
 	WorkdirManager manager;
-	HashSet<Testcase> failedPosCases;
+	// The working directory and java.io.tmpdir of the test JVMs, null for 
+	// the work source directory and the default tmpdir
+	String testWorkDir;
+	String testTmpDir;
+	// Non-null while we collect the coverage of the tests that we run
+	TestCoverage coverageCollector;
+	// The bytecode hashes of the compiled candidates in the temp dirs, and
+	// the source files whose original class hash is in the validation cache
+	Map<Path, String> compiledHashes;
+	Set<String> hashedSources;
+	// The in-process first tier, null if it is off
+	InProcessValidator inProcess;
+	// The test runs in flight, and whether cancelAll() was called, shared
+	// with the worker oracles
+	Set<TestShard> runningShards;
+	AtomicBoolean cancelled;
+	// The working directories of the concurrent shards, one per shard that
+	// may run at a time, null until the first sharded run
+	BlockingQueue<String> shardWorkDirs;
 	
 	public TestingOracle(WorkdirManager manager) {
 		this.manager = manager;
-		this.failedPosCases = new HashSet<Testcase>();
+		this.testWorkDir = null;
+		this.testTmpDir = null;
+		this.coverageCollector = null;
+		this.compiledHashes = new ConcurrentHashMap<Path, String>();
+		this.hashedSources = ConcurrentHashMap.newKeySet();
+		this.inProcess = Config.inProcessValidation ? new InProcessValidator(manager, this) : null;
+		this.runningShards = ConcurrentHashMap.newKeySet();
+		this.cancelled = new AtomicBoolean(false);
+		this.shardWorkDirs = null;
+	}
+
+	// An oracle for a concurrent test worker, it shares the compiled candidates with this one
+	public TestingOracle createWorkerOracle(String testWorkDir, String testTmpDir) {
+		TestingOracle ret = new TestingOracle(manager);
+		ret.compiledHashes = compiledHashes;
+		ret.hashedSources = hashedSources;
+		ret.inProcess = inProcess;
+		ret.runningShards = runningShards;
+		ret.cancelled = cancelled;
+		ret.testWorkDir = testWorkDir;
+		ret.testTmpDir = testTmpDir;
+		return ret;
+	}
+
+	// Kills the test runs in flight of this oracle and of its worker oracles.
+	// The runs after this get no results, so every candidate fails.
+	public void cancelAll() {
+		cancelled.set(true);
+		for (TestShard shard : runningShards)
+			shard.cancel();
+	}
+
+	public boolean isCancelled() {
+		return cancelled.get();
+	}
+
+	private String getTestWorkDir() {
+		return testWorkDir == null ? manager.getWorkSrcDir() : testWorkDir;
+	}
+
+	// The tests of a session may write to their working directory, so the
+	// concurrent shards of this oracle run in their own working copies, the
+	// first one in the usual working directory
+	private synchronized BlockingQueue<String> getShardWorkDirs() {
+		if (shardWorkDirs == null) {
+			shardWorkDirs = new LinkedBlockingQueue<String>();
+			shardWorkDirs.add(getTestWorkDir());
+			String base = new File(getTestWorkDir()).getName();
+			for (int i = 1; i < Config.testShards; i++) {
+				try {
+					shardWorkDirs.add(manager.createWorkingCopy(base + "_shard" + i));
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+					throw new GenesisException("Unable to create the working copy for test shard " + i);
+				}
+			}
+		}
+		return shardWorkDirs;
+	}
+
+	public void setCoverageCollector(TestCoverage coverageCollector) {
+		this.coverageCollector = coverageCollector;
 	}
 
 	@Override
 	public ValidationResult validate(String sourcePath, String newCodeStr, boolean verbose) {
+		return validate(sourcePath, null, null, newCodeStr, verbose);
+	}
+
+	@Override
+	public ValidationResult validate(SuspiciousLocation loc, String newCodeStr, boolean verbose) {
+		return validate(loc.getSourcePath(), loc, null, newCodeStr, verbose);
+	}
+
+	@Override
+	public ValidationResult validate(SuspiciousLocation loc, String generator, String newCodeStr, boolean verbose) {
+		return validate(loc.getSourcePath(), loc, generator, newCodeStr, verbose);
+	}
+
+	private ValidationResult validate(String sourcePath, SuspiciousLocation loc, String generator, String newCodeStr, boolean verbose) {
+		Map<String, byte[]> bytecodes = manager.compileJavaSource(sourcePath, newCodeStr);
+		// Compilation error, going to skip
+		if (bytecodes == null)
+			return ValidationResult.COMPILE_FAIL;
+		return validateBytecodes(sourcePath, loc, generator, bytecodes, verbose);
+	}
+
+	@Override
+	public ValidationResult validateBytecodes(SuspiciousLocation loc, String generator, Map<String, byte[]> bytecodes, boolean verbose) {
+		return validateBytecodes(loc.getSourcePath(), loc, generator, bytecodes, verbose);
+	}
+
+	private ValidationResult validateBytecodes(String sourcePath, SuspiciousLocation loc, String generator, Map<String, byte[]> bytecodes, boolean verbose) {
+		if (rejectInProcess(bytecodes, generator, verbose))
+			return ValidationResult.FAIL;
+		Path tempDirPath = writeToTempDir(sourcePath, bytecodes);
+		if (tempDirPath == null)
+			return ValidationResult.COMPILE_FAIL;
+		ValidationResult ret = validateCompiled(tempDirPath, null, loc, generator, verbose);
+		try {
+			FileUtils.deleteDirectory(tempDirPath.toFile());
+		}
+		catch (IOException ignore) { }
+		return ret;
+	}
+
+	@Override
+	public List<ValidationResult> validateSchema(SuspiciousLocation loc, String schemaCodeStr, String selectorProperty, int n, boolean verbose) {
+		Path tempDirPath = compileToTempDir(loc.getSourcePath(), schemaCodeStr);
+		if (tempDirPath == null)
+			return null;
+		ArrayList<ValidationResult> ret = new ArrayList<ValidationResult>();
+		for (int i = 0; i < n; i++) {
+			if (verbose) System.out.println("Validating schema candidate: " + i);
+			HashMap<String, String> sysProps = new HashMap<String, String>();
+			sysProps.put(selectorProperty, Integer.toString(i));
+			ret.add(validateCompiled(tempDirPath, sysProps, loc, null, verbose));
+		}
+		try {
+			FileUtils.deleteDirectory(tempDirPath.toFile());
+		}
+		catch (IOException ignore) { }
+		return ret;
+	}
+
+	// The negative cases check the candidates of a batch in one runner JVM per
+	// test session, Config.candidateBatchSize candidates at a time. Only the
+	// candidates that pass them all go through validateCompiled() one by one.
+	@Override
+	public List<ValidationResult> validateBatch(SuspiciousLocation loc, List<String> generators, List<String> newCodeStrs, boolean verbose) {
+		String sourcePath = loc.getSourcePath();
+		ValidationCache cache = manager.getValidationCache();
+		if (cache != null)
+			addOriginalHash(cache, sourcePath);
+		ArrayList<ValidationResult> ret = new ArrayList<ValidationResult>();
+		LinkedHashMap<String, Map<String, byte[]>> alive = new LinkedHashMap<String, Map<String, byte[]>>();
+		HashMap<String, String> hashes = new HashMap<String, String>();
+		List<Map<String, byte[]>> compiled = manager.compileJavaSources(sourcePath, newCodeStrs);
+		for (int i = 0; i < newCodeStrs.size(); i++) {
+			ret.add(null);
+			Map<String, byte[]> bytecodes = compiled.get(i);
+			if (bytecodes == null) {
+				ret.set(i, ValidationResult.COMPILE_FAIL);
+				continue;
+			}
+			String hash = cache == null ? null : getBytecodeHash(bytecodes);
+			if (hash != null && cache.get(hash) != null) {
+				if (verbose) System.out.println("Same bytecode as a validated candidate " + i + ", reuse the result: " + cache.get(hash));
+				ret.set(i, cache.get(hash));
+				continue;
+			}
+			if (rejectInProcess(bytecodes, generators.get(i), verbose)) {
+				ret.set(i, ValidationResult.FAIL);
+				continue;
+			}
+			String id = Integer.toString(i);
+			alive.put(id, bytecodes);
+			if (hash != null)
+				hashes.put(id, hash);
+		}
+
+		if (!alive.isEmpty())
+			screenNegativeCases(alive, generators, verbose);
+		if (verbose) System.out.println(alive.size() + " candidates of the batch passed the negative cases");
+		for (int i = 0; i < ret.size(); i++) {
+			String id = Integer.toString(i);
+			if (ret.get(i) != null)
+				continue;
+			if (!alive.containsKey(id)) {
+				ret.set(i, ValidationResult.FAIL);
+				if (hashes.containsKey(id))
+					cache.put(hashes.get(id), ValidationResult.FAIL);
+				continue;
+			}
+			if (verbose) System.out.println("Validating batch candidate: " + i);
+			Path tempDirPath = writeToTempDir(sourcePath, alive.get(id));
+			if (tempDirPath == null) {
+				ret.set(i, ValidationResult.COMPILE_FAIL);
+				continue;
+			}
+			ret.set(i, validateCompiled(tempDirPath, null, loc, generators.get(i), verbose));
+			FileUtils.deleteQuietly(tempDirPath.toFile());
+		}
+		return ret;
+	}
+
+	// Removes the candidates that fail a negative case from alive
+	private void screenNegativeCases(LinkedHashMap<String, Map<String, byte[]>> alive, List<String> generators, boolean verbose) {
+		TestFailureModel model = manager.getTestFailureModel();
+		TestTimeBudget budget = manager.getTestTimeBudget();
+		HashMap<String, String> stopProps = new HashMap<String, String>();
+		stopProps.put(RunnerProtocol.StopOnFailureProperty, "true");
+		if (testTmpDir != null)
+			stopProps.put("java.io.tmpdir", testTmpDir);
+		LinkedHashMap<Integer, ArrayList<Testcase>> sessionM = groupBySession(model.order(manager.getNegativeCases(), null));
+		for (Integer sessionId : sessionM.keySet()) {
+			List<Testcase> cases = sessionM.get(sessionId);
+			ArrayList<String> ids = new ArrayList<String>(alive.keySet());
+			for (int start = 0; start < ids.size(); start += Config.candidateBatchSize) {
+				LinkedHashMap<String, Map<String, byte[]>> batch = new LinkedHashMap<String, Map<String, byte[]>>();
+				for (String id : ids.subList(start, Math.min(ids.size(), start + Config.candidateBatchSize)))
+					batch.put(id, alive.get(id));
+				TestcaseExecutor exec = new TestcaseExecutor(manager.getTestSessionClasspath(sessionId), cases, getTestWorkDir());
+				exec.setSystemProperties(stopProps);
+				exec.setCandidates(batch);
+				exec.run();
+				LinkedHashMap<String, HashMap<Testcase, TestResult>> res = null;
+				try {
+					res = exec.getCandidateResults(budget);
+				}
+				catch (InterruptedException e) {
+					e.printStackTrace();
+					throw new GenesisException("Genesis is interrupted during testing!");
+				}
+				// The candidates that the runner did not get to stay alive, they
+				// are checked one by one later
+				for (Map.Entry<String, HashMap<Testcase, TestResult>> e : res.entrySet()) {
+					String generator = generators.get(Integer.parseInt(e.getKey()));
+					for (Map.Entry<Testcase, TestResult> e1 : e.getValue().entrySet())
+						model.record(e1.getKey(), generator, !e1.getValue().getPass());
+					if (getPassedCases(e.getValue()).size() != cases.size()) {
+						alive.remove(e.getKey());
+						if (verbose) System.out.println("Batch candidate " + e.getKey() + " failed negative cases " + getFailedCases(getPassedCases(e.getValue()), e.getValue().keySet()));
+					}
+				}
+			}
+		}
+	}
+
+	// Returns null if the bytecode cannot be hashed, e.g., the class
+	// version is too new for our ASM
+	private String getBytecodeHash(Map<String, byte[]> bytecodes) {
+		try {
+			return ValidationCache.hashBytecodes(bytecodes);
+		}
+		catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	// The original program fails the negative cases, so a candidate with the
+	// same bytecode as the original class must fail too
+	private void addOriginalHash(ValidationCache cache, String sourcePath) {
+		if (!hashedSources.add(sourcePath))
+			return;
+		try {
+			String code = new String(Files.readAllBytes(Paths.get(manager.getWorkSrcDir() + Config.filePathSep + sourcePath)));
+			Map<String, byte[]> bytecodes = manager.compileJavaSource(sourcePath, code);
+			String hash = bytecodes == null ? null : getBytecodeHash(bytecodes);
+			if (hash != null)
+				cache.put(hash, ValidationResult.FAIL);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to read the original source file: " + sourcePath);
+		}
+	}
+
+	// Runs the negative cases on the in-memory bytecode in this JVM, see
+	// InProcessValidator. Returns true if one of them kills the candidate.
+	public boolean rejectInProcess(Map<String, byte[]> bytecodes, String generator, boolean verbose) {
+		if (inProcess == null)
+			return false;
+		TestFailureModel model = manager.getTestFailureModel();
+		Testcase killer = inProcess.findKiller(bytecodes, model.order(manager.getNegativeCases(), generator));
+		if (killer == null)
+			return false;
+		model.record(killer, generator, true);
+		if (verbose) {
+			System.out.println("Failed negative cases in process:");
+			System.out.println(killer.toString());
+		}
+		return true;
+	}
+
+	public Path compileToTempDir(String sourcePath, String newCodeStr) {
+		Map<String, byte[]> bytecodes = manager.compileJavaSource(sourcePath, newCodeStr);
+		// Compilation error, going to skip
+		if (bytecodes == null) {
+			//System.out.println("Compilation failed!");
+			return null;
+		}
+		return writeToTempDir(sourcePath, bytecodes);
+	}
+
+	public Path writeToTempDir(String sourcePath, Map<String, byte[]> bytecodes) {
 		Path tempDirPath = null;
 		try {
 			tempDirPath = Files.createTempDirectory(Paths.get(Config.tmpDirectory), Config.tmpDirPrefix);
-			boolean succ = manager.compileJavaSourceTo(sourcePath, newCodeStr, tempDirPath);
-			// Compilation error, going to skip
-			if (!succ) {
-				//System.out.println("Compilation failed!");
-				FileUtils.deleteDirectory(tempDirPath.toFile());
-				return ValidationResult.COMPILE_FAIL;
+			manager.writeBytecodes(bytecodes, tempDirPath);
+			ValidationCache cache = manager.getValidationCache();
+			if (cache != null) {
+				addOriginalHash(cache, sourcePath);
+				String hash = getBytecodeHash(bytecodes);
+				if (hash != null)
+					compiledHashes.put(tempDirPath, hash);
 			}
 		}
 		catch (IOException e) {
 			e.printStackTrace();
-			System.out.println(newCodeStr);
 			System.out.println("IOException when validating a patch: " + sourcePath);
-			return ValidationResult.COMPILE_FAIL;
+			return null;
 		}
-		
-		List<Testcase> ret = runTestcases(tempDirPath, manager.getNegativeCases());
-		if (ret.size() != manager.getNegativeCases().size()) {
-			if (verbose) {
-				System.out.println("Failed negative cases:");
-				List<Testcase> failedCases = getFailedCases(ret, manager.getNegativeCases());
-				for (Testcase c : failedCases) {
-					System.out.print(c.toString() + " ");
-				}
-				System.out.println();
-			}
-			return ValidationResult.FAIL;
+		return tempDirPath;
+	}
+
+	// Returns the positive cases that may reach the location, all of them if 
+	// we have no coverage or the location is not in a covered method
+	private List<Testcase> selectPositiveCases(SuspiciousLocation loc) {
+		TestCoverage coverage = manager.getTestCoverage();
+		if (loc == null || coverage == null)
+			return manager.getPositiveCases();
+		List<Testcase> ret = coverage.selectCases(loc.getSourcePath(), loc.getLine(), manager.getPositiveCases());
+		if (ret == null)
+			return manager.getPositiveCases();
+		return ret;
+	}
+
+	// loc is the location of the patch, if it is not null, we only run the
+	// positive cases that reach it according to the test coverage. generator
+	// selects the failure statistics that order the cases, it may be null.
+	public ValidationResult validateCompiled(Path tempDirPath, Map<String, String> sysProps, SuspiciousLocation loc, String generator, boolean verbose) {
+		String hash = compiledHashes.remove(tempDirPath);
+		ValidationCache cache = manager.getValidationCache();
+		// The result of a schema depends on the selector property as well
+		if (hash == null || cache == null || sysProps != null)
+			return runValidation(tempDirPath, sysProps, loc, generator, verbose);
+		ValidationResult ret = cache.get(hash);
+		if (ret != null) {
+			if (verbose) System.out.println("Same bytecode as a validated candidate, reuse the result: " + ret);
+			return ret;
 		}
+		ret = runValidation(tempDirPath, sysProps, loc, generator, verbose);
+		// A cancelled run says nothing about the candidate
+		if (!cancelled.get())
+			cache.put(hash, ret);
+		return ret;
+	}
+
+	private ValidationResult runValidation(Path tempDirPath, Map<String, String> sysProps, SuspiciousLocation loc, String generator, boolean verbose) {
+		TestFailureModel model = manager.getTestFailureModel();
+		List<Testcase> posCases = selectPositiveCases(loc);
+		if (verbose && posCases.size() != manager.getPositiveCases().size())
+			System.out.println("Selected " + posCases.size() + " of " + manager.getPositiveCases().size() + " positive cases with coverage");
+		List<Testcase> negCases = model.order(manager.getNegativeCases(), generator);
+		if (runFailFirst(tempDirPath, sysProps, negCases, generator, "negative", verbose) == ValidationResult.FAIL)
+			return ValidationResult.FAIL;
 		
 		if (verbose) System.out.println("Passed negative cases!");
 		
-		if (failedPosCases.size() != 0) {
-			ArrayList<Testcase> cases = new ArrayList<Testcase>();
-			for (Testcase c1 : failedPosCases) {
-				cases.add(c1);
-				if (cases.size() >= FailedPosCaseBatch) {
-					//System.out.println("Running for: ");
-					//System.out.println(cases.toString());
-					//ArrayList<Testcase> cases = new ArrayList<Testcase>(failedPosCases);
-					ret = runTestcases(tempDirPath, cases);
-					if (ret.size() != cases.size()) {
-						if (verbose) {
-							List<Testcase> failedCases = getFailedCases(ret, cases);
-							System.out.println("Failed positive cases:");
-							for (Testcase c : failedCases) {
-								System.out.print(c.toString() + " ");
-							}
-							System.out.println();
-						}
-						return ValidationResult.FAIL;
-					}
-					cases.clear();
-				}
-			}
-			
-			if (cases.size() > 0) {
-				//System.out.println("Running for: ");
-				//System.out.println(cases.toString());
-				ret = runTestcases(tempDirPath, cases);
-				if (ret.size() != cases.size()) {
-					if (verbose) {
-						List<Testcase> failedCases = getFailedCases(ret, cases);
-						System.out.println("Failed positive cases:");
-						for (Testcase c : failedCases) {
-							System.out.print(c.toString() + " ");
-						}
-						System.out.println();
-					}
-					return ValidationResult.FAIL;
-				}
-			}
-		}
-		
-		HashSet<Testcase> remainingCases = new HashSet<Testcase>(manager.getPositiveCases());
-		remainingCases.removeAll(failedPosCases);
-		ArrayList<Testcase> cases = new ArrayList<Testcase>(remainingCases);
-		ret = runTestcases(tempDirPath, cases);
-		if (ret.size() != cases.size()) {
-			List<Testcase> failedCases = getFailedCases(ret, cases);
-			if (verbose) {
-				System.out.println("Failed positive cases:");
-				for (Testcase c : failedCases) {
-					System.out.print(c.toString() + " ");
-				}
-				System.out.println();
-			}
-			failedPosCases.addAll(failedCases);
+		if (runFailFirst(tempDirPath, sysProps, model.order(posCases, generator), generator, "positive", verbose) == ValidationResult.FAIL)
 			return ValidationResult.FAIL;
+
+		// Confirms the plausible patch with the cases that the coverage skipped
+		if (Config.coverageConfirmFull && posCases.size() != manager.getPositiveCases().size()) {
+			HashSet<Testcase> remainingCases = new HashSet<Testcase>(manager.getPositiveCases());
+			remainingCases.removeAll(posCases);
+			if (verbose) System.out.println("Confirming with " + remainingCases.size() + " skipped positive cases");
+			if (runFailFirst(tempDirPath, sysProps, model.order(remainingCases, generator), generator, "positive", verbose) == ValidationResult.FAIL)
+				return ValidationResult.FAIL;
 		}
 		
 		System.out.println("Pass positive cases!");
 		
-		try {
-			FileUtils.deleteDirectory(tempDirPath.toFile());
+		return ValidationResult.PASS;
+	}
+
+	// Runs the ordered cases in batches until one fails. The cases that killed
+	// candidates before run first in batches of FailFirstBatch, 2 * FailFirstBatch, 
+	// ..., and the cases that never killed one run together in the last batch.
+	private ValidationResult runFailFirst(Path tempDirPath, Map<String, String> sysProps, List<Testcase> cases, String generator, String kind, boolean verbose) {
+		TestFailureModel model = manager.getTestFailureModel();
+		HashMap<String, String> stopProps = new HashMap<String, String>();
+		if (sysProps != null)
+			stopProps.putAll(sysProps);
+		stopProps.put(RunnerProtocol.StopOnFailureProperty, "true");
+		int batch = FailFirstBatch;
+		int i = 0;
+		while (i < cases.size()) {
+			int end = i;
+			while (end < cases.size() && end - i < batch && model.hasKilled(cases.get(end)))
+				end ++;
+			if (end == i)
+				end = cases.size();
+			batch *= 2;
+			List<Testcase> batchCases = cases.subList(i, end);
+			Map<Testcase, TestResult> res = runTestcasesForResults(tempDirPath, stopProps, batchCases);
+			// The runner stops at the first failure, the cases after it did not run
+			for (Testcase c : batchCases)
+				if (res.containsKey(c) && !cancelled.get())
+					model.record(c, generator, !res.get(c).getPass());
+			List<Testcase> ret = getPassedCases(res);
+			if (ret.size() != batchCases.size()) {
+				if (verbose) {
+					List<Testcase> failedCases = getFailedCases(ret, res.keySet());
+					System.out.println("Failed " + kind + " cases:");
+					for (Testcase c : failedCases) {
+						System.out.print(c.toString() + " ");
+					}
+					System.out.println();
+				}
+				return ValidationResult.FAIL;
+			}
+			i = end;
 		}
-		catch (IOException ignore) { }
-		
 		return ValidationResult.PASS;
 	}
 
@@ -162,7 +496,12 @@ public class TestingOracle implements ValidationOracle {
 	}
 	
 	public Map<Testcase, TestResult> runTestcasesForResults(Path extraTestClassPath, List<Testcase> cases) {
-		HashMap<Integer, ArrayList<Testcase>> sessionM = new HashMap<Integer, ArrayList<Testcase>>();
+		return runTestcasesForResults(extraTestClassPath, null, cases);
+	}
+
+	// Keeps the order of the cases, so that the session of the first case runs first
+	LinkedHashMap<Integer, ArrayList<Testcase>> groupBySession(List<Testcase> cases) {
+		LinkedHashMap<Integer, ArrayList<Testcase>> ret = new LinkedHashMap<Integer, ArrayList<Testcase>>();
 		for (Testcase c : cases) {
 			int id = manager.getTestSessionId(c.testClass);
 			if (id < 0) {
@@ -170,31 +509,212 @@ public class TestingOracle implements ValidationOracle {
 				System.out.println("[WARN]Count this testcase failed!");
 				continue;
 			}
-			if (!sessionM.containsKey(id))
-				sessionM.put(id, new ArrayList<Testcase>());
-			sessionM.get(id).add(c);
+			if (!ret.containsKey(id))
+				ret.put(id, new ArrayList<Testcase>());
+			ret.get(id).add(c);
 		}
-		
+		return ret;
+	}
+
+	public Map<Testcase, TestResult> runTestcasesForResults(Path extraTestClassPath, Map<String, String> sysProps, List<Testcase> cases) {
+		if (testTmpDir != null) {
+			HashMap<String, String> tmp = new HashMap<String, String>();
+			if (sysProps != null)
+				tmp.putAll(sysProps);
+			tmp.put("java.io.tmpdir", testTmpDir);
+			sysProps = tmp;
+		}
+		LinkedHashMap<Integer, ArrayList<Testcase>> sessionM = groupBySession(cases);
+		TestTimeBudget budget = manager.getTestTimeBudget();
+		// The coverage collector is not thread safe, so we run the sessions one by one then
+		if (Config.testShards > 1 && coverageCollector == null && cases.size() > 1)
+			return runShards(extraTestClassPath, sysProps, sessionM, budget);
 		HashMap<Testcase, TestResult> ret = new HashMap<>();
 		for (Integer id : sessionM.keySet()) {
-			String testClassPath = manager.getTestSessionClasspath(id);
-			if (extraTestClassPath != null)
-				testClassPath = extraTestClassPath.toString() + Config.classPathSep + testClassPath;
-			//System.out.println("Testing classpath: " + testClassPath);
-			TestcaseExecutor exec = new TestcaseExecutor(testClassPath, sessionM.get(id), manager.getWorkSrcDir());
-			exec.run();
+			HashMap<Testcase, TestResult> res = runSession(id, extraTestClassPath, sysProps, sessionM.get(id), budget, null, getTestWorkDir());
+			ret.putAll(res);
+			if (RunnerProtocol.isStopOnFailure(sysProps) && getPassedCases(res).size() != sessionM.get(id).size())
+				break;
+		}
+		return ret;
+	}
+
+	// Runs the shards of the sessions concurrently, each in its own runner
+	// and working copy, see getShardWorkDirs(). With stop on failure, the
+	// first failed shard cancels all the others.
+	private Map<Testcase, TestResult> runShards(final Path extraTestClassPath, Map<String, String> sysProps,
+			Map<Integer, ArrayList<Testcase>> sessionM, final TestTimeBudget budget) {
+		final List<TestShard> shards = TestShard.split(sessionM, Config.testShards, budget);
+		final BlockingQueue<String> workDirs = getShardWorkDirs();
+		boolean stopOnFailure = RunnerProtocol.isStopOnFailure(sysProps);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(Config.testShards, shards.size()));
+		ExecutorCompletionService<HashMap<Testcase, TestResult>> completion = new ExecutorCompletionService<HashMap<Testcase, TestResult>>(executor);
+		ArrayList<Path> tmpDirs = new ArrayList<Path>();
+		HashMap<Future<HashMap<Testcase, TestResult>>, TestShard> futures = new HashMap<Future<HashMap<Testcase, TestResult>>, TestShard>();
+		HashMap<Testcase, TestResult> ret = new HashMap<Testcase, TestResult>();
+		try {
+			for (final TestShard shard : shards) {
+				// The shards of a session would step on each other's temp files
+				final HashMap<String, String> shardProps = new HashMap<String, String>();
+				if (sysProps != null)
+					shardProps.putAll(sysProps);
+				if (testTmpDir == null) {
+					Path tmpDir = Files.createTempDirectory(Paths.get(Config.tmpDirectory), Config.tmpDirPrefix);
+					tmpDirs.add(tmpDir);
+					shardProps.put("java.io.tmpdir", tmpDir.toString());
+				}
+				Future<HashMap<Testcase, TestResult>> future = completion.submit(new Callable<HashMap<Testcase, TestResult>>() {
+					@Override
+					public HashMap<Testcase, TestResult> call() throws InterruptedException {
+						// There are as many working copies as shards that run at a time
+						String workDir = workDirs.take();
+						try {
+							return runSession(shard.sessionId, extraTestClassPath, shardProps, shard.cases, budget, shard, workDir);
+						}
+						finally {
+							workDirs.put(workDir);
+						}
+					}
+				});
+				futures.put(future, shard);
+			}
+			boolean failed = false;
+			for (int i = 0; i < shards.size(); i++) {
+				Future<HashMap<Testcase, TestResult>> future = completion.take();
+				HashMap<Testcase, TestResult> res = future.get();
+				ret.putAll(res);
+				// A case without a result counts as failed, e.g., the runner died
+				if (stopOnFailure && !failed && getPassedCases(res).size() != futures.get(future).cases.size()) {
+					failed = true;
+					for (TestShard shard : shards)
+						shard.cancel();
+				}
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			throw new GenesisException("Unable to create the temp directory for the test shards!");
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new GenesisException("Genesis is interrupted during testing!");
+		}
+		catch (ExecutionException e) {
+			e.printStackTrace();
+			throw new GenesisException("A test shard hits unexpected problems!");
+		}
+		finally {
+			for (TestShard shard : shards)
+				shard.cancel();
+			executor.shutdownNow();
+			for (Path tmpDir : tmpDirs)
+				FileUtils.deleteQuietly(tmpDir.toFile());
+		}
+		return ret;
+	}
+
+	// Runs the cases of one session, shard is null if we do not run shards
+	private HashMap<Testcase, TestResult> runSession(Integer id, Path extraTestClassPath, Map<String, String> sysProps,
+			List<Testcase> cases, TestTimeBudget budget, TestShard shard, String workDir) {
+		// The whole session is one shard for cancelAll()
+		if (shard == null)
+			shard = new TestShard(id, cases);
+		runningShards.add(shard);
+		try {
+			// Checked after we register, so that cancelAll() either sees us or we see it
+			if (cancelled.get())
+				shard.cancel();
+			return runRegisteredSession(id, extraTestClassPath, sysProps, cases, budget, shard, workDir);
+		}
+		finally {
+			runningShards.remove(shard);
+		}
+	}
+
+	private HashMap<Testcase, TestResult> runRegisteredSession(Integer id, Path extraTestClassPath, Map<String, String> sysProps,
+			List<Testcase> cases, TestTimeBudget budget, TestShard shard, String workDir) {
+		// The pooled runners do not run with the coverage agent
+		if (Config.useRunnerPool && coverageCollector == null)
+			return runWithPooledRunner(id, extraTestClassPath, sysProps, cases, budget, shard, workDir);
+		String testClassPath = manager.getTestSessionClasspath(id);
+		if (extraTestClassPath != null)
+			testClassPath = extraTestClassPath.toString() + Config.classPathSep + testClassPath;
+		//System.out.println("Testing classpath: " + testClassPath);
+		TestcaseExecutor exec = new TestcaseExecutor(testClassPath, cases, workDir);
+		if (!shard.setExecutor(exec))
+			return new HashMap<Testcase, TestResult>();
+		exec.setSystemProperties(sysProps);
+		if (coverageCollector != null)
+			exec.setJavaAgent(getCoverageAgentJar());
+		exec.run();
+		HashMap<Testcase, TestResult> res = null;
+		try {
+			res = exec.getResult(budget);
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new GenesisException("Genesis is interrupted during testing!");
+		}
+		if (coverageCollector != null)
+			coverageCollector.addRunnerFrames(exec.getFrames());
+		return res;
+	}
+
+	private static String coverageAgentJar = null;
+
+	private static synchronized String getCoverageAgentJar() {
+		if (coverageAgentJar == null) {
+			try {
+				Path jarPath = Files.createTempFile(Paths.get(Config.tmpDirectory), Config.tmpDirPrefix, ".jar");
+				jarPath.toFile().deleteOnExit();
+				CoverageAgent.createAgentJar(jarPath);
+				coverageAgentJar = jarPath.toString();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				throw new GenesisException("Unable to create the coverage agent jar!");
+			}
+		}
+		return coverageAgentJar;
+	}
+
+	private HashMap<Testcase, TestResult> runWithPooledRunner(Integer id, Path extraTestClassPath, Map<String, String> sysProps,
+			List<Testcase> cases, TestTimeBudget budget, TestShard shard, String workDir) {
+		TestRunnerPool pool = TestRunnerPool.getInstance();
+		HashMap<Testcase, TestResult> ret = new HashMap<Testcase, TestResult>();
+		List<Testcase> remaining = cases;
+		// A case that runs out of its budget kills the runner, the remaining cases go to a new one
+		while (!remaining.isEmpty()) {
+			PooledTestRunner runner = pool.acquire(manager.getTestSessionClasspath(id), workDir);
+			if (!shard.setRunner(runner)) {
+				pool.release(runner);
+				break;
+			}
 			HashMap<Testcase, TestResult> res = null;
 			try {
-				if (Config.perCaseTimeout == 0)
-					res = exec.getResult();
-				else
-					res = exec.getResult(Config.perCaseTimeout * sessionM.get(id).size());
+				res = runner.runTestcases(extraTestClassPath, sysProps, remaining, budget);
 			}
 			catch (InterruptedException e) {
 				e.printStackTrace();
 				throw new GenesisException("Genesis is interrupted during testing!");
 			}
+			finally {
+				// The runner may go to another shard once it is back in the pool
+				shard.setRunner(null);
+				pool.release(runner);
+			}
 			ret.putAll(res);
+			boolean timedOut = false;
+			for (TestResult r : res.values())
+				if (r.status == TestResult.TIMEOUT)
+					timedOut = true;
+			if (!timedOut || RunnerProtocol.isStopOnFailure(sysProps) || shard.isCancelled())
+				break;
+			ArrayList<Testcase> tmp = new ArrayList<Testcase>();
+			for (Testcase c : remaining)
+				if (!ret.containsKey(c))
+					tmp.add(c);
+			remaining = tmp;
 		}
 		return ret;
 	}
@@ -204,8 +724,14 @@ public class TestingOracle implements ValidationOracle {
 	}
 
 	public List<Testcase> runTestcases(Path extraTestClassPath, List<Testcase> cases) {
-		Map<Testcase, TestResult> res =
-			runTestcasesForResults(extraTestClassPath, cases);
+		return runTestcases(extraTestClassPath, null, cases);
+	}
+
+	public List<Testcase> runTestcases(Path extraTestClassPath, Map<String, String> sysProps, List<Testcase> cases) {
+		return getPassedCases(runTestcasesForResults(extraTestClassPath, sysProps, cases));
+	}
+
+	public static List<Testcase> getPassedCases(Map<Testcase, TestResult> res) {
 		ArrayList<Testcase> ret = new ArrayList<>();
 		for (Entry<Testcase, TestResult> e : res.entrySet()) {
 			if (e.getValue().getPass()) {
@@ -0,0 +1,126 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import genesis.GenesisException;
+import genesis.repair.validation.ValidationOracle.ValidationResult;
+
+/**
+ * Validation results keyed by the hash of the compiled classes of a
+ * candidate. Many different patch snippets compile to the same bytecode once
+ * the debug information is stripped, so we only need to run the tests for
+ * one of them. The results are appended to a file in the work directory, so
+ * that a rerun with --skip-init reuses them.
+ */
+public class ValidationCache {
+
+	HashMap<String, ValidationResult> results;
+	BufferedWriter writer;
+
+	public ValidationCache(String fname) throws IOException {
+		results = new HashMap<String, ValidationResult>();
+		if (Files.exists(Paths.get(fname))) {
+			BufferedReader reader = new BufferedReader(new FileReader(fname));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String[] tokens = line.trim().split(" ");
+				// The last line may be truncated if genesis was killed
+				if (tokens.length != 2)
+					continue;
+				try {
+					results.put(tokens[0], ValidationResult.valueOf(tokens[1]));
+				}
+				catch (IllegalArgumentException ignore) { }
+			}
+			reader.close();
+		}
+		writer = new BufferedWriter(new FileWriter(fname, true));
+	}
+
+	public synchronized ValidationResult get(String hash) {
+		return results.get(hash);
+	}
+
+	public synchronized void put(String hash, ValidationResult res) {
+		if (results.containsKey(hash))
+			return;
+		results.put(hash, res);
+		try {
+			writer.write(hash + " " + res.toString());
+			writer.newLine();
+			writer.flush();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to write down the validation cache!");
+		}
+	}
+
+	public synchronized int size() {
+		return results.size();
+	}
+
+	public synchronized void close() {
+		try {
+			writer.close();
+		}
+		catch (IOException ignore) { }
+	}
+
+	// Hashes the classes without their debug attributes, i.e., line numbers,
+	// local variable names and the source file name
+	public static String hashBytecodes(Map<String, byte[]> bytecodes) {
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new GenesisException("SHA-1 is not available!");
+		}
+		TreeMap<String, byte[]> sorted = new TreeMap<String, byte[]>(bytecodes);
+		for (Map.Entry<String, byte[]> e : sorted.entrySet()) {
+			md.update(e.getKey().getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+			// Do not pass the reader to the writer, we want a new constant pool
+			ClassWriter cw = new ClassWriter(0);
+			new ClassReader(e.getValue()).accept(cw, ClassReader.SKIP_DEBUG);
+			md.update(cw.toByteArray());
+		}
+		StringBuffer ret = new StringBuffer();
+		for (byte b : md.digest())
+			ret.append(String.format("%02x", b));
+		return ret.toString();
+	}
+}
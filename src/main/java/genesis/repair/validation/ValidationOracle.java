@@ -17,9 +17,12 @@
 // along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
 package genesis.repair.validation;
 
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 
+import genesis.repair.localization.SuspiciousLocation;
+
 public interface ValidationOracle {
 
 	public enum ValidationResult {
@@ -28,8 +31,45 @@ public interface ValidationOracle {
 	
 	ValidationResult validate(String sourcePath, String newCodeStr, boolean verbose);
 
+	// Same as above, but the oracle may skip the tests that cannot reach loc
+	ValidationResult validate(SuspiciousLocation loc, String newCodeStr, boolean verbose);
+
+	// generator identifies the transform that produced the candidate, it is 
+	// only used to order the tests
+	ValidationResult validate(SuspiciousLocation loc, String generator, String newCodeStr, boolean verbose);
+
+	// Same as above, but for a candidate that is already compiled, e.g., by
+	// BytecodePatcher
+	ValidationResult validateBytecodes(SuspiciousLocation loc, String generator, Map<String, byte[]> bytecodes, boolean verbose);
+
+	// Validates n candidates compiled together as a mutant schema, the i-th
+	// candidate is selected by setting selectorProperty to i. Returns null
+	// if the schema does not compile.
+	List<ValidationResult> validateSchema(SuspiciousLocation loc, String schemaCodeStr, String selectorProperty, int n, boolean verbose);
+
+	// Validates the candidates for the same location together, the i-th
+	// generator is the one of the i-th candidate and may be null
+	List<ValidationResult> validateBatch(SuspiciousLocation loc, List<String> generators, List<String> newCodeStrs, boolean verbose);
+
 	Map<Testcase, TestResult> runTestcasesForResults(List<Testcase> cases);
 
 	List<Testcase> runTestcases(List<Testcase> cases);
 
+	// What RepairPipeline needs: the candidates are compiled to temp dirs
+	// by the compile stage, and validated there by the worker oracles, each
+	// with its own working directories
+
+	ValidationOracle createWorkerOracle(String testWorkDir, String testTmpDir);
+
+	// Returns true if the cheap checks already kill the candidate
+	boolean rejectInProcess(Map<String, byte[]> bytecodes, String generator, boolean verbose);
+
+	// Null if the bytecodes cannot be written
+	Path writeToTempDir(String sourcePath, Map<String, byte[]> bytecodes);
+
+	ValidationResult validateCompiled(Path tempDirPath, Map<String, String> sysProps, SuspiciousLocation loc, String generator, boolean verbose);
+
+	// Kills the test runs in flight of this oracle and of its worker oracles
+	void cancelAll();
+
 }
@@ -0,0 +1,243 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import genesis.Config;
+import genesis.GenesisException;
+
+/**
+ * Runs the test jobs of a DistributedOracle on this machine, start it with
+ * genesis --worker <port>. It listens on the loopback interface unless
+ * --bind says otherwise, and every connection must answer the challenge of
+ * WorkerProtocol with the shared worker_secret. The test sessions arrive as ClasspathBundles and
+ * are cached under the cache directory by their hash, so a job only ships
+ * the class files of the candidate. Every connection is served by its own
+ * thread, and several workers may share the cache directory, e.g., when
+ * they run on the same machine.
+ */
+public class ValidationWorker {
+
+	// A job cancelled before it arrives is remembered this long
+	static final long CancelExpiry = 600000;
+
+	String bindAddr;
+	int port;
+	Path cacheDir;
+	// The running jobs by id, so that another connection can cancel them
+	HashMap<String, TestShard> jobs;
+	// The jobs cancelled before they arrived, with the time of the cancel
+	HashMap<String, Long> cancelledEarly;
+
+	public ValidationWorker(String bindAddr, int port, String cacheDir) throws IOException {
+		if (Config.workerSecret.isEmpty())
+			throw new GenesisException("Set worker_secret in the global config to run a validation worker!");
+		this.bindAddr = bindAddr;
+		this.port = port;
+		this.cacheDir = Paths.get(cacheDir).toAbsolutePath().normalize();
+		this.jobs = new HashMap<String, TestShard>();
+		this.cancelledEarly = new HashMap<String, Long>();
+		Files.createDirectories(this.cacheDir);
+	}
+
+	public void serve() throws IOException {
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(bindAddr));
+		System.out.println("Validation worker listening on " + bindAddr + ":" + port + ", cache directory " + cacheDir);
+		try {
+			while (true) {
+				Socket s = server.accept();
+				new ConnectionThread(s).start();
+			}
+		}
+		finally {
+			server.close();
+		}
+	}
+
+	class ConnectionThread extends Thread {
+		Socket socket;
+
+		ConnectionThread(Socket socket) {
+			super();
+			this.socket = socket;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				if (!WorkerProtocol.acceptClient(in, out, Config.workerSecret)) {
+					System.out.println("[WARN]Refused a client without the secret from " + socket.getRemoteSocketAddress());
+					return;
+				}
+				while (true) {
+					byte type;
+					try {
+						type = in.readByte();
+					}
+					catch (EOFException e) {
+						break;
+					}
+					handle(type, in, out);
+					out.flush();
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("[WARN]Lost the connection to " + socket.getRemoteSocketAddress());
+			}
+			catch (GenesisException e) {
+				e.printStackTrace();
+			}
+			finally {
+				try {
+					socket.close();
+				}
+				catch (IOException ignore) { }
+			}
+		}
+	}
+
+	private String readHash(DataInputStream in) throws IOException {
+		String hash = WorkerProtocol.readString(in);
+		if (!ClasspathBundle.isValidHash(hash))
+			throw new IOException("Malformed bundle hash: " + hash);
+		return hash;
+	}
+
+	void handle(byte type, DataInputStream in, DataOutputStream out) throws IOException {
+		if (type == WorkerProtocol.HasBundleMsg) {
+			out.writeBoolean(ClasspathBundle.isInstalled(cacheDir, readHash(in)));
+		}
+		else if (type == WorkerProtocol.PutBundleMsg) {
+			String hash = readHash(in);
+			System.out.println("[DEBUG] Installing bundle " + hash);
+			ClasspathBundle.install(in, cacheDir, hash);
+			out.writeBoolean(true);
+		}
+		else if (type == WorkerProtocol.RunMsg) {
+			String hash = readHash(in);
+			String jobId = WorkerProtocol.readString(in);
+			Path classDir = Files.createTempDirectory(Paths.get(Config.tmpDirectory), Config.tmpDirPrefix);
+			try {
+				WorkerProtocol.readTree(in, classDir.toAbsolutePath().normalize());
+				List<Testcase> cases = WorkerProtocol.readCases(in);
+				HashMap<String, String> sysProps = WorkerProtocol.readProperties(in);
+				TestTimeBudget budget = new TestTimeBudget();
+				for (Testcase c : cases)
+					budget.recordBaseline(c, in.readLong());
+				WorkerProtocol.writeResults(out, runJob(hash, jobId, classDir, cases, sysProps, budget));
+			}
+			finally {
+				FileUtils.deleteQuietly(classDir.toFile());
+			}
+		}
+		else if (type == WorkerProtocol.CancelMsg) {
+			cancelJob(WorkerProtocol.readString(in));
+			out.writeBoolean(true);
+		}
+		else
+			throw new IOException("Unknown message type " + type);
+	}
+
+	private HashMap<Testcase, TestResult> runJob(String hash, String jobId, Path classDir, List<Testcase> cases,
+			Map<String, String> sysProps, TestTimeBudget budget) throws IOException {
+		if (!ClasspathBundle.isInstalled(cacheDir, hash))
+			throw new IOException("Bundle " + hash + " is not installed!");
+		Path bundleDir = cacheDir.resolve(hash);
+		String classPath = ClasspathBundle.getClasspath(bundleDir);
+		String workDir = ClasspathBundle.getWorkDir(bundleDir);
+		TestShard shard = new TestShard(0, cases);
+		synchronized (jobs) {
+			jobs.put(jobId, shard);
+			if (cancelledEarly.remove(jobId) != null)
+				shard.cancel();
+		}
+		try {
+			if (Config.useRunnerPool) {
+				TestRunnerPool pool = TestRunnerPool.getInstance();
+				PooledTestRunner runner = pool.acquire(classPath, workDir);
+				if (!shard.setRunner(runner)) {
+					pool.release(runner);
+					return new HashMap<Testcase, TestResult>();
+				}
+				try {
+					return runner.runTestcases(classDir, sysProps, cases, budget);
+				}
+				finally {
+					shard.setRunner(null);
+					pool.release(runner);
+				}
+			}
+			TestcaseExecutor exec = new TestcaseExecutor(classDir.toString() + Config.classPathSep + classPath, cases, workDir);
+			if (!shard.setExecutor(exec))
+				return new HashMap<Testcase, TestResult>();
+			exec.setSystemProperties(sysProps);
+			exec.run();
+			return exec.getResult(budget);
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new GenesisException("The validation worker is interrupted during testing!");
+		}
+		finally {
+			synchronized (jobs) {
+				jobs.remove(jobId);
+			}
+		}
+	}
+
+	// The job may still be on its way, e.g., while the client sends its
+	// class files, runJob() then sees the cancel. A cancel of a job that
+	// never comes expires.
+	private void cancelJob(String jobId) {
+		synchronized (jobs) {
+			TestShard shard = jobs.get(jobId);
+			if (shard != null) {
+				shard.cancel();
+				return;
+			}
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<String, Long>> it = cancelledEarly.entrySet().iterator();
+			while (it.hasNext())
+				if (now - it.next().getValue() > CancelExpiry)
+					it.remove();
+			cancelledEarly.put(jobId, now);
+		}
+	}
+}
@@ -0,0 +1,266 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL 
+// Genesis (A successor of Prophet for Java Programs)
+// 
+// This file is part of Genesis.
+// 
+// Genesis is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+// 
+// Genesis is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
+package genesis.repair.validation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The messages between DistributedOracle and ValidationWorker. Every request
+ * is a type byte followed by its fields, and the worker answers each request
+ * before it reads the next one from the same connection:
+ *
+ * HasBundle: hash -> boolean
+ * PutBundle: hash, bundle -> boolean
+ * Run: hash, job id, candidate class files, cases, system properties,
+ *      baseline durations -> results
+ * Cancel: job id -> boolean
+ *
+ * Strings are written as UTF-8 with an int length, so long test messages fit.
+ *
+ * A connection starts with a challenge, as the worker runs the class files
+ * that it gets. The worker sends a random nonce, the client answers with the
+ * HMAC-SHA256 of the nonce under the shared worker_secret, and the worker
+ * answers true, or closes the connection if the answer is wrong.
+ */
+public class WorkerProtocol {
+
+	public static final byte HasBundleMsg = 'H';
+	public static final byte PutBundleMsg = 'P';
+	public static final byte RunMsg = 'R';
+	public static final byte CancelMsg = 'C';
+
+	static final int MaxStringSize = 1 << 26;
+	static final int NonceSize = 32;
+	static final int MaxAnswerSize = 1024;
+
+	private static byte[] sign(String secret, byte[] nonce) throws IOException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			return mac.doFinal(nonce);
+		}
+		catch (GeneralSecurityException e) {
+			throw new IOException("Unable to sign the worker challenge!", e);
+		}
+	}
+
+	// The worker side of the challenge, false if the client does not know
+	// the secret
+	public static boolean acceptClient(DataInputStream in, DataOutputStream out, String secret) throws IOException {
+		byte[] nonce = new byte[NonceSize];
+		new SecureRandom().nextBytes(nonce);
+		out.write(nonce);
+		out.flush();
+		int len = in.readInt();
+		if (len < 0 || len > MaxAnswerSize)
+			return false;
+		byte[] answer = new byte[len];
+		in.readFully(answer);
+		if (!MessageDigest.isEqual(answer, sign(secret, nonce)))
+			return false;
+		out.writeBoolean(true);
+		out.flush();
+		return true;
+	}
+
+	// The client side of the challenge
+	public static void authenticate(DataInputStream in, DataOutputStream out, String secret) throws IOException {
+		byte[] nonce = new byte[NonceSize];
+		in.readFully(nonce);
+		byte[] answer = sign(secret, nonce);
+		out.writeInt(answer.length);
+		out.write(answer);
+		out.flush();
+		if (!in.readBoolean())
+			throw new IOException("The worker refused the secret!");
+	}
+
+	public static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > MaxStringSize)
+			throw new IOException("Malformed message from the peer!");
+		byte[] bytes = new byte[len];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Writes the files under root, their names are relative to root with '/'
+	// as the separator. If root is a file, it is written under its own name.
+	public static void writeTree(DataOutputStream out, Path root) throws IOException {
+		List<Path> files = listFiles(root);
+		out.writeInt(files.size());
+		for (Path f : files) {
+			writeString(out, getRelativeName(root, f));
+			out.writeLong(Files.size(f));
+			Files.copy(f, out);
+		}
+	}
+
+	// Reads the files written by writeTree into dest
+	public static void readTree(DataInputStream in, Path dest) throws IOException {
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			String name = readString(in);
+			Path f = dest.resolve(name).normalize();
+			// Never write outside of dest
+			if (!f.startsWith(dest))
+				throw new IOException("Malformed file name from the peer: " + name);
+			Files.createDirectories(f.getParent());
+			long size = in.readLong();
+			OutputStream fout = Files.newOutputStream(f);
+			try {
+				copy(in, fout, size);
+			}
+			finally {
+				fout.close();
+			}
+		}
+	}
+
+	static void copy(InputStream in, OutputStream out, long size) throws IOException {
+		byte[] buf = new byte[65536];
+		while (size > 0) {
+			int n = in.read(buf, 0, (int) Math.min(buf.length, size));
+			if (n < 0)
+				throw new IOException("Unexpected end of the stream!");
+			out.write(buf, 0, n);
+			size -= n;
+		}
+	}
+
+	// Regular files under root in a stable order
+	static List<Path> listFiles(Path root) throws IOException {
+		ArrayList<Path> ret = new ArrayList<Path>();
+		if (Files.isRegularFile(root))
+			ret.add(root);
+		else if (Files.isDirectory(root)) {
+			Stream<Path> s = Files.walk(root);
+			try {
+				Iterator<Path> it = s.iterator();
+				while (it.hasNext()) {
+					Path f = it.next();
+					// The history of the project does not matter to the tests
+					if (Files.isRegularFile(f) && !root.relativize(f).startsWith(".git"))
+						ret.add(f);
+				}
+			}
+			finally {
+				s.close();
+			}
+			Collections.sort(ret);
+		}
+		return ret;
+	}
+
+	static String getRelativeName(Path root, Path f) {
+		if (f.equals(root))
+			return f.getFileName().toString();
+		return root.relativize(f).toString().replace(File.separatorChar, '/');
+	}
+
+	public static void writeCases(DataOutputStream out, List<Testcase> cases) throws IOException {
+		out.writeInt(cases.size());
+		for (Testcase c : cases) {
+			writeString(out, c.testClass);
+			writeString(out, c.testName);
+		}
+	}
+
+	public static List<Testcase> readCases(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		ArrayList<Testcase> ret = new ArrayList<Testcase>();
+		for (int i = 0; i < n; i++) {
+			String testClass = readString(in);
+			ret.add(new Testcase(testClass, readString(in)));
+		}
+		return ret;
+	}
+
+	public static void writeProperties(DataOutputStream out, Map<String, String> props) throws IOException {
+		if (props == null) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(props.size());
+		for (Map.Entry<String, String> e : props.entrySet()) {
+			writeString(out, e.getKey());
+			writeString(out, e.getValue());
+		}
+	}
+
+	public static HashMap<String, String> readProperties(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		HashMap<String, String> ret = new HashMap<String, String>();
+		for (int i = 0; i < n; i++) {
+			String key = readString(in);
+			ret.put(key, readString(in));
+		}
+		return ret;
+	}
+
+	public static void writeResults(DataOutputStream out, Map<Testcase, TestResult> res) throws IOException {
+		out.writeInt(res.size());
+		for (Map.Entry<Testcase, TestResult> e : res.entrySet()) {
+			writeString(out, e.getKey().testClass);
+			writeString(out, e.getKey().testName);
+			out.writeInt(e.getValue().status);
+			writeString(out, e.getValue().msg == null ? "" : e.getValue().msg);
+			out.writeLong(e.getValue().duration);
+		}
+	}
+
+	public static HashMap<Testcase, TestResult> readResults(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		HashMap<Testcase, TestResult> ret = new HashMap<Testcase, TestResult>();
+		for (int i = 0; i < n; i++) {
+			String testClass = readString(in);
+			Testcase c = new Testcase(testClass, readString(in));
+			int status = in.readInt();
+			String msg = readString(in);
+			ret.put(c, new TestResult(status, msg, in.readLong()));
+		}
+		return ret;
+	}
+}
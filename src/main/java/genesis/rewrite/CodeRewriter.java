@@ -248,6 +248,107 @@ public class CodeRewriter {
 		return ret;
 	}
 	
+	private String getNewSnippet(String origCode, int i, int start, int end) {
+		String newCodeStrSnippet = newNodes.get(i).codeString(origNodes.get(i));
+		// This handles the case where we need to add a semicolon 
+		if (origNodes.get(i).isEleClass(CtStatement.class) && newNodes.get(i).isEleClass(CtStatement.class)) {
+			boolean needSep = false;
+			int j = end;
+			while (j >= start && Character.isWhitespace(origCode.charAt(j)))
+				j --;
+			if (j >= start) {
+				char ch = origCode.charAt(j);
+				needSep = (ch == '}') || (ch == '{') || (ch == ';');
+			}
+			if (needSep)
+				newCodeStrSnippet = terminateStatement(newCodeStrSnippet);
+		}
+		return newCodeStrSnippet;
+	}
+
+	private String terminateStatement(String snippet) {
+		int j = snippet.length() - 1;
+		while (j >= 0 && Character.isWhitespace(snippet.charAt(j)))
+			j --;
+		if (j >= 0) {
+			char ch = snippet.charAt(j);
+			if ((ch != '}') && (ch != '{') && (ch != ';'))
+				return snippet + ";";
+		}
+		return snippet;
+	}
+
+	private boolean isSchemaStatement(MyCtNode node) {
+		if (node.isCollection()) {
+			if (!node.isColClass(CtStatement.class))
+				return false;
+			int n = node.getNumChildren();
+			for (int i = 0; i < n; i++)
+				if (!isSchemaStatement(node.getChild(i)))
+					return false;
+			return true;
+		}
+		// A local variable declaration cannot be put inside a branch, 
+		// its scope would end there
+		return node.isEleClass(CtStatement.class) && !node.isEleClass(CtLocalVariableImpl.class);
+	}
+
+	public boolean canRewriteSchema() {
+		if (origNodes.size() == 0)
+			return false;
+		for (int i = 0; i < origNodes.size(); i++) {
+			if (!origNodes.get(i).equals(origNodes.get(0)))
+				return false;
+			if (!isSchemaStatement(origNodes.get(i)) || !isSchemaStatement(newNodes.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+	// Mutant schemata: all mappings replace the same statement, and the
+	// generated code selects the i-th one at runtime when selectorExpr == i.
+	// Any other selector value runs the original statement.
+	public String rewriteSchema(String selectorExpr) {
+		if (!canRewriteSchema())
+			throw new GenesisException("Schema rewrite only supports alternative statements for the same node!");
+		MyCtNode orig = origNodes.get(0);
+		String origCode = getOriginalSourceFile(orig, newNodes.get(0));
+		HashSet<Integer> commentIdxs = getCommentIndexSet(origCode);
+		int start = getSourceStart(origCode, orig, commentIdxs);
+		int end = getSourceEnd(origCode, orig, commentIdxs);
+		String indentStr = getIndentString(origCode, start);
+		String origSnippet = origCode.substring(start, end + 1);
+		int lastPos = end + 1;
+		// Spoon may leave the semicolon out of the statement (e.g., return), 
+		// every branch has to be a complete statement
+		int j = lastPos;
+		while (j < origCode.length() && Character.isWhitespace(origCode.charAt(j)))
+			j ++;
+		if (j < origCode.length() && origCode.charAt(j) == ';' && !commentIdxs.contains(j)) {
+			origSnippet = origCode.substring(start, j + 1);
+			lastPos = j + 1;
+		}
+
+		StringBuffer schema = new StringBuffer();
+		if (commentString != null)
+			schema.append("/*" + commentString + "*/\n");
+		for (int i = 0; i < newNodes.size(); i++) {
+			schema.append("if (" + selectorExpr + " == " + i + ") {\n");
+			schema.append(terminateStatement(newNodes.get(i).codeString(orig)));
+			schema.append("\n}\nelse ");
+		}
+		schema.append("{\n");
+		schema.append(terminateStatement(origSnippet));
+		schema.append("\n}");
+
+		StringBuffer ret = new StringBuffer();
+		ret.append(origCode.substring(0, start));
+		ret.append(applyIndent(schema.toString(), indentStr));
+		if (lastPos < origCode.length())
+			ret.append(origCode.substring(lastPos));
+		return removeTrailingSpaces(ret);
+	}
+
 	public String rewrite() {
 		if (origNodes.size() == 0)
 			throw new GenesisException("No mapping supplied for rewrite()!");
@@ -288,28 +389,7 @@ public class CodeRewriter {
 			if (starts.get(i) > lastPos) {
 				ret.append(origCode.substring(lastPos, starts.get(i)));
 			}
-			String newCodeStrSnippet = newNodes.get(i).codeString(origNodes.get(i));
-			// This handles the case where we need to add a semicolon 
-			if (origNodes.get(i).isEleClass(CtStatement.class) && newNodes.get(i).isEleClass(CtStatement.class)) {
-				boolean needSep = false;
-				int j = ends.get(i);
-				while (j >= starts.get(i) && Character.isWhitespace(origCode.charAt(j)))
-					j --;
-				if (j >= starts.get(i)) {
-					char ch = origCode.charAt(j);
-					needSep = (ch == '}') || (ch == '{') || (ch == ';');
-				}
-				if (needSep) {
-					j = newCodeStrSnippet.length() - 1;
-					while (j >= 0 && Character.isWhitespace(newCodeStrSnippet.charAt(j)))
-						j --;
-					if (j >= 0) {
-						char ch = newCodeStrSnippet.charAt(j);
-						if ((ch != '}') && (ch != '{') && (ch != ';'))
-							newCodeStrSnippet += ";";
-					}
-				}
-			}
+			String newCodeStrSnippet = getNewSnippet(origCode, i, starts.get(i), ends.get(i));
 			if (commentString == null)
 				ret.append(applyIndent(newCodeStrSnippet, indentStrs.get(i)));
 			else
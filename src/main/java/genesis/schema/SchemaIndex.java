@@ -0,0 +1,210 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL
+package genesis.schema;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import genesis.node.MyCtNode;
+import genesis.node.MyNodeSig;
+
+/**
+ * An index over the schemas of a search space that tells which of them may
+ * apply to a node, so that the search space only opens those. The pre trees
+ * go into a discrimination tree, keyed in preorder by the sig, the trait or
+ * the number of children of every pattern node, with a wildcard for the
+ * free vars. A node is looked up by walking its own keys down the tree, and
+ * a wildcard edge skips the whole subtree of the node at hand. The inside
+ * sigs go into an inverted index from every required sig to its schemas.
+ *
+ * The index only filters, it is a superset of the real matches. The sig of
+ * a collection and the var bindings are left to SchemaAdapter, which still
+ * runs on every schema that the index returns.
+ */
+public class SchemaIndex {
+
+	static final Object Wildcard = "*";
+	// The key of a node deeper than any pattern node, no edge has it
+	static final Object Deep = new Object();
+
+	static class TreeNode {
+		HashMap<Object, TreeNode> next;
+		// The schemas whose pre tree ends here
+		ArrayList<Integer> ids;
+
+		TreeNode() {
+			this.next = new HashMap<Object, TreeNode>();
+			this.ids = null;
+		}
+	}
+
+	int size;
+	TreeNode root;
+	// The height of the highest pre tree, the nodes below are never keyed
+	int maxHeight;
+	HashMap<MyNodeSig, ArrayList<Integer>> postings;
+	int[] requiredCnt;
+
+	public SchemaIndex(List<TransformSchema> schemas) {
+		this.size = schemas.size();
+		this.root = new TreeNode();
+		this.maxHeight = 0;
+		this.postings = new HashMap<MyNodeSig, ArrayList<Integer>>();
+		this.requiredCnt = new int[size];
+		for (int i = 0; i < size; i++) {
+			TransformSchema schema = schemas.get(i);
+			ArrayList<Object> keys = new ArrayList<Object>();
+			maxHeight = Math.max(maxHeight, flattenPattern(schema.pre, keys));
+			TreeNode cur = root;
+			for (Object key : keys) {
+				TreeNode child = cur.next.get(key);
+				if (child == null) {
+					child = new TreeNode();
+					cur.next.put(key, child);
+				}
+				cur = child;
+			}
+			if (cur.ids == null)
+				cur.ids = new ArrayList<Integer>();
+			cur.ids.add(i);
+			Set<MyNodeSig> required = schema.inside == null ? Collections.<MyNodeSig>emptySet() : new HashSet<MyNodeSig>(schema.inside);
+			requiredCnt[i] = required.size();
+			for (MyNodeSig sig : required) {
+				if (!postings.containsKey(sig))
+					postings.put(sig, new ArrayList<Integer>());
+				postings.get(sig).add(i);
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Appends the keys of n in preorder and returns its height
+	private static int flattenPattern(TransASTNode n, List<Object> keys) {
+		if (n instanceof TransASTFreeVar) {
+			keys.add(Wildcard);
+			return 1;
+		}
+		if (n instanceof TransASTTrait) {
+			keys.add(Arrays.asList("T", n.nodeSig, ((TransASTTrait) n).trait));
+			return 1;
+		}
+		int h = 0;
+		if (n instanceof TransASTCollection) {
+			List<TransASTNode> children = ((TransASTCollection) n).children;
+			keys.add(Arrays.<Object>asList("C", children.size()));
+			for (TransASTNode child : children)
+				h = Math.max(h, flattenPattern(child, keys));
+			return h + 1;
+		}
+		Map<String, TransASTNode> children = ((TransASTCtEle) n).children;
+		keys.add(Arrays.<Object>asList("E", n.nodeSig, children.size()));
+		ArrayList<String> names = new ArrayList<String>(children.keySet());
+		Collections.sort(names);
+		for (String name : names)
+			h = Math.max(h, flattenPattern(children.get(name), keys));
+		return h + 1;
+	}
+
+	// Appends the keys of n in the order of flattenPattern(), ends gets the
+	// index after the subtree of every node
+	private void flattenNode(MyCtNode n, int depth, List<Object> keys, List<Integer> ends) {
+		int idx = keys.size();
+		ends.add(-1);
+		if (depth >= maxHeight)
+			keys.add(Deep);
+		else if (n.isTrait())
+			keys.add(Arrays.asList("T", n.nodeSig(), n.nodeTrait()));
+		else if (n.isReference())
+			keys.add(Deep);
+		else if (n.isCollection()) {
+			int m = n.getNumChildren();
+			keys.add(Arrays.<Object>asList("C", m));
+			for (int i = 0; i < m; i++)
+				flattenNode(n.getChild(i), depth + 1, keys, ends);
+		}
+		else {
+			int m = n.getNumChildren();
+			keys.add(Arrays.<Object>asList("E", n.nodeSig(), m));
+			ArrayList<String> names = new ArrayList<String>();
+			for (int i = 0; i < m; i++)
+				names.add(n.getChildName(i));
+			Collections.sort(names);
+			for (String name : names)
+				flattenNode(n.getChild(name), depth + 1, keys, ends);
+		}
+		ends.set(idx, keys.size());
+	}
+
+	// The schemas whose pre tree may match before
+	public BitSet matchPre(MyCtNode before) {
+		ArrayList<Object> keys = new ArrayList<Object>();
+		ArrayList<Integer> ends = new ArrayList<Integer>();
+		flattenNode(before, 0, keys, ends);
+		int n = keys.size();
+		BitSet ret = new BitSet(size);
+		// Explicit stacks, the keys of a large node go deep
+		ArrayDeque<TreeNode> nodes = new ArrayDeque<TreeNode>();
+		ArrayDeque<Integer> poses = new ArrayDeque<Integer>();
+		nodes.push(root);
+		poses.push(0);
+		while (!nodes.isEmpty()) {
+			TreeNode cur = nodes.pop();
+			int pos = poses.pop();
+			if (pos == n) {
+				if (cur.ids != null)
+					for (Integer id : cur.ids)
+						ret.set(id);
+				continue;
+			}
+			TreeNode w = cur.next.get(Wildcard);
+			if (w != null) {
+				nodes.push(w);
+				poses.push(ends.get(pos));
+			}
+			TreeNode e = cur.next.get(keys.get(pos));
+			if (e != null) {
+				nodes.push(e);
+				poses.push(pos + 1);
+			}
+		}
+		return ret;
+	}
+
+	// The schemas whose inside sigs all show up in inside, as in
+	// SchemaAdapter.checkInside()
+	public BitSet matchInside(Set<MyNodeSig> inside) {
+		int[] cnt = new int[size];
+		for (Map.Entry<MyNodeSig, ArrayList<Integer>> e : postings.entrySet()) {
+			boolean found = false;
+			for (MyNodeSig sig : inside)
+				if (e.getKey().isSuperOrEqual(sig)) {
+					found = true;
+					break;
+				}
+			if (found)
+				for (Integer id : e.getValue())
+					cnt[id] ++;
+		}
+		BitSet ret = new BitSet(size);
+		for (int i = 0; i < size; i++)
+			if (cnt[i] == requiredCnt[i])
+				ret.set(i);
+		return ret;
+	}
+
+	public BitSet lookup(Set<MyNodeSig> inside, MyCtNode before) {
+		BitSet ret = matchPre(before);
+		ret.and(matchInside(inside));
+		return ret;
+	}
+}
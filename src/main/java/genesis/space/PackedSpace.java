@@ -0,0 +1,195 @@
+// Copyright (C) 2016 Fan Long, Peter Amidon, Martin Rianrd and MIT CSAIL
+package genesis.space;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+
+import com.google.common.io.Files;
+
+import genesis.GenesisException;
+import genesis.transform.CodeTransform;
+
+/**
+ * A search space packed into one file, so that the loader does not open a
+ * file for every transform and can decode the transforms in any order. The
+ * file starts with a header, then the index with the generator index, the
+ * offset and the length of every record, then the records. A record is one
+ * serialized CodeTransform, as in a gen<idx>.po file, so packing does not
+ * make a transform cheaper to decode, it only lets the loader decode them
+ * in parallel.
+ *
+ * Convert the space.txt and candidate directory layout with
+ * SearchSpace pack <SearchSpaceFile> <CandidateGeneratorDir> <PackedFile>.
+ */
+public class PackedSpace {
+
+	static final int Magic = 0x4753504B;
+	static final int Version = 1;
+
+	String path;
+	int[] gidxs;
+	long[] offsets;
+	int[] lengths;
+
+	private PackedSpace(String path, int n) {
+		this.path = path;
+		this.gidxs = new int[n];
+		this.offsets = new long[n];
+		this.lengths = new int[n];
+	}
+
+	public static boolean isPacked(String path) {
+		File f = new File(path);
+		if (!f.isFile() || f.length() < 4)
+			return false;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(f));
+			try {
+				return in.readInt() == Magic;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	public static PackedSpace open(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		try {
+			if (in.readInt() != Magic)
+				throw new IOException("Not a packed search space: " + path);
+			int version = in.readInt();
+			if (version != Version)
+				throw new IOException("Unsupported packed search space version " + version + ": " + path);
+			int n = in.readInt();
+			PackedSpace ret = new PackedSpace(path, n);
+			for (int i = 0; i < n; i++) {
+				ret.gidxs[i] = in.readInt();
+				ret.offsets[i] = in.readLong();
+				ret.lengths[i] = in.readInt();
+			}
+			return ret;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	public int size() {
+		return gidxs.length;
+	}
+
+	public int getGeneratorIndex(int i) {
+		return gidxs[i];
+	}
+
+	// Reads and decodes the record i, safe to call from several threads
+	public CodeTransform load(FileChannel channel, int i) throws IOException, ClassNotFoundException {
+		ByteBuffer buf = ByteBuffer.allocate(lengths[i]);
+		long pos = offsets[i];
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos + buf.position());
+			if (n < 0)
+				throw new IOException("Truncated packed search space: " + path);
+		}
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buf.array()));
+		try {
+			return (CodeTransform) ois.readObject();
+		}
+		finally {
+			ois.close();
+		}
+	}
+
+	public FileChannel openChannel() throws IOException {
+		return new RandomAccessFile(path, "r").getChannel();
+	}
+
+	// The generator indexes of a space.txt file, sorted
+	public static List<Integer> readSpaceFile(String spacePath) {
+		String spaceLine = null;
+		try {
+			spaceLine = Files.readFirstLine(new File(spacePath), Charset.defaultCharset());
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new GenesisException("Unable to parse the search space file: " + spacePath);
+		}
+		Scanner s = new Scanner(spaceLine);
+		int n = s.nextInt();
+		ArrayList<Integer> ret = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++)
+			ret.add(s.nextInt());
+		s.close();
+		Collections.sort(ret);
+		return ret;
+	}
+
+	// The records are copied from the gen<idx>.po files as they are, so the
+	// transforms are not decoded here. The file is written next to outPath
+	// and renamed into place, so a failed conversion never leaves a packed
+	// file behind.
+	public static void convert(String spacePath, String candidateDir, String outPath) throws IOException {
+		List<Integer> idxs = readSpaceFile(spacePath);
+		int n = idxs.size();
+		ArrayList<File> files = new ArrayList<File>();
+		for (int idx : idxs) {
+			File f = new File(candidateDir + "/gen" + idx + ".po");
+			if (!f.isFile())
+				throw new IOException("Missing generator file: " + f);
+			if (f.length() > Integer.MAX_VALUE)
+				throw new IOException("Too large generator file: " + f);
+			files.add(f);
+		}
+		File outFile = new File(outPath).getAbsoluteFile();
+		File tmpFile = File.createTempFile(outFile.getName(), ".tmp", outFile.getParentFile());
+		boolean done = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				out.writeInt(Magic);
+				out.writeInt(Version);
+				out.writeInt(n);
+				long offset = 12 + 16L * n;
+				for (int i = 0; i < n; i++) {
+					File f = files.get(i);
+					out.writeInt(idxs.get(i));
+					out.writeLong(offset);
+					out.writeInt((int) f.length());
+					offset += f.length();
+				}
+				for (File f : files)
+					Files.copy(f, out);
+			}
+			finally {
+				out.close();
+			}
+			java.nio.file.Files.move(tmpFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			done = true;
+		}
+		finally {
+			if (!done)
+				tmpFile.delete();
+		}
+	}
+}
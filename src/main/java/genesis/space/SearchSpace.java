@@ -17,22 +17,35 @@
 // along with Genesis.  If not, see <http://www.gnu.org/licenses/>.
 package genesis.space;
 
-import java.io.File;
-
-
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Scanner;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.io.Files;
-
+import genesis.Config;
 import genesis.GenesisException;
 import genesis.node.MyCtNode;
 import genesis.node.MyNodeSig;
+import genesis.schema.SchemaIndex;
+import genesis.schema.TransformSchema;
 import genesis.space.par.*;
 import genesis.transform.CodeTransAdapter;
 import genesis.transform.CodeTransform;
@@ -43,7 +56,11 @@ public class SearchSpace {
 	ArrayList<Integer> sidxs;
 	ArrayList<Integer> gidxs;
 	ArrayList<CodeTransform> transforms;
-	int failedCheckCnt;
+	AtomicInteger failedCheckCnt;
+	// Null to generate in the caller thread
+	ForkJoinPool generationPool;
+	// Built on the first iterate()
+	SchemaIndex index;
 
 	public SearchSpace() {
 		paths = new ArrayList<String>();
@@ -51,57 +68,100 @@ public class SearchSpace {
 		sidxs = new ArrayList<Integer>();
 		gidxs = new ArrayList<Integer>();
 		transforms = new ArrayList<CodeTransform>();
-		failedCheckCnt = 0;
+		failedCheckCnt = new AtomicInteger(0);
+		generationPool = null;
+		index = null;
 	}
 	
 	public SearchSpace(String[] spacePaths, String[] candidateDirs) {
 		this();
 		int m = spacePaths.length;
-		for (int k = 0; k < m; k++) {
-			String spacePath = spacePaths[k];
-			String candidateDir = candidateDirs[k];
-			paths.add(spacePath);
-			dirs.add(candidateDir);
-			String spaceLine = null;
-			try {
-				spaceLine = Files.readFirstLine(new File(spacePath), Charset.defaultCharset());
-			}
-			catch (Exception e) {
-				e.printStackTrace();
-				throw new GenesisException("Unable to parse the search space file: " + spacePath);
-			}
-			Scanner s = new Scanner(spaceLine);
-			int n = s.nextInt();
-			ArrayList<Integer> idxs = new ArrayList<Integer>();
-			for (int i = 0; i < n; i++) {
-				int idx = s.nextInt();
-				idxs.add(idx);
-			}
-			for (int i = 0; i < n - 1; i++)
-				for (int j = i + 1; j < n; j++)
-					if (idxs.get(i) > idxs.get(j)) {
-						int tmp = idxs.get(i);
-						idxs.set(i, idxs.get(j));
-						idxs.set(j, tmp);
+		ArrayList<Callable<CodeTransform>> loaders = new ArrayList<Callable<CodeTransform>>();
+		ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+		try {
+			for (int k = 0; k < m; k++) {
+				String spacePath = spacePaths[k];
+				String candidateDir = candidateDirs[k];
+				paths.add(spacePath);
+				dirs.add(candidateDir);
+				if (PackedSpace.isPacked(spacePath)) {
+					final PackedSpace pack = openPackedSpace(spacePath);
+					final FileChannel channel = pack.openChannel();
+					channels.add(channel);
+					int n = pack.size();
+					for (int i = 0; i < n; i++) {
+						final int idx = i;
+						sidxs.add(k);
+						gidxs.add(pack.getGeneratorIndex(i));
+						loaders.add(new Callable<CodeTransform>() {
+							@Override
+							public CodeTransform call() throws Exception {
+								return pack.load(channel, idx);
+							}
+						});
 					}
-			for (int i = 0; i < n; i++) {
-				int idx = idxs.get(i);
-				sidxs.add(k);
-				gidxs.add(idx);
-				String genPath = candidateDir + "/gen" + idx + ".po";
-				try {
-					FileInputStream fis = new FileInputStream(genPath);
-					ObjectInputStream ois = new ObjectInputStream(fis);
-					transforms.add((CodeTransform)ois.readObject());
-					ois.close();
+					continue;
 				}
-				catch (Exception e) {
-					e.printStackTrace();
-					s.close();
-					throw new GenesisException("Unable to serialize the generator file: " + genPath);
+				for (int idx : PackedSpace.readSpaceFile(spacePath)) {
+					sidxs.add(k);
+					gidxs.add(idx);
+					final String genPath = candidateDir + "/gen" + idx + ".po";
+					loaders.add(new Callable<CodeTransform>() {
+						@Override
+						public CodeTransform call() throws Exception {
+							ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(genPath)));
+							try {
+								return (CodeTransform) ois.readObject();
+							}
+							finally {
+								ois.close();
+							}
+						}
+					});
 				}
 			}
-			s.close();
+			loadTransforms(loaders);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			throw new GenesisException("Unable to read the search space files: " + Arrays.toString(spacePaths));
+		}
+		finally {
+			for (FileChannel channel : channels)
+				try {
+					channel.close();
+				}
+				catch (IOException ignore) { }
+		}
+	}
+
+	private static PackedSpace openPackedSpace(String path) {
+		try {
+			return PackedSpace.open(path);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			throw new GenesisException("Unable to parse the packed search space file: " + path);
+		}
+	}
+
+	// Decodes the transforms with concurrency_level threads, in order
+	private void loadTransforms(List<Callable<CodeTransform>> loaders) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(Config.concurrencyLevel, loaders.size())));
+		try {
+			for (Future<CodeTransform> f : pool.invokeAll(loaders))
+				transforms.add(f.get());
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new GenesisException("Interrupted when loading the search space!");
+		}
+		catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			throw new GenesisException("Unable to serialize the generator " + transforms.size() + " of the search space!");
+		}
+		finally {
+			pool.shutdownNow();
 		}
 	}
 	
@@ -188,12 +248,18 @@ public class SearchSpace {
 		public int gidx;
 		public CodeTransform transform;
 		public MyCtNode patch;
+		// The transform in this space and the position of the candidate among
+		// its candidates for the node, see regenerate()
+		public int transformIdx;
+		public int ordinal;
 		
 		public GenerationResult() {
 			sidx = 0;
 			gidx = 0;
 			transform = null;
 			patch = null;
+			transformIdx = -1;
+			ordinal = -1;
 		}
 		
 		public GenerationResult(int sidx, int gidx, CodeTransform transform, MyCtNode patch) {
@@ -201,37 +267,241 @@ public class SearchSpace {
 			this.gidx = gidx;
 			this.transform = transform;
 			this.patch = patch;
+			this.transformIdx = -1;
+			this.ordinal = -1;
+		}
+
+		// XXX: Just combine the two index together in case of multiple search space
+		public int getGeneratorIndex() {
+			return sidx * 10000 + gidx;
 		}
 	}
 	
-	public List<GenerationResult> applyTo(Set<MyNodeSig> inside, MyCtNode before) {
-		ArrayList<GenerationResult> ret = new ArrayList<GenerationResult>();
-		//int cnt = 0;
-		int n = transforms.size();
-		for (int genIdx = 0; genIdx < n; genIdx++) {
-			//cnt ++;
-			//if (cnt != 4) continue;
-			CodeTransform gen = transforms.get(genIdx);
-			CodeTransAdapter adapter = new CodeTransAdapter(gen, before.getFactory());
-			if (adapter.checkInside(inside)) {
-				if (adapter.applyTo(before)) {
-					int m = (int) adapter.prepareGenerate();
-					for (int i = 0; i < m; i++) {
-						MyCtNode patch = adapter.generateOne();
-						if (patch != null && adapter.passTypecheck()) {
-							ret.add(new GenerationResult(sidxs.get(genIdx), gidxs.get(genIdx), gen, patch));
-						}
-						else
-							failedCheckCnt ++;
-					}
+	// A stream of candidates that the caller may give up on at any point,
+	// close() then stops the generation in the background
+	public interface GenerationStream extends Iterator<GenerationResult> {
+		void close();
+	}
+
+	// A transform matched against before, with the number of its candidates
+	// left. The adapter holds the bindings.
+	class OpenTransform {
+		int idx;
+		CodeTransAdapter adapter;
+		int remaining;
+		// The number of generateOne() calls so far
+		int generated;
+
+		OpenTransform(int idx, Set<MyNodeSig> inside, MyCtNode before) {
+			this.idx = idx;
+			this.adapter = new CodeTransAdapter(transforms.get(idx), before.getFactory());
+			this.generated = 0;
+			if (adapter.checkInside(inside) && adapter.applyTo(before))
+				this.remaining = (int) adapter.prepareGenerate();
+			else
+				this.remaining = 0;
+		}
+	}
+
+	// Generates the candidates of the transforms idxs for before on demand,
+	// so only the candidate in hand and the bindings of the current transform
+	// stay live
+	class GenerationIterator implements GenerationStream {
+		Set<MyNodeSig> inside;
+		MyCtNode before;
+		int[] idxs;
+		// The position of the next transform to open in idxs
+		int genIdx;
+		OpenTransform cur;
+		GenerationResult next;
+
+		GenerationIterator(Set<MyNodeSig> inside, MyCtNode before, int[] idxs) {
+			this.inside = inside;
+			this.before = before;
+			this.idxs = idxs;
+			this.genIdx = 0;
+			this.cur = null;
+			this.next = null;
+		}
+
+		// The next transform in idxs, null after the last one
+		OpenTransform openNext() {
+			if (genIdx >= idxs.length)
+				return null;
+			genIdx ++;
+			return new OpenTransform(idxs[genIdx - 1], inside, before);
+		}
+
+		private GenerationResult advance() {
+			while (true) {
+				while (cur == null || cur.remaining <= 0) {
+					// Drop the bindings of the exhausted transform
+					cur = null;
+					cur = openNext();
+					if (cur == null)
+						return null;
 				}
+				cur.remaining --;
+				int ordinal = cur.generated ++;
+				MyCtNode patch = cur.adapter.generateOne();
+				if (patch != null && cur.adapter.passTypecheck())
+					return createResult(cur.idx, ordinal, patch);
+				failedCheckCnt.incrementAndGet();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null)
+				next = advance();
+			return next != null;
+		}
+
+		@Override
+		public GenerationResult next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			GenerationResult ret = next;
+			next = null;
+			return ret;
+		}
+
+		@Override
+		public void close() {
+			genIdx = idxs.length;
+			cur = null;
+			next = null;
+		}
+	}
+
+	// Matches the transforms in the generation pool, a window of them ahead
+	// of the caller, and generates their candidates one at a time in the
+	// caller thread as GenerationIterator does. Only the bindings of the
+	// window stay live, not the candidates. The transforms only read before,
+	// as in the parallel cost metric of the learning phase.
+	class ParallelGenerationIterator extends GenerationIterator {
+		ArrayDeque<ForkJoinTask<OpenTransform>> window;
+		AtomicBoolean cancelled;
+
+		ParallelGenerationIterator(Set<MyNodeSig> inside, MyCtNode before, int[] idxs) {
+			super(inside, before, idxs);
+			this.window = new ArrayDeque<ForkJoinTask<OpenTransform>>();
+			this.cancelled = new AtomicBoolean(false);
+			fill();
+		}
+
+		private void fill() {
+			while (window.size() < generationPool.getParallelism() * 2 && genIdx < idxs.length) {
+				final int idx = idxs[genIdx];
+				genIdx ++;
+				window.add(generationPool.submit(new Callable<OpenTransform>() {
+					@Override
+					public OpenTransform call() {
+						if (cancelled.get())
+							return null;
+						return new OpenTransform(idx, inside, before);
+					}
+				}));
 			}
 		}
+
+		@Override
+		OpenTransform openNext() {
+			ForkJoinTask<OpenTransform> task = window.poll();
+			if (task == null)
+				return null;
+			fill();
+			try {
+				return task.join();
+			}
+			catch (RuntimeException | Error e) {
+				// Nobody waits for the rest of the window anymore
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void close() {
+			cancelled.set(true);
+			for (ForkJoinTask<OpenTransform> task : window)
+				task.cancel(false);
+			window.clear();
+			super.close();
+		}
+	}
+
+	// Generates the transforms in parallel from now on, null to go back to
+	// the caller thread
+	public void setGenerationPool(ForkJoinPool generationPool) {
+		this.generationPool = generationPool;
+	}
+
+	private synchronized SchemaIndex getIndex() {
+		if (index == null) {
+			ArrayList<TransformSchema> schemas = new ArrayList<TransformSchema>();
+			for (CodeTransform t : transforms)
+				schemas.add(t.getSchema());
+			index = new SchemaIndex(schemas);
+		}
+		return index;
+	}
+
+	// The transforms that may apply to before, in order
+	private int[] getCandidateTransforms(Set<MyNodeSig> inside, MyCtNode before) {
+		int n = transforms.size();
+		if (!Config.useSchemaIndex) {
+			int[] ret = new int[n];
+			for (int i = 0; i < n; i++)
+				ret[i] = i;
+			return ret;
+		}
+		BitSet hits = getIndex().lookup(inside, before);
+		int[] ret = new int[hits.cardinality()];
+		int k = 0;
+		for (int i = hits.nextSetBit(0); i >= 0; i = hits.nextSetBit(i + 1))
+			ret[k++] = i;
+		return ret;
+	}
+
+	public GenerationStream iterate(Set<MyNodeSig> inside, MyCtNode before) {
+		int[] idxs = getCandidateTransforms(inside, before);
+		if (generationPool != null)
+			return new ParallelGenerationIterator(inside, before, idxs);
+		return new GenerationIterator(inside, before, idxs);
+	}
+
+	private GenerationResult createResult(int idx, int ordinal, MyCtNode patch) {
+		GenerationResult ret = new GenerationResult(sidxs.get(idx), gidxs.get(idx), transforms.get(idx), patch);
+		ret.transformIdx = idx;
+		ret.ordinal = ordinal;
+		return ret;
+	}
+
+	// Generates the candidate of a GenerationResult of iterate() again from
+	// its transformIdx and ordinal, so a caller that holds many candidates
+	// need not keep their trees. Null if it does not come out anymore.
+	public GenerationResult regenerate(Set<MyNodeSig> inside, MyCtNode before, int transformIdx, int ordinal) {
+		OpenTransform t = new OpenTransform(transformIdx, inside, before);
+		if (ordinal >= t.remaining)
+			return null;
+		t.adapter.seek(ordinal);
+		MyCtNode patch = t.adapter.generateOne();
+		if (patch == null || !t.adapter.passTypecheck())
+			return null;
+		return createResult(transformIdx, ordinal, patch);
+	}
+
+	public List<GenerationResult> applyTo(Set<MyNodeSig> inside, MyCtNode before) {
+		ArrayList<GenerationResult> ret = new ArrayList<GenerationResult>();
+		Iterator<GenerationResult> it = iterate(inside, before);
+		while (it.hasNext())
+			ret.add(it.next());
 		return ret;
 	}
 	
 	public int getFailedCheckCnt() {
-		return failedCheckCnt;
+		return failedCheckCnt.get();
 	}
 	
 	public static void main(String args[]) {
@@ -241,9 +511,21 @@ public class SearchSpace {
 			System.out.println("Number of Transforms: " + parSpace.numTransforms());
 			System.out.println(parSpace.toString());
 		}
+		else if (args.length == 4 && args[0].toLowerCase().equals("pack")) {
+			// Packs a space.txt and candidate directory into one file, see PackedSpace
+			try {
+				PackedSpace.convert(args[1], args[2], args[3]);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			System.out.println("Packed search space written to " + args[3]);
+		}
 		else {
 			if (args.length < 2) {
 				System.out.println("Main <SearchSpaceFile> <CandidateGeneratorDir>");
+				System.out.println("Main pack <SearchSpaceFile> <CandidateGeneratorDir> <PackedFile>");
 				System.exit(1);
 			}
 			String[] a = new String[1];
@@ -133,6 +133,16 @@ public class CodeTransAdapter {
 		return prepareGenerate(true);
 	}
 
+	// Moves to the candidate that the k-th call of generateOne() after
+	// prepareGenerate() returns, the cursors count in mixed radix
+	public void seek(long k) {
+		for (int i = cursors.size() - 1; i >= 0; i--) {
+			int size = genCache.get(vids.get(i)).size();
+			cursors.set(i, (int) (k % size));
+			k /= size;
+		}
+	}
+
 	public MyCtNode generateOne() {
 		adapter.clearAllPostVarBinding();
 		for (int i = 0; i < cursors.size(); i++) {
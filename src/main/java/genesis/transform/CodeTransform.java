@@ -18,6 +18,7 @@
 package genesis.transform;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -57,6 +58,14 @@ public class CodeTransform implements Serializable {
 		return ret;
 	}
 
+	public TransformSchema getSchema() {
+		return schema;
+	}
+
+	public Collection<VarGenerator> getVarGenerators() {
+		return vargens.values();
+	}
+
 	public boolean canGenStatementNodeOnly() {
 		return schema.canGenStatementNodeOnly();
 	}